@@ -117,6 +117,19 @@ public class Darn {
       Supplier<Kernel> kernelSupplier,
       boolean verbose)
       throws IOException {
+    try (KernelPool kernelPool = new KernelPool(kernelSupplier)) {
+      return process(file, verifyOnly, kernelPool, verbose);
+    }
+  }
+
+  /**
+   * As {@link #process(File, boolean, Supplier, boolean)}, but uses kernels
+   * from a pool, so that cells that were executed by a previous call, and have
+   * not changed, need not be executed again.
+   */
+  public static boolean process(
+      File file, boolean verifyOnly, KernelPool kernelPool, boolean verbose)
+      throws IOException {
     List<String> inputLines =
         Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
     MorelHighlighter highlighter = MorelHighlighter.DEFAULT;
@@ -126,8 +139,7 @@ public class Darn {
               keywords ->
                   Iterables.concat(keywords, MorelHighlighter.DML_KEYWORDS));
     }
-    ProcessResult result =
-        processLines(inputLines, kernelSupplier, highlighter);
+    ProcessResult result = processLines(inputLines, kernelPool, highlighter);
     boolean changed = !result.lines.equals(inputLines);
     if (changed) {
       if (verifyOnly) {
@@ -154,6 +166,17 @@ public class Darn {
       List<String> lines,
       Supplier<Kernel> kernelSupplier,
       MorelHighlighter highlighter) {
+    try (KernelPool kernelPool = new KernelPool(kernelSupplier)) {
+      return processLines(lines, kernelPool, highlighter);
+    }
+  }
+
+  /**
+   * As {@link #processLines(List, Supplier, MorelHighlighter)}, using kernels
+   * from a pool.
+   */
+  static ProcessResult processLines(
+      List<String> lines, KernelPool kernelPool, MorelHighlighter highlighter) {
     List<String> result = new ArrayList<>();
     int cellCount = 0;
     int executedCount = 0;
@@ -163,7 +186,8 @@ public class Darn {
     int i = 0;
     int n = lines.size();
 
-    // Map from environment name to the persistent kernel for that environment.
+    // Map from environment name to the kernel for that environment. The
+    // kernels belong to the pool, which resets each before its first use.
     Map<String, Kernel> kernels = new LinkedHashMap<>();
 
     while (i < n) {
@@ -236,7 +260,7 @@ public class Darn {
         executedCount++;
         @SuppressWarnings("resource")
         final Kernel kernel =
-            kernels.computeIfAbsent(attrs.env, k -> kernelSupplier.get());
+            kernels.computeIfAbsent(attrs.env, kernelPool::start);
         try {
           // Each segment may contain multiple statements. Split on ';'-
           // terminated lines so output stays paired with its code, and
@@ -285,7 +309,6 @@ public class Darn {
       }
     }
 
-    kernels.values().forEach(Kernel::close);
     return new ProcessResult(
         result,
         cellCount,
@@ -788,6 +811,55 @@ public class Darn {
     }
   }
 
+  /**
+   * Kernels that persist between weaves, one for each environment name.
+   *
+   * <p>A weave resets a kernel before executing its first cell in that
+   * environment, so the result is the same as with a new kernel, except as
+   * noted in {@link Kernel#reset()}.
+   *
+   * <p>If {@code replay} is true, kernels remember the cells they have
+   * executed, so if a document is woven again after an edit, only edited cells
+   * and the cells that use names they define are executed; the others are
+   * replayed. Replay is only valid if the document's cells have no side effects
+   * and do not depend on the time, so it is off by default.
+   */
+  public static class KernelPool implements AutoCloseable {
+    private final Supplier<Kernel> kernelSupplier;
+    private final boolean replay;
+    private final Map<String, Kernel> kernels = new LinkedHashMap<>();
+
+    /** Creates a pool that creates kernels using a supplier. */
+    public KernelPool(Supplier<Kernel> kernelSupplier, boolean replay) {
+      this.kernelSupplier = requireNonNull(kernelSupplier);
+      this.replay = replay;
+    }
+
+    /** Creates a pool whose kernels do not replay cells. */
+    public KernelPool(Supplier<Kernel> kernelSupplier) {
+      this(kernelSupplier, false);
+    }
+
+    /** Returns the kernel for an environment, in its initial state. */
+    Kernel start(String env) {
+      Kernel kernel = kernels.get(env);
+      if (kernel == null) {
+        kernel = kernelSupplier.get();
+        kernel.setReplay(replay);
+        kernels.put(env, kernel);
+      } else {
+        kernel.reset();
+      }
+      return kernel;
+    }
+
+    @Override
+    public void close() {
+      kernels.values().forEach(Kernel::close);
+      kernels.clear();
+    }
+  }
+
   /** Result of processing a document file. */
   static class ProcessResult {
     final List<String> lines;
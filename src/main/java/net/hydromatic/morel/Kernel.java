@@ -20,12 +20,17 @@ package net.hydromatic.morel;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import net.hydromatic.morel.type.Type;
 
 /**
  * A persistent, stateful Morel execution environment.
  *
  * <p>Each call to {@link #execute} runs only the new cell's code; bindings
  * accumulated from prior calls are automatically available.
+ *
+ * <p>Code that is to be run many times with different values can be compiled
+ * once using {@link #prepare}, and run using {@link #execute(Prepared, Map)}.
  */
 public interface Kernel extends AutoCloseable {
   /**
@@ -34,8 +39,67 @@ public interface Kernel extends AutoCloseable {
    */
   List<String> execute(String code) throws IOException;
 
+  /**
+   * Discards the bindings and property values set by previous calls.
+   *
+   * <p>The kernel's type system and name generator are not reset, so that the
+   * bindings that it replays (see {@link #setReplay(boolean)}) remain valid.
+   * Thus a reset kernel differs from a new kernel in one respect: code may
+   * refer to a type that was declared before the reset, whereas in a new kernel
+   * it would get an error.
+   */
+  void reset();
+
+  /**
+   * Sets whether the kernel replays code it has executed before.
+   *
+   * <p>If true, the kernel remembers the effect of each call to {@link
+   * #execute(String)}. If the same code is executed again in an environment
+   * where the names it uses have the same bindings, the kernel replays the
+   * output and bindings rather than executing the code again. This is only
+   * valid if the code has no side effects and does not depend on the time or
+   * other external state; so it is off by default.
+   */
+  void setReplay(boolean replay);
+
+  /**
+   * Compiles an expression whose free variables include the given parameters.
+   *
+   * <p>The types of the parameters are deduced from how the expression uses
+   * them; if a type cannot be deduced, add a type annotation, as in {@code (x :
+   * int) + 1}. The expression may also use bindings defined by previous calls
+   * to {@link #execute(String)}.
+   *
+   * @param code Expression, optionally followed by a semicolon
+   * @param parameterNames Names of parameters
+   * @throws net.hydromatic.morel.util.MorelException if the expression is
+   *     invalid
+   */
+  Prepared prepare(String code, List<String> parameterNames);
+
+  /**
+   * Executes a prepared expression with the given parameter values, and returns
+   * the lines of captured output.
+   *
+   * <p>Values must have the runtime representation of the parameter's type; for
+   * example, {@link Integer} for {@code int} and {@link List} for {@code list}
+   * and record types. Executing does not add bindings to the kernel.
+   *
+   * @throws IllegalArgumentException if a parameter has no value
+   */
+  List<String> execute(Prepared prepared, Map<String, Object> parameterValues);
+
   @Override
   void close();
+
+  /** Expression that has been compiled by {@link #prepare}. */
+  interface Prepared {
+    /** Returns the type of each parameter, in declaration order. */
+    Map<String, Type> parameterTypes();
+
+    /** Returns the type of the expression. */
+    Type type();
+  }
 }
 
 // End Kernel.java
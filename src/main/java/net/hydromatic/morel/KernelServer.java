@@ -0,0 +1,319 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sun.management.ThreadMXBean;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.hydromatic.morel.foreign.ForeignValue;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Server that runs many independent {@link Kernel}s concurrently, for example
+ * to host the notebooks of many users in one JVM.
+ *
+ * <p>Each session has its own kernel, and therefore its own {@link
+ * net.hydromatic.morel.eval.Session}, type system and bindings. What is
+ * immutable is shared: the built-in types and environment (computed once per
+ * JVM), and the foreign values, such as Calcite schemas, given to the server.
+ *
+ * <p>Requests for a session are executed one at a time, in the order they are
+ * submitted; requests for different sessions run in parallel. Requests run on a
+ * pool of platform threads, one per available processor, or, if requested and
+ * if the JVM supports them (JDK 21 and later), on virtual threads. The JVM
+ * cannot measure the CPU time and allocations of a virtual thread, so on
+ * virtual threads those {@link Stats statistics} are -1.
+ *
+ * <p>The server keeps {@link Stats statistics} of each session's use of time
+ * and memory.
+ */
+public class KernelServer implements AutoCloseable {
+  private final Map<String, ForeignValue> valueMap;
+  private final ExecutorService executor;
+  private final Map<String, ServerSession> sessions = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  /** Thread bean that can measure allocations, or null if the JVM has none. */
+  private static final @Nullable ThreadMXBean THREAD_MX_BEAN =
+      ManagementFactory.getThreadMXBean() instanceof ThreadMXBean
+          ? (ThreadMXBean) ManagementFactory.getThreadMXBean()
+          : null;
+
+  /**
+   * Creates a server whose sessions can see the given foreign values, and whose
+   * requests run on platform threads.
+   */
+  public KernelServer(Map<String, ForeignValue> valueMap) {
+    this(valueMap, false);
+  }
+
+  /**
+   * Creates a server whose sessions can see the given foreign values.
+   *
+   * @param valueMap Foreign values
+   * @param virtualThreads Whether to run requests on virtual threads, if the
+   *     JVM supports them
+   */
+  public KernelServer(
+      Map<String, ForeignValue> valueMap, boolean virtualThreads) {
+    this.valueMap = ImmutableMap.copyOf(valueMap);
+    this.executor = createExecutor(virtualThreads);
+  }
+
+  /**
+   * Creates an executor that runs each task on a new virtual thread (if
+   * requested and if the JVM supports virtual threads), or otherwise on a fixed
+   * pool of daemon threads. Requests are CPU-bound, so more threads than
+   * processors would not make them finish sooner.
+   */
+  private static ExecutorService createExecutor(boolean virtualThreads) {
+    try {
+      if (virtualThreads) {
+        return (ExecutorService)
+            Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+      }
+    } catch (ReflectiveOperationException e) {
+      // The JVM does not support virtual threads; use platform threads.
+    }
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ThreadFactory threadFactory =
+        runnable -> {
+          final Thread thread =
+              new Thread(
+                  runnable, "morel-kernel-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        };
+    return Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), threadFactory);
+  }
+
+  /** Opens a session, and returns its identifier. */
+  public String open() {
+    final String id = "s" + nextId.incrementAndGet();
+    sessions.put(id, new ServerSession(Main.kernel(valueMap)));
+    return id;
+  }
+
+  /** Returns the identifiers of the open sessions. */
+  public List<String> sessionIds() {
+    return ImmutableList.copyOf(sessions.keySet());
+  }
+
+  /**
+   * Submits code to be executed in a session; returns a future that will
+   * contain the lines of output.
+   *
+   * @throws IllegalArgumentException if there is no such session, or if it is
+   *     closing
+   */
+  public CompletableFuture<List<String>> execute(String id, String code) {
+    final ServerSession session = session(id);
+    synchronized (session) {
+      if (session.closed) {
+        // close(id) removed the session after we looked it up.
+        throw new IllegalArgumentException("no such session: " + id);
+      }
+      final CompletableFuture<List<String>> future =
+          session
+              .tail
+              .handle((result, throwable) -> null)
+              .thenApplyAsync(ignore -> session.execute(code), executor);
+      session.tail = future;
+      return future;
+    }
+  }
+
+  /**
+   * Returns statistics for a session.
+   *
+   * @throws IllegalArgumentException if there is no such session
+   */
+  public Stats stats(String id) {
+    return session(id).stats();
+  }
+
+  /**
+   * Closes a session. Requests that have been submitted are executed first.
+   *
+   * @throws IllegalArgumentException if there is no such session
+   */
+  public void close(String id) {
+    final ServerSession session = sessions.remove(id);
+    if (session == null) {
+      throw new IllegalArgumentException("no such session: " + id);
+    }
+    final CompletableFuture<?> tail;
+    synchronized (session) {
+      session.closed = true;
+      tail = session.tail;
+    }
+    tail.handle((result, throwable) -> null).join();
+    session.kernel.close();
+  }
+
+  /** Closes all sessions and stops the server. */
+  @Override
+  public void close() {
+    for (String id : sessionIds()) {
+      close(id);
+    }
+    executor.shutdown();
+  }
+
+  private ServerSession session(String id) {
+    final ServerSession session = sessions.get(id);
+    if (session == null) {
+      throw new IllegalArgumentException("no such session: " + id);
+    }
+    return session;
+  }
+
+  /** A session, and its statistics. */
+  private static class ServerSession {
+    final Kernel kernel;
+    /** Future of the most recently submitted request; guarded by this. */
+    CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+    /**
+     * Whether the session is closing, and rejects requests; guarded by this.
+     */
+    boolean closed;
+
+    // Statistics. Requests execute one at a time, so there is only one writer;
+    // volatile is enough for readers to see the latest values.
+    volatile int executeCount;
+    volatile long elapsedNanos;
+    volatile long cpuNanos = -1;
+    volatile long allocatedBytes = -1;
+
+    ServerSession(Kernel kernel) {
+      this.kernel = requireNonNull(kernel);
+    }
+
+    List<String> execute(String code) {
+      final long cpu0 = threadCpuTime();
+      final long allocated0 = threadAllocatedBytes();
+      final long start = System.nanoTime();
+      try {
+        return kernel.execute(code);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        elapsedNanos += System.nanoTime() - start;
+        final long cpu1 = threadCpuTime();
+        if (cpu0 >= 0 && cpu1 >= 0) {
+          cpuNanos = Math.max(cpuNanos, 0) + cpu1 - cpu0;
+        }
+        final long allocated1 = threadAllocatedBytes();
+        if (allocated0 >= 0 && allocated1 >= 0) {
+          allocatedBytes =
+              Math.max(allocatedBytes, 0) + allocated1 - allocated0;
+        }
+        ++executeCount;
+      }
+    }
+
+    Stats stats() {
+      return new Stats(executeCount, elapsedNanos, cpuNanos, allocatedBytes);
+    }
+
+    /**
+     * Returns the CPU time used by the current thread, or -1 if the JVM cannot
+     * measure it (for example, because the thread is virtual).
+     */
+    private static long threadCpuTime() {
+      if (THREAD_MX_BEAN == null) {
+        return -1;
+      }
+      try {
+        return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+            ? THREAD_MX_BEAN.getCurrentThreadCpuTime()
+            : -1;
+      } catch (UnsupportedOperationException e) {
+        return -1;
+      }
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread, or -1 if the
+     * JVM cannot measure it.
+     */
+    private static long threadAllocatedBytes() {
+      if (THREAD_MX_BEAN == null) {
+        return -1;
+      }
+      try {
+        return THREAD_MX_BEAN.isThreadAllocatedMemorySupported()
+                && THREAD_MX_BEAN.isThreadAllocatedMemoryEnabled()
+            ? THREAD_MX_BEAN.getThreadAllocatedBytes(
+                Thread.currentThread().getId())
+            : -1;
+      } catch (UnsupportedOperationException e) {
+        return -1;
+      }
+    }
+  }
+
+  /** Statistics of a session. */
+  public static class Stats {
+    /** Number of requests executed. */
+    public final int executeCount;
+    /** Total elapsed time of requests, in nanoseconds. */
+    public final long elapsedNanos;
+    /** Total CPU time of requests, in nanoseconds; -1 if not measured. */
+    public final long cpuNanos;
+    /** Total memory allocated by requests, in bytes; -1 if not measured. */
+    public final long allocatedBytes;
+
+    Stats(
+        int executeCount,
+        long elapsedNanos,
+        long cpuNanos,
+        long allocatedBytes) {
+      this.executeCount = executeCount;
+      this.elapsedNanos = elapsedNanos;
+      this.cpuNanos = cpuNanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "executeCount=%d, elapsedNanos=%d, cpuNanos=%d, allocatedBytes=%d",
+          executeCount, elapsedNanos, cpuNanos, allocatedBytes);
+    }
+  }
+}
+
+// End KernelServer.java
@@ -30,7 +30,6 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -42,7 +41,9 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
@@ -50,15 +51,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
+import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.ast.AstNode;
 import net.hydromatic.morel.ast.Pos;
+import net.hydromatic.morel.compile.CellCache;
 import net.hydromatic.morel.compile.CompileException;
 import net.hydromatic.morel.compile.CompiledStatement;
 import net.hydromatic.morel.compile.Compiles;
+import net.hydromatic.morel.compile.CoreCache;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.compile.Environments;
 import net.hydromatic.morel.compile.OutputMatcher;
+import net.hydromatic.morel.compile.ParallelCompiler;
 import net.hydromatic.morel.compile.Tracer;
 import net.hydromatic.morel.compile.Tracers;
 import net.hydromatic.morel.eval.Codes;
@@ -150,14 +157,16 @@ public class Main {
       boolean darnProbe = subCommand.equals("darn-probe");
       boolean verbose = argList.contains("--verbose");
       boolean anyChanges = false;
-      for (String arg : argList) {
-        if (!arg.startsWith("--")) {
-          if (darnProbe) {
-            Darn.probe(new File(arg), System.out, () -> kernel(valueMap));
-          } else {
-            anyChanges |=
-                Darn.process(
-                    new File(arg), darnVerify, () -> kernel(valueMap), verbose);
+      try (Darn.KernelPool kernelPool =
+          new Darn.KernelPool(() -> kernel(valueMap))) {
+        for (String arg : argList) {
+          if (!arg.startsWith("--")) {
+            if (darnProbe) {
+              Darn.probe(new File(arg), System.out, () -> kernel(valueMap));
+            } else {
+              anyChanges |=
+                  Darn.process(new File(arg), darnVerify, kernelPool, verbose);
+            }
           }
         }
       }
@@ -489,7 +498,8 @@ public class Main {
     session.withShell(
         shell,
         outLines,
-        session1 -> shell.run(session1, in, echoLines, outLines));
+        session1 ->
+            shell.run(session1, in, echoLines, outLines, true, null, null));
     out.flush();
   }
 
@@ -548,18 +558,56 @@ public class Main {
       this.bindingMap = bindingMap;
     }
 
+    /**
+     * Reads statements and executes them.
+     *
+     * <p>If {@code wholeInput} is true, the input is a file rather than an
+     * interactive session, so it is acceptable to read all statements before
+     * executing any. If also {@link Prop#COMPILE_THREADS} is greater than 1,
+     * independent statements are compiled concurrently.
+     *
+     * <p>If {@code recorder} is not null, it is told about each statement that
+     * is executed, so that the effect of executing a cell can be cached.
+     *
+     * <p>If {@code coreCacheUse} is not null, statements are converted to Core
+     * via the on-disk cache, one at a time.
+     */
     void run(
         Session session,
         BufferingReader in2,
         Consumer<String> echoLines,
-        Consumer<String> outLines) {
+        Consumer<String> outLines,
+        boolean wholeInput,
+        CellCache.@Nullable Recorder recorder,
+        CoreCache.@Nullable Use coreCacheUse) {
       final MorelParserImpl parser = new MorelParserImpl(in2);
       final LineConsumer lineConsumer =
           main.idempotent
               ? new BufferingLineConsumer(outLines)
               : new DirectLineConsumer(outLines);
       final SubShell subShell =
-          new SubShell(main, echoLines, lineConsumer, bindingMap, env0);
+          new SubShell(
+              main,
+              echoLines,
+              lineConsumer,
+              bindingMap,
+              env0,
+              recorder,
+              coreCacheUse);
+
+      // If compiling concurrently, record commands, and execute them once all
+      // statements have been read; otherwise execute each command as soon as
+      // it is read.
+      final int compileThreads = compileThreads();
+      final @Nullable List<Command> commands =
+          wholeInput
+                  && compileThreads > 1
+                  && main.tracer == Tracers.empty()
+                  && coreCacheUse == null
+              ? new ArrayList<>()
+              : null;
+      final Consumer<Command> commandConsumer =
+          commands != null ? commands::add : Command::run;
       for (; ; ) {
         try {
           Pos pos = parser.nextTokenPos();
@@ -585,26 +633,40 @@ public class Main {
                     .replace("(*TYPE_ONLY*)", ":t ");
           }
           if (main.echo) {
-            echoLines.accept(code);
+            final String code2 = code;
+            commandConsumer.accept(Command.of(() -> echoLines.accept(code2)));
           }
           if (statement == null) {
             break;
           }
-          session.withShell(
-              subShell,
-              outLines,
-              session1 ->
-                  subShell.command(
-                      statement, lineConsumer, typeOnly, expectedOutput));
+          commandConsumer.accept(
+              new Command(
+                  statement,
+                  compilation ->
+                      session.withShell(
+                          subShell,
+                          outLines,
+                          session1 ->
+                              subShell.command(
+                                  statement,
+                                  lineConsumer,
+                                  typeOnly,
+                                  expectedOutput,
+                                  compilation))));
         } catch (MorelParseException | CompileException e) {
           if (e.getMessage().startsWith("Encountered \"<EOF>\" ")) {
             break;
           }
           String code = in2.flush();
-          if (main.echo) {
-            outLines.accept(code);
-          }
-          outLines.accept(e.description());
+          final String description = e.description();
+          commandConsumer.accept(
+              Command.of(
+                  () -> {
+                    if (main.echo) {
+                      outLines.accept(code);
+                    }
+                    outLines.accept(description);
+                  }));
           if (code.isEmpty()) {
             // If we consumed no input, we're not making progress, so we'll
             // never finish. Abort.
@@ -612,6 +674,78 @@ public class Main {
           }
         }
       }
+      if (commands != null) {
+        runCommands(commands, subShell, compileThreads);
+      }
+    }
+
+    /** Returns the number of threads that may compile statements. */
+    private int compileThreads() {
+      final int compileThreads =
+          Prop.COMPILE_THREADS.intValue(main.session.map);
+      return compileThreads == 0
+          ? Runtime.getRuntime().availableProcessors()
+          : compileThreads;
+    }
+
+    /**
+     * Executes commands in order. Before executing a statement that has not
+     * been compiled, compiles it and the statements after it that form a batch.
+     */
+    private void runCommands(
+        List<Command> commands, SubShell subShell, int compileThreads) {
+      final ExecutorService executor =
+          Executors.newFixedThreadPool(compileThreads);
+      try {
+        for (int i = 0; i < commands.size(); i++) {
+          final Command command = commands.get(i);
+          if (command.statement != null && command.compilation == null) {
+            compileBatch(
+                commands.subList(i, commands.size()), subShell, executor);
+          }
+          command.run();
+        }
+      } finally {
+        executor.shutdown();
+      }
+    }
+
+    /**
+     * Compiles, concurrently, the statements of the batch at the start of a
+     * list of commands. Commands that are not statements (such as echoing code)
+     * do not end the batch.
+     */
+    private void compileBatch(
+        List<Command> commands, SubShell subShell, ExecutorService executor) {
+      final List<Command> statementCommands = new ArrayList<>();
+      final List<AstNode> statements = new ArrayList<>();
+      for (Command command : commands) {
+        if (command.statement != null) {
+          statementCommands.add(command);
+          statements.add(command.statement);
+        }
+      }
+      final Environment env = subShell.env();
+      final int n = ParallelCompiler.batchSize(env, statements);
+      if (n < 2) {
+        // Nothing to gain; compile the statement when it is executed.
+        return;
+      }
+      final List<ParallelCompiler.Compilation> compilations =
+          ParallelCompiler.compile(
+              executor,
+              main.typeSystem,
+              main.session,
+              env,
+              statements.subList(0, n));
+      for (int i = 0; i < n; i++) {
+        statementCommands.get(i).compilation = compilations.get(i);
+      }
+    }
+
+    /** Returns the environment in which the next statement will run. */
+    Environment env() {
+      return env0.bindAll(bindingMap.values());
     }
 
     @Override
@@ -707,14 +841,20 @@ public class Main {
    * is a file, and its output is to the same output as its parent shell.
    */
   static class SubShell extends Shell {
+    private final CellCache.@Nullable Recorder recorder;
+    private final CoreCache.@Nullable Use coreCacheUse;
 
     SubShell(
         Main main,
         Consumer<String> echoLines,
         Consumer<String> outLines,
         Multimap<String, Binding> outBindings,
-        Environment env0) {
+        Environment env0,
+        CellCache.@Nullable Recorder recorder,
+        CoreCache.@Nullable Use coreCacheUse) {
       super(main, env0, echoLines, outLines, outBindings);
+      this.recorder = recorder;
+      this.coreCacheUse = coreCacheUse;
     }
 
     @Override
@@ -737,14 +877,31 @@ public class Main {
       }
       final Consumer<String> echoLines2 = silent ? line -> {} : echoLines;
       final Consumer<String> outLines2 = silent ? line -> {} : outLines;
-      try (FileReader in = new FileReader(file);
-          Reader bufferedReader =
-              buffer(main.idempotent ? stripOutLines(in) : in)) {
-        run(
-            main.session,
-            new BufferingReader(bufferedReader),
-            echoLines2,
-            outLines2);
+      try {
+        // If this file has been used before, in this or (if a cache directory
+        // is set) another session, the Core form of its statements may have
+        // been saved. The statements are still evaluated.
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final CoreCache.@Nullable Use coreCacheUse =
+            CoreCache.use(content, main.idempotent, main.session);
+        try (Reader in =
+                new InputStreamReader(
+                    new ByteArrayInputStream(content),
+                    Charset.defaultCharset());
+            Reader bufferedReader =
+                buffer(main.idempotent ? stripOutLines(in) : in)) {
+          run(
+              main.session,
+              new BufferingReader(bufferedReader),
+              echoLines2,
+              outLines2,
+              true,
+              null,
+              coreCacheUse);
+        }
+        if (coreCacheUse != null) {
+          coreCacheUse.finish();
+        }
       } catch (IOException e) {
         e.printStackTrace();
       }
@@ -754,7 +911,8 @@ public class Main {
         AstNode statement,
         LineConsumer outLines,
         boolean typeOnly,
-        @Nullable String expectedOutput) {
+        @Nullable String expectedOutput,
+        ParallelCompiler.@Nullable Compilation compilation) {
       // In a script, buffer the output of every statement, and emit it below
       // whether or not the script gave the statement an expected output. (A
       // statement that has none must still be echoed; otherwise a script
@@ -764,19 +922,32 @@ public class Main {
       if (buffered) {
         outLines.start();
       }
+      if (recorder != null) {
+        recorder.statement(statement);
+      }
 
       try {
-        final Environment env = env0.bindAll(bindingMap.values());
+        final Environment env = env();
         final Tracer tracer = main.tracer;
         final CompiledStatement compiled =
-            Compiles.prepareStatement(
-                main.typeSystem,
-                main.session,
-                env,
-                statement,
-                null,
-                e -> appendToOutput(e, outLines),
-                tracer);
+            compilation != null
+                ? compilation.get(
+                    main.session, e -> appendToOutput(e, outLines))
+                : coreCacheUse != null
+                    ? coreCacheUse.prepare(
+                        main.typeSystem,
+                        env,
+                        statement,
+                        e -> appendToOutput(e, outLines),
+                        tracer)
+                    : Compiles.prepareStatement(
+                        main.typeSystem,
+                        main.session,
+                        env,
+                        statement,
+                        null,
+                        e -> appendToOutput(e, outLines),
+                        tracer);
         final List<Binding> bindings = new ArrayList<>();
         if (typeOnly) {
           // For type-only mode, get bindings without evaluation
@@ -814,6 +985,9 @@ public class Main {
             bindingMap.put(binding.id.name, binding);
           }
         }
+        if (recorder != null) {
+          recorder.succeeded();
+        }
       } catch (Codes.MorelRuntimeException e) {
         appendToOutput(e, outLines);
         if (buffered) {
@@ -931,6 +1105,12 @@ public class Main {
   /** Implementation of {@link Kernel}. */
   private static class KernelImpl implements Kernel {
     private final Shell shell;
+    /** Property values when the kernel was created, restored by reset. */
+    private final Map<Prop, Object> initialProps;
+    /** Effects of cells executed by this kernel, if replay is enabled. */
+    private final CellCache cellCache = new CellCache();
+
+    private boolean replay;
 
     KernelImpl(Map<String, ForeignValue> valueMap) {
       final Main main =
@@ -947,6 +1127,7 @@ public class Main {
           ArrayListMultimap.create(100, 2);
       final Consumer<String> noOp = line -> {};
       shell = new Shell(main, env, noOp, noOp, bindingMap);
+      initialProps = new LinkedHashMap<>(main.session.map);
     }
 
     @Override
@@ -957,16 +1138,132 @@ public class Main {
       final List<String> lines = new ArrayList<>();
       final Consumer<String> capture = lines::add;
       final byte[] inputBytes = code.getBytes(StandardCharsets.UTF_8);
+      final Session session = shell.main.session;
       final BufferingReader reader =
           new BufferingReader(
               new BufferedReader(
                   new InputStreamReader(
                       new ByteArrayInputStream(inputBytes),
                       StandardCharsets.UTF_8)));
+      if (!replay) {
+        session.withShell(
+            shell,
+            capture,
+            session1 ->
+                shell.run(
+                    session1, reader, capture, capture, false, null, null));
+        return ImmutableList.copyOf(lines);
+      }
+
+      // If this code has been executed before, in an equivalent environment,
+      // replay its output and bindings.
+      final TypeSystem typeSystem = shell.main.typeSystem;
+      final Environment env = shell.env();
+      final CellCache.Key key = CellCache.key(inputBytes, session.map);
+      final CellCache.@Nullable Entry entry =
+          cellCache.get(key, typeSystem, env);
+      if (entry != null) {
+        entry.replay(session, capture, capture, shell.bindingMap);
+        return ImmutableList.copyOf(lines);
+      }
+
+      final CellCache.Recorder recorder =
+          new CellCache.Recorder(key, typeSystem, env);
+      session.withShell(
+          shell,
+          capture,
+          session1 ->
+              shell.run(
+                  session1,
+                  reader,
+                  recorder.echoLines(capture),
+                  recorder.outLines(capture),
+                  false,
+                  recorder,
+                  null));
+      recorder.finish(cellCache, session, shell.bindingMap);
+      return ImmutableList.copyOf(lines);
+    }
+
+    @Override
+    public void reset() {
+      shell.bindingMap.clear();
+      shell.main.session.map.clear();
+      shell.main.session.map.putAll(initialProps);
+    }
+
+    @Override
+    public void setReplay(boolean replay) {
+      this.replay = replay;
+    }
+
+    @Override
+    public Prepared prepare(String code, List<String> parameterNames) {
+      String trimmed = code.trim();
+      if (trimmed.endsWith(";")) {
+        trimmed = trimmed.substring(0, trimmed.length() - 1);
+      }
+      final MorelParserImpl parser =
+          new MorelParserImpl(new StringReader(trimmed));
+      parser.zero("stdIn");
+      final AstNode statement = parser.statementEofSafe();
+      if (!(statement instanceof Ast.Exp)) {
+        throw new IllegalArgumentException("not an expression: " + code);
+      }
+
+      // Deduce the types of the parameters, then compile the expression in an
+      // environment where each parameter is bound to a placeholder. The
+      // placeholders are replaced by values each time the statement runs.
+      final Main main = shell.main;
+      final Environment env = shell.env();
+      final List<String> warnings = new ArrayList<>();
+      final Consumer<CompileException> warningConsumer =
+          e -> {
+            final StringBuilder buf = new StringBuilder();
+            shell.handle(e, buf);
+            warnings.add(buf.toString());
+          };
+      final List<Binding> parameters =
+          Compiles.parameterBindings(
+              main.typeSystem,
+              env,
+              (Ast.Exp) statement,
+              parameterNames,
+              warningConsumer);
+      final CompiledStatement compiled =
+          Compiles.prepareStatement(
+              main.typeSystem,
+              main.session,
+              env.bindAll(parameters),
+              statement,
+              null,
+              warningConsumer,
+              main.tracer);
+      return new PreparedImpl(env, parameters, compiled, warnings);
+    }
+
+    @Override
+    public List<String> execute(
+        Prepared prepared, Map<String, Object> parameterValues) {
+      final PreparedImpl preparedImpl = (PreparedImpl) prepared;
+      Environment env = preparedImpl.env;
+      for (Binding parameter : preparedImpl.parameters) {
+        final Object value = parameterValues.get(parameter.id.name);
+        if (value == null) {
+          throw new IllegalArgumentException(
+              "no value for parameter '" + parameter.id.name + "'");
+        }
+        env = env.bindAll(ImmutableList.of(parameter.withValue(value)));
+      }
+      final Environment env1 = env;
+      final List<String> lines = new ArrayList<>(preparedImpl.warnings);
+      final Consumer<String> capture = lines::add;
       shell.main.session.withShell(
           shell,
           capture,
-          session -> shell.run(session, reader, capture, capture));
+          session ->
+              preparedImpl.compiled.eval(
+                  session, env1, capture, binding -> {}));
       return ImmutableList.copyOf(lines);
     }
 
@@ -976,6 +1273,71 @@ public class Main {
     }
   }
 
+  /** Implementation of {@link Kernel.Prepared}. */
+  private static class PreparedImpl implements Kernel.Prepared {
+    /** Environment when the expression was prepared, without parameters. */
+    final Environment env;
+    /** Parameter bindings; each has a type but no value. */
+    final ImmutableList<Binding> parameters;
+
+    final CompiledStatement compiled;
+    /** Warnings from compilation, emitted each time the statement runs. */
+    final ImmutableList<String> warnings;
+
+    PreparedImpl(
+        Environment env,
+        List<Binding> parameters,
+        CompiledStatement compiled,
+        List<String> warnings) {
+      this.env = requireNonNull(env);
+      this.parameters = ImmutableList.copyOf(parameters);
+      this.compiled = requireNonNull(compiled);
+      this.warnings = ImmutableList.copyOf(warnings);
+    }
+
+    @Override
+    public Map<String, Type> parameterTypes() {
+      final ImmutableMap.Builder<String, Type> b = ImmutableMap.builder();
+      parameters.forEach(p -> b.put(p.id.name, p.id.type));
+      return b.build();
+    }
+
+    @Override
+    public Type type() {
+      return compiled.getType();
+    }
+  }
+
+  /**
+   * Something that a shell does after reading some input: execute a statement,
+   * or emit some lines.
+   */
+  private static class Command {
+    /** Statement, or null if the command only emits lines. */
+    final @Nullable AstNode statement;
+
+    final Consumer<ParallelCompiler.@Nullable Compilation> action;
+
+    /** Result of compiling the statement in advance, or null. */
+    ParallelCompiler.@Nullable Compilation compilation;
+
+    Command(
+        @Nullable AstNode statement,
+        Consumer<ParallelCompiler.@Nullable Compilation> action) {
+      this.statement = statement;
+      this.action = requireNonNull(action);
+    }
+
+    /** Creates a command that does not execute a statement. */
+    static Command of(Runnable runnable) {
+      return new Command(null, compilation -> runnable.run());
+    }
+
+    void run() {
+      action.accept(compilation);
+    }
+  }
+
   /** Can consume output lines. */
   interface LineConsumer extends Consumer<String> {
     /** Starts recording output lines. */
@@ -598,6 +598,10 @@ public enum CoreBuilder {
     return new Core.Fn(exp.pos, type, idPat, exp);
   }
 
+  public Core.Fn fn(Pos pos, FnType type, Core.IdPat idPat, Core.Exp exp) {
+    return new Core.Fn(pos, type, idPat, exp);
+  }
+
   public Core.Fn fn(
       Pos pos,
       FnType type,
@@ -25,18 +25,23 @@ import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import net.hydromatic.morel.ast.AstNode;
 import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.type.Binding;
 import net.hydromatic.morel.type.TypeSystem;
 
 /** Shuttle that counts how many times each expression is used. */
 public class Analyzer extends EnvVisitor {
   private final Map<Core.NamedPat, MutableUse> map;
+  private final Memo memo;
 
   /** Creates an Analyzer. */
-  private static Analyzer of(TypeSystem typeSystem, Environment env) {
-    return new Analyzer(typeSystem, env, new HashMap<>(), new ArrayDeque<>());
+  private static Analyzer of(
+      TypeSystem typeSystem, Environment env, Memo memo) {
+    return new Analyzer(
+        typeSystem, env, new HashMap<>(), new ArrayDeque<>(), memo);
   }
 
   /** Private constructor. */
@@ -44,15 +49,29 @@ public class Analyzer extends EnvVisitor {
       TypeSystem typeSystem,
       Environment env,
       Map<Core.NamedPat, MutableUse> map,
-      Deque<FromContext> fromStack) {
+      Deque<FromContext> fromStack,
+      Memo memo) {
     super(typeSystem, env, fromStack);
     this.map = map;
+    this.memo = memo;
   }
 
   /** Analyzes an expression. */
   public static Analysis analyze(
       TypeSystem typeSystem, Environment env, AstNode node) {
-    final Analyzer analyzer = of(typeSystem, env);
+    return analyze(typeSystem, env, node, new Memo());
+  }
+
+  /**
+   * Analyzes an expression, re-using the uses counted in subtrees that were
+   * analyzed previously with the same memo.
+   *
+   * <p>Between optimizer passes, the parts of a tree that a pass did not change
+   * are the same objects, so only the changed parts are analyzed again.
+   */
+  public static Analysis analyze(
+      TypeSystem typeSystem, Environment env, AstNode node, Memo memo) {
+    final Analyzer analyzer = of(typeSystem, env, memo);
 
     // Mark all top-level bindings so that they will not be removed
     if (node instanceof Core.NonRecValDecl) {
@@ -71,7 +90,32 @@ public class Analyzer extends EnvVisitor {
 
   @Override
   protected Analyzer push(Environment env) {
-    return new Analyzer(typeSystem, env, map, fromStack);
+    return new Analyzer(typeSystem, env, map, fromStack, memo);
+  }
+
+  /**
+   * Visits the body of a function or value declaration. If it has been analyzed
+   * before, adds the memoized uses; otherwise analyzes it with an empty map,
+   * memoizes the result, and adds it.
+   *
+   * <p>This has the same effect as visiting the expression, because an analysis
+   * only increments counts and sets flags, and the uses of an expression do not
+   * depend on its context.
+   */
+  private void visitUnit(Core.Exp exp, Environment env) {
+    Map<Core.NamedPat, MutableUse> uses = memo.map.get(exp);
+    if (uses == null) {
+      uses = new HashMap<>();
+      exp.accept(new Analyzer(typeSystem, env, uses, fromStack, memo));
+      memo.map.put(exp, uses);
+    }
+    uses.forEach((id, use) -> use(id).add(use));
+  }
+
+  @Override
+  protected void visit(Core.Fn fn) {
+    fn.idPat.accept(this);
+    visitUnit(fn.exp, env.bind(Binding.of(fn.idPat)));
   }
 
   @Override
@@ -92,7 +136,8 @@ public class Analyzer extends EnvVisitor {
 
   @Override
   protected void visit(Core.NonRecValDecl valDecl) {
-    super.visit(valDecl);
+    valDecl.pat.accept(this);
+    visitUnit(valDecl.exp, env);
     if (isAtom(valDecl.exp)) {
       use(valDecl.pat).atomic = true;
     }
@@ -135,7 +180,7 @@ public class Analyzer extends EnvVisitor {
           HashMultimap.create();
       final Map<Core.NamedPat, MutableUse> subMap = new HashMap<>();
       final Analyzer analyzer =
-          new Analyzer(typeSystem, env, subMap, new ArrayDeque<>());
+          new Analyzer(typeSystem, env, subMap, new ArrayDeque<>(), memo);
       case_.matchList.forEach(
           e -> {
             subMap.clear();
@@ -238,6 +283,14 @@ public class Analyzer extends EnvVisitor {
     boolean parallel;
     int useCount;
 
+    /** Adds the counts and flags of another use to this. */
+    void add(MutableUse use) {
+      top |= use.top;
+      atomic |= use.atomic;
+      parallel |= use.parallel;
+      useCount += use.useCount;
+    }
+
     static int max(Collection<MutableUse> uses) {
       int max = 0;
       for (MutableUse use : uses) {
@@ -264,6 +317,16 @@ public class Analyzer extends EnvVisitor {
     }
   }
 
+  /**
+   * Uses counted in previously analyzed expressions, keyed by the identity of
+   * the expression. Core expressions are immutable, so an entry remains valid
+   * for as long as the memo is in use.
+   */
+  public static class Memo {
+    private final Map<Core.Exp, Map<Core.NamedPat, MutableUse>> map =
+        new IdentityHashMap<>();
+  }
+
   /** Result of an analysis. */
   public static class Analysis {
     public final ImmutableMap<Core.NamedPat, Use> map;
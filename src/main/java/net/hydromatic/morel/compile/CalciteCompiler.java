@@ -55,6 +55,7 @@ import net.hydromatic.morel.eval.Code;
 import net.hydromatic.morel.eval.Describer;
 import net.hydromatic.morel.eval.EvalEnv;
 import net.hydromatic.morel.eval.EvalEnvs;
+import net.hydromatic.morel.eval.Prop;
 import net.hydromatic.morel.eval.Session;
 import net.hydromatic.morel.eval.Stack;
 import net.hydromatic.morel.eval.Unit;
@@ -134,10 +135,24 @@ public class CalciteCompiler extends Compiler {
           .build();
 
   final Calcite calcite;
+  /**
+   * Maximum number of independent Calcite queries in a tuple or list that may
+   * run concurrently; see {@link Prop#HYBRID_THREADS}.
+   */
+  private final int hybridThreads;
 
   public CalciteCompiler(TypeSystem typeSystem, Calcite calcite) {
-    super(typeSystem);
+    this(typeSystem, calcite, 1, null);
+  }
+
+  public CalciteCompiler(
+      TypeSystem typeSystem,
+      Calcite calcite,
+      int hybridThreads,
+      @Nullable Session session) {
+    super(typeSystem, session);
     this.calcite = requireNonNull(calcite, "calcite");
+    this.hybridThreads = hybridThreads;
   }
 
   public @Nullable RelNode toRel(Environment env, Core.Exp expression) {
@@ -177,11 +192,31 @@ public class CalciteCompiler extends Compiler {
     return code;
   }
 
+  @Override
+  protected Code finishCompileTuple(
+      Context cx, List<Core.Exp> args, List<Code> codes) {
+    if (hybridThreads > 1 && !(cx instanceof RelContext)) {
+      // Convert each element that is a query to Calcite, and if at least two
+      // of them do not depend on Morel, run them concurrently.
+      final List<Code> codes2 = new ArrayList<>();
+      forEachIndexed(
+          codes,
+          (code, i) -> codes2.add(toRel4(cx.env, code, args.get(i).type)));
+      final @Nullable Code code = Calcite.parallelTuple(codes2, hybridThreads);
+      if (code != null) {
+        return code;
+      }
+    }
+    return super.finishCompileTuple(cx, args, codes);
+  }
+
   @Override
   protected CalciteFunctions.Context createContext(Environment env) {
-    final Session dummySession = new Session(ImmutableMap.of());
     return new CalciteFunctions.Context(
-        dummySession, env, typeSystem, calcite.dataContext.getTypeFactory());
+        contextSession(),
+        env,
+        typeSystem,
+        calcite.dataContext.getTypeFactory());
   }
 
   @Override
@@ -400,7 +435,7 @@ public class CalciteCompiler extends Compiler {
         ThreadLocals.let(
             CalciteFunctions.THREAD_CX,
             new CalciteFunctions.Context(
-                new Session(ImmutableMap.of()),
+                contextSession(),
                 cx.env,
                 typeSystem,
                 cx.relBuilder.getTypeFactory()),
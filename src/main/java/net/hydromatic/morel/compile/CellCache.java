@@ -0,0 +1,365 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimap;
+import com.google.common.hash.Hashing;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import net.hydromatic.morel.ast.Ast;
+import net.hydromatic.morel.ast.AstNode;
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.eval.Code;
+import net.hydromatic.morel.eval.Prop;
+import net.hydromatic.morel.eval.Session;
+import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.TypeSystem;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Cache of the effects of code executed by a {@link
+ * net.hydromatic.morel.Kernel} that has been asked to replay code, so that a
+ * cell that is run again does not need to be parsed, compiled and evaluated
+ * again.
+ *
+ * <p>The key of an entry is a SHA-256 hash of the cell's contents and the
+ * session's properties. An entry holds the lines that the cell echoed and
+ * printed, the bindings that it made, and a fingerprint: the bindings and
+ * types, in the environment in which the cell was executed, of each name that
+ * it uses before defining it, and of each type that it mentions. An entry is
+ * used only if the current environment has the same fingerprint (compared by
+ * identity, as in {@link StatementCache}).
+ *
+ * <p>Only cells whose statements could be compiled concurrently by {@link
+ * ParallelCompiler}, and which all executed without error, are cached. They
+ * declare no types and do not mention {@code Sys} or {@code use}, or values of
+ * progressive type. But their effect may depend on more than their text and the
+ * values that they use; a cell that calls {@code Time.now}, say, prints the
+ * time when it was first executed. So replaying is not the default; see {@link
+ * net.hydromatic.morel.Kernel#setReplay(boolean)}.
+ *
+ * <p>If a cell is edited, entries for the cells that follow it remain valid
+ * unless they use a name that it defines; so, when a notebook is run again,
+ * only edited cells and the cells that depend on them are executed.
+ *
+ * <p>Each kernel has its own cache, of at most {@link
+ * Prop#STATEMENT_CACHE_SIZE} entries. Entries cannot be shared between
+ * sessions, because the values are closures, which look up global names in the
+ * session that created them.
+ */
+public class CellCache {
+  private final Map<Key, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+  private int hitCount;
+
+  /** Returns the number of times a cell's results were found in the cache. */
+  public synchronized int hitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Creates the key for the contents of a cell.
+   *
+   * @param content Contents of the cell
+   * @param props Session properties
+   */
+  public static Key key(byte[] content, Map<Prop, Object> props) {
+    return new Key(
+        Hashing.sha256().hashBytes(content).toString(),
+        ImmutableMap.copyOf(props));
+  }
+
+  /**
+   * Returns the entry for a key, or null if there is none or if it was created
+   * in an environment with a different fingerprint.
+   */
+  public synchronized @Nullable Entry get(
+      Key key, TypeSystem typeSystem, Environment env) {
+    final Entry entry = map.get(key);
+    if (entry == null || !entry.matches(typeSystem, env)) {
+      return null;
+    }
+    ++hitCount;
+    return entry;
+  }
+
+  /**
+   * Adds an entry, then discards the least recently used entries until there
+   * are no more than {@code maxSize}.
+   */
+  synchronized void put(Key key, Entry entry, int maxSize) {
+    map.put(key, entry);
+    while (map.size() > maxSize) {
+      map.remove(map.keySet().iterator().next());
+    }
+  }
+
+  /** Key of a cache entry. */
+  public static class Key {
+    final String hash;
+    final ImmutableMap<Prop, Object> props;
+
+    Key(String hash, ImmutableMap<Prop, Object> props) {
+      this.hash = requireNonNull(hash);
+      this.props = requireNonNull(props);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(hash, props);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o == this
+          || o instanceof Key
+              && hash.equals(((Key) o).hash)
+              && props.equals(((Key) o).props);
+    }
+  }
+
+  /** Cache entry; the recorded effect of executing a cell. */
+  public static class Entry {
+    /** Names that the cell uses before it defines them. */
+    private final ImmutableList<String> names;
+    /**
+     * Binding of each name when the cell was executed; elements may be null.
+     */
+    private final @Nullable Object[] bindings;
+    /** Types mentioned by the cell. */
+    private final ImmutableList<String> typeNames;
+    /** Value of each type when the cell was executed; elements may be null. */
+    private final @Nullable Object[] types;
+    /** Lines echoed and printed; echoed lines are prefixed by {@code true}. */
+    private final ImmutableList<Map.Entry<Boolean, String>> lines;
+    /** Final bindings of each name that the cell defines. */
+    private final ImmutableMap<String, ImmutableList<Binding>> definitions;
+    /** Fields of the session that describe the cell's last statement. */
+    private final @Nullable Code code;
+
+    private final @Nullable List<String> out;
+    private final Core.@Nullable Decl coreDecl;
+    private final @Nullable Environment environment;
+
+    Entry(
+        List<String> names,
+        @Nullable Object[] bindings,
+        List<String> typeNames,
+        @Nullable Object[] types,
+        List<Map.Entry<Boolean, String>> lines,
+        Map<String, ImmutableList<Binding>> definitions,
+        Session session) {
+      this.names = ImmutableList.copyOf(names);
+      this.bindings = bindings;
+      this.typeNames = ImmutableList.copyOf(typeNames);
+      this.types = types;
+      this.lines = ImmutableList.copyOf(lines);
+      this.definitions = ImmutableMap.copyOf(definitions);
+      this.code = session.code;
+      this.out = session.out;
+      this.coreDecl = session.coreDecl;
+      this.environment = session.environment;
+    }
+
+    boolean matches(TypeSystem typeSystem, Environment env) {
+      for (int i = 0; i < names.size(); i++) {
+        if (env.getTop(names.get(i)) != bindings[i]) {
+          return false;
+        }
+      }
+      for (int i = 0; i < typeNames.size(); i++) {
+        if (typeSystem.lookupOpt(typeNames.get(i)) != types[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Replays the effect of executing the cell: sends its lines to the
+     * consumers, adds its bindings to a map, and restores the session's record
+     * of the last statement.
+     */
+    public void replay(
+        Session session,
+        Consumer<String> echoLines,
+        Consumer<String> outLines,
+        Multimap<String, Binding> bindingMap) {
+      for (Map.Entry<Boolean, String> line : lines) {
+        (line.getKey() ? echoLines : outLines).accept(line.getValue());
+      }
+      definitions.forEach(bindingMap::replaceValues);
+      session.code = code;
+      session.out = out;
+      session.coreDecl = coreDecl;
+      session.environment = environment;
+    }
+  }
+
+  /**
+   * Records the effect of executing a cell, to create a cache entry.
+   *
+   * <p>The shell calls {@link #statement} before it executes each statement of
+   * the cell, and {@link #succeeded} if the statement succeeds; sends output
+   * via {@link #echoLines} and {@link #outLines}; then calls {@link #finish}.
+   */
+  public static class Recorder {
+    private final Key key;
+    private final TypeSystem typeSystem;
+    private final Environment env;
+    /** Names used before the cell defines them. */
+    private final TreeSet<String> names = new TreeSet<>();
+
+    private final TreeSet<String> definedNames = new TreeSet<>();
+    private final TreeSet<String> typeNames = new TreeSet<>();
+    private final List<Map.Entry<Boolean, String>> lines = new ArrayList<>();
+    private boolean cacheable = true;
+    private int statementCount;
+    private int successCount;
+
+    /**
+     * Creates a recorder.
+     *
+     * @param key Key of the entry to create
+     * @param typeSystem Type system
+     * @param env Environment in which the cell is executed
+     */
+    public Recorder(Key key, TypeSystem typeSystem, Environment env) {
+      this.key = requireNonNull(key);
+      this.typeSystem = requireNonNull(typeSystem);
+      this.env = requireNonNull(env);
+    }
+
+    /** Notes a statement of the cell that is about to be executed. */
+    public void statement(AstNode statement) {
+      ++statementCount;
+      final ParallelCompiler.@Nullable Names statementNames =
+          ParallelCompiler.names(env, statement);
+      if (statementNames == null) {
+        cacheable = false;
+        return;
+      }
+      // The names that the statement uses. A name that a recursive
+      // declaration ("fun f", "val rec f") defines refers to itself, not to a
+      // previous binding. But in "val x = x + 1", the "x" on the right, and in
+      // "it + 1", the "it", refer to previous bindings.
+      final Set<String> used = new TreeSet<>(statementNames.used);
+      AstNode node = statement;
+      while (node instanceof Ast.AttributedDecl) {
+        node = ((Ast.AttributedDecl) node).decl;
+      }
+      if (node instanceof Ast.ValDecl && !((Ast.ValDecl) node).rec) {
+        used.removeAll(statementNames.defined);
+        for (Ast.ValBind valBind : ((Ast.ValDecl) node).valBinds) {
+          final StatementCache.NameCollector collector =
+              new StatementCache.NameCollector();
+          valBind.exp.accept(collector);
+          used.addAll(collector.names);
+        }
+      } else if (!(node instanceof Ast.Exp)) {
+        used.removeAll(statementNames.defined);
+      }
+      for (String name : used) {
+        if (!definedNames.contains(name)) {
+          names.add(name);
+        }
+      }
+      definedNames.addAll(statementNames.defined);
+      typeNames.addAll(statementNames.typeNames);
+    }
+
+    /** Notes that the current statement executed without error. */
+    public void succeeded() {
+      ++successCount;
+    }
+
+    /** Returns a consumer that records echoed lines and passes them on. */
+    public Consumer<String> echoLines(Consumer<String> consumer) {
+      return line -> {
+        lines.add(new AbstractMap.SimpleImmutableEntry<>(true, line));
+        consumer.accept(line);
+      };
+    }
+
+    /** Returns a consumer that records printed lines and passes them on. */
+    public Consumer<String> outLines(Consumer<String> consumer) {
+      return line -> {
+        lines.add(new AbstractMap.SimpleImmutableEntry<>(false, line));
+        consumer.accept(line);
+      };
+    }
+
+    /**
+     * Called when the cell has been executed; adds an entry to the cache if
+     * every statement was cacheable and executed without error.
+     *
+     * @param cache Cache that will hold the entry
+     * @param session Session in which the cell was executed
+     * @param bindingMap Bindings after executing the cell
+     */
+    public void finish(
+        CellCache cache,
+        Session session,
+        Multimap<String, Binding> bindingMap) {
+      if (!cacheable || successCount != statementCount) {
+        // If a declaration failed, a later statement that uses its name would
+        // see a previous binding, which is not in the fingerprint.
+        return;
+      }
+      final List<String> nameList = ImmutableList.copyOf(names);
+      final @Nullable Object[] bindings = new Object[nameList.size()];
+      for (int i = 0; i < nameList.size(); i++) {
+        bindings[i] = env.getTop(nameList.get(i));
+      }
+      final List<String> typeNameList = ImmutableList.copyOf(typeNames);
+      final @Nullable Object[] types = new Object[typeNameList.size()];
+      for (int i = 0; i < typeNameList.size(); i++) {
+        types[i] = typeSystem.lookupOpt(typeNameList.get(i));
+      }
+      final Map<String, ImmutableList<Binding>> definitions =
+          new LinkedHashMap<>();
+      for (String name : definedNames) {
+        definitions.put(name, ImmutableList.copyOf(bindingMap.get(name)));
+      }
+      cache.put(
+          key,
+          new Entry(
+              nameList,
+              bindings,
+              typeNameList,
+              types,
+              lines,
+              definitions,
+              session),
+          Prop.STATEMENT_CACHE_SIZE.intValue(session.map));
+    }
+  }
+}
+
+// End CellCache.java
@@ -34,6 +34,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.primitives.UnsignedLong;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -48,6 +49,7 @@ import java.util.function.Supplier;
 import net.hydromatic.morel.ast.Core;
 import net.hydromatic.morel.ast.Op;
 import net.hydromatic.morel.ast.Pos;
+import net.hydromatic.morel.ast.Visitor;
 import net.hydromatic.morel.eval.Applicable;
 import net.hydromatic.morel.eval.Applicable1;
 import net.hydromatic.morel.eval.Applicable2;
@@ -66,6 +68,7 @@ import net.hydromatic.morel.eval.Session;
 import net.hydromatic.morel.eval.Stack;
 import net.hydromatic.morel.eval.Unit;
 import net.hydromatic.morel.foreign.CalciteFunctions;
+import net.hydromatic.morel.foreign.RelList;
 import net.hydromatic.morel.type.AliasType;
 import net.hydromatic.morel.type.Binding;
 import net.hydromatic.morel.type.DataType;
@@ -91,9 +94,19 @@ public class Compiler {
   protected static final EvalEnv EMPTY_ENV = Codes.emptyEnv();
 
   protected final TypeSystem typeSystem;
+  /**
+   * Session in which the compiled code will run, or null if the code is
+   * internal; Calcite functions that the code calls are cached in it.
+   */
+  protected final @Nullable Session session;
 
   public Compiler(TypeSystem typeSystem) {
+    this(typeSystem, null);
+  }
+
+  public Compiler(TypeSystem typeSystem, @Nullable Session session) {
     this.typeSystem = requireNonNull(typeSystem, "typeSystem");
+    this.session = session;
   }
 
   CompiledStatement compileStatement(
@@ -154,13 +167,21 @@ public class Compiler {
    *       phase.
    *   <li>We should pass compile and runtime environments via parameters, not
    *       thread-locals.
-   *   <li>The dummy session is there because session is mandatory, but we have
-   *       not created a session yet. Lifecycle confusion.
+   *   <li>If the compiler has no session, we create a dummy session, because
+   *       session is mandatory.
    * </ul>
    */
   protected CalciteFunctions.Context createContext(Environment env) {
-    final Session dummySession = new Session(ImmutableMap.of());
-    return new CalciteFunctions.Context(dummySession, env, typeSystem, null);
+    return new CalciteFunctions.Context(
+        contextSession(), env, typeSystem, null);
+  }
+
+  /**
+   * Returns the session for a {@link CalciteFunctions.Context}: this compiler's
+   * session, or, if it has none, a new dummy session.
+   */
+  protected Session contextSession() {
+    return session != null ? session : new Session(ImmutableMap.of());
   }
 
   /**
@@ -613,13 +634,22 @@ public class Compiler {
         for (Core.Exp arg : tuple.args) {
           codes.add(compile(cx, arg));
         }
-        return Codes.tuple(codes);
+        return finishCompileTuple(cx, tuple.args, codes);
 
       default:
         throw new AssertionError("op not handled: " + expression.op);
     }
   }
 
+  /**
+   * Creates the code for a tuple or list, given the code of each element.
+   * Derived classes may choose to evaluate the elements differently.
+   */
+  protected Code finishCompileTuple(
+      Context cx, List<Core.Exp> args, List<Code> codes) {
+    return Codes.tuple(codes);
+  }
+
   protected Code compileApply(Context cx, Core.Apply apply) {
     return compileApply(cx, apply, false);
   }
@@ -641,8 +671,9 @@ public class Compiler {
             argCodes = compileArgs(cx, ((Core.Tuple) apply.arg).args);
             return Codes.orElse(argCodes.get(0), argCodes.get(1));
           case Z_LIST:
-            argCodes = compileArgs(cx, ((Core.Tuple) apply.arg).args);
-            return Codes.list(argCodes);
+            final List<Core.Exp> listArgs = ((Core.Tuple) apply.arg).args;
+            argCodes = compileArgs(cx, listArgs);
+            return finishCompileTuple(cx, listArgs, argCodes);
           case Z_ORDINAL:
             if (cx.ordinalSlots == null) {
               // Nothing is counting rows here. Only a 'yield' installs a
@@ -868,7 +899,7 @@ public class Compiler {
       Core.Scan scan,
       List<Core.FromStep> steps,
       Type elementType) {
-    final Code code = compileRow(cx, scan.exp, null);
+    final Code code = pruneForeignTable(cx, scan, steps);
     // Extend the layout with scan variable patterns at stack slots.
     StackLayout scanLayout = cx.layout;
     int depth = cx.localDepth;
@@ -919,6 +950,71 @@ public class Compiler {
             scanNextFactory.get());
   }
 
+  /**
+   * Compiles the collection expression of a scan.
+   *
+   * <p>If the collection is a foreign table, such as {@code scott.emps}, and
+   * the rest of the query only accesses fields of the scan variable, such as
+   * {@code e.ename} and {@code e.deptno}, the table is read through a {@link
+   * RelList#prune pruned} list that fetches and converts only those fields.
+   */
+  private Code pruneForeignTable(
+      Context cx, Core.Scan scan, List<Core.FromStep> steps) {
+    final Code code = compileRow(cx, scan.exp, null);
+    if (!isForeignTable(cx, scan.exp)) {
+      return code;
+    }
+    final @Nullable ImmutableSortedSet<Integer> fields =
+        usedFields(scan, steps);
+    return fields == null ? code : Codes.pruneRelList(code, fields);
+  }
+
+  /**
+   * Returns whether an expression is a table of a foreign value, such as {@code
+   * scott.emps}, where {@code scott} is a {@link
+   * net.hydromatic.morel.foreign.CalciteForeignValue}.
+   */
+  private static boolean isForeignTable(Context cx, Core.Exp exp) {
+    if (exp.op != Op.APPLY) {
+      return false;
+    }
+    final Core.Apply apply = (Core.Apply) exp;
+    if (apply.fn.op != Op.RECORD_SELECTOR || apply.arg.op != Op.ID) {
+      return false;
+    }
+    final @Nullable Binding binding =
+        cx.env.getOpt(((Core.Id) apply.arg).idPat);
+    if (binding == null || !(binding.value instanceof List)) {
+      return false;
+    }
+    final List<?> list = (List<?>) binding.value;
+    final int slot = ((Core.RecordSelector) apply.fn).slot;
+    return slot < list.size() && list.get(slot) instanceof RelList;
+  }
+
+  /**
+   * Returns the slots of the fields of a scan variable that a query uses, or
+   * null if the query uses the variable other than to access its fields (for
+   * example, if the variable is part of the output).
+   */
+  private static @Nullable ImmutableSortedSet<Integer> usedFields(
+      Core.Scan scan, List<Core.FromStep> steps) {
+    if (!(scan.pat instanceof Core.IdPat)
+        || !(scan.pat.type instanceof RecordLikeType)) {
+      return null;
+    }
+    final Core.IdPat idPat = (Core.IdPat) scan.pat;
+    for (Binding binding : last(steps).env.bindings) {
+      if (binding.id.equals(idPat)) {
+        return null;
+      }
+    }
+    final FieldCollector collector = new FieldCollector(idPat);
+    scan.condition.accept(collector);
+    skip(steps).forEach(step -> step.accept(collector));
+    return collector.escaped ? null : collector.fields.build();
+  }
+
   private RowSinkFactory createRowSinkFactory(
       Context cx0,
       Context cxFrom,
@@ -2242,6 +2338,39 @@ public class Compiler {
     }
   }
 
+  /**
+   * Visitor that collects the fields of a variable that are accessed, and notes
+   * whether the variable is used in any other way.
+   */
+  private static class FieldCollector extends Visitor {
+    final Core.IdPat idPat;
+    final ImmutableSortedSet.Builder<Integer> fields =
+        ImmutableSortedSet.naturalOrder();
+    boolean escaped;
+
+    FieldCollector(Core.IdPat idPat) {
+      this.idPat = idPat;
+    }
+
+    @Override
+    protected void visit(Core.Apply apply) {
+      if (apply.fn.op == Op.RECORD_SELECTOR
+          && apply.arg.op == Op.ID
+          && ((Core.Id) apply.arg).idPat.equals(idPat)) {
+        fields.add(((Core.RecordSelector) apply.fn).slot);
+      } else {
+        super.visit(apply);
+      }
+    }
+
+    @Override
+    protected void visit(Core.Id id) {
+      if (id.idPat.equals(idPat)) {
+        escaped = true;
+      }
+    }
+  }
+
   private static class ActionImpl implements Action {
     private final TypeSystem typeSystem;
     private final Code code;
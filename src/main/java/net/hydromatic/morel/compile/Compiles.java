@@ -19,11 +19,14 @@
 package net.hydromatic.morel.compile;
 
 import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
 import static net.hydromatic.morel.ast.AstBuilder.ast;
+import static net.hydromatic.morel.ast.CoreBuilder.core;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -40,9 +43,12 @@ import net.hydromatic.morel.foreign.Calcite;
 import net.hydromatic.morel.foreign.ForeignValue;
 import net.hydromatic.morel.type.Binding;
 import net.hydromatic.morel.type.DataType;
+import net.hydromatic.morel.type.FnType;
 import net.hydromatic.morel.type.PrimitiveType;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.type.TypeSystem;
+import net.hydromatic.morel.type.TypeVar;
+import net.hydromatic.morel.type.TypeVisitor;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /** Helpers for {@link Compiler} and {@link TypeResolver}. */
@@ -83,8 +89,118 @@ public abstract class Compiles {
     } else {
       decl = (Ast.Decl) statement;
     }
-    return prepareDecl(
-        typeSystem, session, env, calcite, decl, warningConsumer, tracer);
+
+    // A tracer wants to see every phase, and a Calcite instance may hold
+    // foreign values that the fingerprint does not cover; do not cache.
+    final int cacheSize = Prop.STATEMENT_CACHE_SIZE.intValue(session.map);
+    final StatementCache.@Nullable Key key =
+        cacheSize > 0 && calcite == null && tracer == Tracers.empty()
+            ? StatementCache.key(typeSystem, session, env, statement)
+            : null;
+    if (key == null) {
+      return prepareDecl(
+          typeSystem, session, env, calcite, decl, warningConsumer, tracer);
+    }
+
+    final StatementCache.@Nullable Entry entry =
+        session.statementCache.get(key);
+    if (entry != null) {
+      entry.warnings.forEach(warningConsumer);
+      if (entry.coreDecl != null) {
+        session.coreDecl = entry.coreDecl;
+        session.environment = env;
+      }
+      return entry.compiledStatement;
+    }
+
+    final List<CompileException> warnings = new ArrayList<>();
+    final Core.@Nullable Decl coreDecl = session.coreDecl;
+    final CompiledStatement compiledStatement =
+        prepareDecl(
+            typeSystem,
+            session,
+            env,
+            null,
+            decl,
+            warning -> {
+              warnings.add(warning);
+              warningConsumer.accept(warning);
+            },
+            tracer);
+    session.statementCache.put(
+        key,
+        new StatementCache.Entry(
+            compiledStatement,
+            warnings,
+            session.coreDecl != coreDecl ? session.coreDecl : null),
+        cacheSize);
+    return compiledStatement;
+  }
+
+  /**
+   * Deduces the types of the parameters of an expression, and returns a binding
+   * for each parameter.
+   *
+   * <p>For parameters {@code x} and {@code y} and expression {@code e}, deduces
+   * the type of {@code fn x => fn y => e}. If the type of a parameter contains
+   * a type variable, throws; the caller should add a type annotation, such as
+   * {@code (x : int)}.
+   *
+   * <p>The bindings have no value, and are marked as parameters so that the
+   * compiler does not inline them. Used to prepare a statement that will be
+   * evaluated many times with different parameter values.
+   */
+  public static List<Binding> parameterBindings(
+      TypeSystem typeSystem,
+      Environment env,
+      Ast.Exp exp,
+      List<String> parameterNames,
+      Consumer<CompileException> warningConsumer) {
+    if (parameterNames.isEmpty()) {
+      return ImmutableList.of();
+    }
+    Ast.Exp fn = exp;
+    for (String name : Lists.reverse(parameterNames)) {
+      fn = ast.fn(exp.pos, ast.match(exp.pos, ast.idPat(exp.pos, name), fn));
+    }
+    final TypeResolver.Resolved resolved =
+        TypeResolver.deduceType(
+            env, toValDecl(fn), typeSystem, warningConsumer);
+    Type type =
+        typeSystem.unqualified(resolved.typeMap.getType(resolved.exp()));
+    final ImmutableList.Builder<Binding> bindings = ImmutableList.builder();
+    for (String name : parameterNames) {
+      final FnType fnType = (FnType) type;
+      if (containsTypeVar(fnType.paramType)) {
+        throw new CompileException(
+            format(
+                "cannot deduce type of parameter '%s' (type is %s)",
+                name, fnType.paramType),
+            false,
+            exp.pos);
+      }
+      bindings.add(
+          Binding.of(
+                  core.idPat(
+                      fnType.paramType, name, typeSystem.nameGenerator::inc))
+              .withParameter(true));
+      type = fnType.resultType;
+    }
+    return bindings.build();
+  }
+
+  /** Returns whether a type contains a type variable. */
+  private static boolean containsTypeVar(Type type) {
+    final boolean[] found = {false};
+    type.accept(
+        new TypeVisitor<Void>() {
+          @Override
+          public Void visit(TypeVar typeVar) {
+            found[0] = true;
+            return null;
+          }
+        });
+    return found[0];
   }
 
   /**
@@ -145,15 +261,84 @@ public abstract class Compiles {
       };
     }
 
+    final Resolution resolution =
+        resolve(typeSystem, session, env, decl, warningConsumer);
+    return prepareResolution(
+        typeSystem, session, env, calcite, resolution, warningConsumer, tracer);
+  }
+
+  /**
+   * Deduces the types of a statement and converts it to Core, but does not
+   * optimize or compile it. Returns null if the statement is not converted to
+   * Core (a floating attribute, or a signature); call {@link #prepareStatement}
+   * for such a statement.
+   *
+   * <p>The result depends only on the statement, the session's properties, and
+   * the types of the values and type constructors that it uses; it can
+   * therefore be saved, and compiled in another session by {@link
+   * #prepareResolution}.
+   */
+  public static @Nullable Resolution resolveStatement(
+      TypeSystem typeSystem,
+      Session session,
+      Environment env,
+      AstNode statement,
+      Consumer<CompileException> warningConsumer) {
+    Ast.Decl decl = toDecl(statement);
+    while (decl instanceof Ast.AttributedDecl) {
+      decl = ((Ast.AttributedDecl) decl).decl;
+    }
+    if (decl instanceof Ast.FloatingAttrDecl
+        || decl instanceof Ast.SignatureDecl) {
+      return null;
+    }
+    return resolve(typeSystem, session, env, decl, warningConsumer);
+  }
+
+  private static Resolution resolve(
+      TypeSystem typeSystem,
+      Session session,
+      Environment env,
+      Ast.Decl decl,
+      Consumer<CompileException> warningConsumer) {
     final TypeResolver.Resolved resolved =
         TypeResolver.deduceType(env, decl, typeSystem, warningConsumer);
+    final Resolver resolver = Resolver.of(resolved.typeMap, env, session);
+    final Core.Decl coreDecl0 = resolver.toCore(resolved.node);
+
+    // Should we skip printing the root pattern?
+    // Yes, if they wrote 'val x = 1 and y = 2' and
+    // core became 'val it as (x, y) = (1, 2)'.
+    // No, if they actually wrote 'val (x, y) = (1, 2)'.
+    final Core.@Nullable NamedPat skipPat =
+        getSkipPat(resolved.node, coreDecl0);
+
+    // Did the user write a query? (See "queriesToWrap" in prepareResolution.)
+    final boolean query =
+        resolved.originalNode instanceof Ast.ValDecl
+            && ((Ast.ValDecl) resolved.originalNode).valBinds.get(0).exp.op
+                == Op.FROM;
+    return new Resolution(coreDecl0, skipPat, query);
+  }
+
+  /**
+   * Optimizes a statement that has been converted to Core, and compiles it to
+   * code that can be evaluated by the interpreter.
+   */
+  public static CompiledStatement prepareResolution(
+      TypeSystem typeSystem,
+      Session session,
+      Environment env,
+      @Nullable Calcite calcite,
+      Resolution resolution,
+      Consumer<CompileException> warningConsumer,
+      Tracer tracer) {
     final boolean hybrid = Prop.HYBRID.booleanValue(session.map);
     final int inlinePassCount =
         Math.max(Prop.INLINE_PASS_COUNT.intValue(session.map), 0);
     final boolean relationalize = Prop.RELATIONALIZE.booleanValue(session.map);
 
-    final Resolver resolver = Resolver.of(resolved.typeMap, env, session);
-    final Core.Decl coreDecl0 = resolver.toCore(resolved.node);
+    final Core.Decl coreDecl0 = resolution.coreDecl;
     tracer.onCore(0, coreDecl0);
 
     // Store the initial Core.Decl and environment for Sys.planEx,
@@ -163,13 +348,6 @@ public abstract class Compiles {
       session.environment = env;
     }
 
-    // Should we skip printing the root pattern?
-    // Yes, if they wrote 'val x = 1 and y = 2' and
-    // core became 'val it as (x, y) = (1, 2)'.
-    // No, if they actually wrote 'val (x, y) = (1, 2)'.
-    final Core.@Nullable NamedPat skipPat =
-        getSkipPat(resolved.node, coreDecl0);
-
     // Check for exhaustive and redundant patterns, and throw errors or
     // warnings.
     final boolean matchCoverageEnabled =
@@ -193,10 +371,14 @@ public abstract class Compiles {
           relationalize ? Relationalizer.of(typeSystem, env) : null;
 
       // Inline few times, or until we reach fixed point, whichever is sooner.
+      // Each pass shares the subtrees that it did not change with the
+      // previous tree, so the memo lets the Analyzer count uses only in the
+      // subtrees that changed.
+      final Analyzer.Memo memo = new Analyzer.Memo();
       coreDecl = coreDecl0;
       for (int i = 0; i < inlinePassCount; i++) {
         final Analyzer.Analysis analysis =
-            Analyzer.analyze(typeSystem, env, coreDecl);
+            Analyzer.analyze(typeSystem, env, coreDecl, memo);
         final Inliner inliner = Inliner.of(typeSystem, env, analysis);
         final Core.Decl coreDecl2 = coreDecl;
         coreDecl = coreDecl2.accept(inliner);
@@ -230,9 +412,17 @@ public abstract class Compiles {
       if (calcite == null) {
         calcite = Calcite.withDataSets(ImmutableMap.of());
       }
-      compiler = new CalciteCompiler(typeSystem, calcite);
+      final int hybridThreads = Prop.HYBRID_THREADS.intValue(session.map);
+      compiler =
+          new CalciteCompiler(
+              typeSystem,
+              calcite,
+              hybridThreads == 0
+                  ? Runtime.getRuntime().availableProcessors()
+                  : hybridThreads,
+              session);
     } else {
-      compiler = new Compiler(typeSystem);
+      compiler = new Compiler(typeSystem, session);
     }
 
     // If the user wrote "scott.depts" we will print "<relation>";
@@ -241,18 +431,12 @@ public abstract class Compiles {
     // same Core.Exp, but in the latter case we will 'wrap' the RelList value
     // as a regular List so that it is printed in full.
     final ImmutableSet.Builder<Core.Exp> queriesToWrap = ImmutableSet.builder();
-    if (resolved.originalNode instanceof Ast.ValDecl
-        && coreDecl instanceof Core.NonRecValDecl) {
-      final Ast.ValDecl valDecl = (Ast.ValDecl) resolved.originalNode;
-      final Ast.ValBind valBind = valDecl.valBinds.get(0);
-      final Core.NonRecValDecl nonRecValDecl = (Core.NonRecValDecl) coreDecl;
-      if (valBind.exp.op == Op.FROM) {
-        queriesToWrap.add(nonRecValDecl.exp);
-      }
+    if (resolution.query && coreDecl instanceof Core.NonRecValDecl) {
+      queriesToWrap.add(((Core.NonRecValDecl) coreDecl).exp);
     }
 
     return compiler.compileStatement(
-        env, coreDecl, skipPat, queriesToWrap.build());
+        env, coreDecl, resolution.skipPat, queriesToWrap.build());
   }
 
   /**
@@ -294,12 +478,13 @@ public abstract class Compiles {
         relationalize ? Relationalizer.of(typeSystem, env) : null;
 
     // Run inlining passes
+    final Analyzer.Memo memo = new Analyzer.Memo();
     Core.Decl coreDecl = coreDecl0;
     boolean mayContainUnbounded = true;
 
     for (int i = 0; i < inlinePassCount; i++) {
       final Analyzer.Analysis analysis =
-          Analyzer.analyze(typeSystem, env, coreDecl);
+          Analyzer.analyze(typeSystem, env, coreDecl, memo);
       final Inliner inliner = Inliner.of(typeSystem, env, analysis);
       final Core.Decl coreDecl2 = coreDecl;
       coreDecl = coreDecl2.accept(inliner);
@@ -610,6 +795,28 @@ public abstract class Compiles {
    * Visitor that adds a {@link Binding} each time it see an {@link Core.IdPat}
    * or {@link Core.AsPat}.
    */
+  /**
+   * A statement that has been converted to Core, but not yet optimized or
+   * compiled.
+   *
+   * @see #resolveStatement
+   * @see #prepareResolution
+   */
+  public static class Resolution {
+    public final Core.Decl coreDecl;
+    /** Pattern whose value should not be printed, or null. */
+    public final Core.@Nullable NamedPat skipPat;
+    /** Whether the statement is a query, whose value is printed in full. */
+    public final boolean query;
+
+    public Resolution(
+        Core.Decl coreDecl, Core.@Nullable NamedPat skipPat, boolean query) {
+      this.coreDecl = requireNonNull(coreDecl);
+      this.skipPat = skipPat;
+      this.query = query;
+    }
+  }
+
   private static class PatternBinder extends Visitor {
     private final TypeSystem typeSystem;
     private final List<Binding> bindings;
@@ -0,0 +1,296 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import net.hydromatic.morel.ast.AstNode;
+import net.hydromatic.morel.eval.Prop;
+import net.hydromatic.morel.eval.Session;
+import net.hydromatic.morel.type.TypeSystem;
+import net.hydromatic.morel.util.JavaVersion;
+import net.hydromatic.morel.util.Ord;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Cache of the Core form of the statements of files loaded by {@code use}, so
+ * that a file that is used again, in this or another session, does not need to
+ * be type-checked and converted to Core again.
+ *
+ * <p>The cache has two levels. Each session's {@link UseCache} holds, in
+ * memory, the files that it has used. If {@link Prop#USE_CACHE_DIRECTORY} is
+ * set, the directory contains a file for each file that has been used, whose
+ * name is a SHA-256 hash of the file's contents, the Morel version, and the
+ * session's properties. Both hold, for each statement, the bytes written by
+ * {@link CoreCodec}, or nothing if the statement could not be written.
+ *
+ * <p>The statements are still parsed, so that they can be echoed, and are still
+ * optimized, compiled and evaluated; optimization depends on the values in the
+ * environment, which are not saved, and evaluation may have effects. A
+ * statement that cannot be read in the current environment (because a value
+ * that it uses has a different type, say) is compiled from source, and the
+ * records are written again.
+ *
+ * <p>Unlike a cache of values, which would be private to a session, the files
+ * on disk can be shared by sessions, and survive them.
+ */
+public class CoreCache {
+  /** Identifies a cache file; the bytes "MCC" and a format version. */
+  private static final int MAGIC = 0x4d434301;
+
+  private CoreCache() {}
+
+  /**
+   * Returns a cursor for using a file, or null if neither the session's {@link
+   * UseCache} nor {@link Prop#USE_CACHE_DIRECTORY} is enabled.
+   *
+   * @param content Contents of the file
+   * @param idempotent Whether running in idempotent (script test) mode
+   * @param session Session
+   */
+  public static @Nullable Use use(
+      byte[] content, boolean idempotent, Session session) {
+    final int cacheSize = Prop.STATEMENT_CACHE_SIZE.intValue(session.map);
+    final @Nullable Object directory =
+        Prop.USE_CACHE_DIRECTORY.get(session.map);
+    if (directory == null
+        && (cacheSize <= 0
+            || Prop.COMPILE_THREADS.intValue(session.map) != 1)) {
+      // Statements that are converted via the cache are compiled one at a
+      // time; without a directory, prefer to compile them concurrently.
+      return null;
+    }
+    final Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putBytes(content);
+    hasher.putBoolean(idempotent);
+    hasher.putString(JavaVersion.MOREL_VERSION.toString(), UTF_8);
+    hasher.putString(new TreeMap<>(session.map).toString(), UTF_8);
+    final String hash = hasher.hash().toString();
+    final @Nullable File file =
+        directory == null ? null : new File((File) directory, hash + ".core");
+    final @Nullable List<byte @Nullable []> records =
+        session.useCache.get(hash);
+    if (records != null) {
+      return new Use(hash, file, session, cacheSize, records, true);
+    }
+    return new Use(
+        hash,
+        file,
+        session,
+        cacheSize,
+        file == null ? new ArrayList<>() : read(file),
+        false);
+  }
+
+  /** Reads the records of a cache file; returns an empty list if invalid. */
+  private static List<byte @Nullable []> read(File file) {
+    final List<byte @Nullable []> records = new ArrayList<>();
+    if (!file.isFile()) {
+      return records;
+    }
+    try (DataInputStream in =
+        new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+      if (in.readInt() != MAGIC) {
+        return records;
+      }
+      for (int i = in.readInt(); i > 0; i--) {
+        final int length = in.readInt();
+        if (length < 0) {
+          records.add(null);
+        } else {
+          final byte[] bytes = new byte[length];
+          in.readFully(bytes);
+          records.add(bytes);
+        }
+      }
+      return records;
+    } catch (IOException e) {
+      // The file is truncated or unreadable; compile the file from source.
+      records.clear();
+      return records;
+    }
+  }
+
+  /**
+   * Cursor over the statements of a file that is being used.
+   *
+   * <p>The shell calls {@link #prepare} for each statement, in order, instead
+   * of {@link Compiles#prepareStatement}, then calls {@link #finish}.
+   */
+  public static class Use {
+    private final String hash;
+    private final @Nullable File file;
+    private final Session session;
+    private final int cacheSize;
+    /** Records read from the session's cache or the cache file. */
+    private final List<byte @Nullable []> records;
+    /** Whether {@link #records} came from the session's cache. */
+    private final boolean inMemory;
+    /** Records for the statements prepared so far. */
+    private final List<byte @Nullable []> newRecords = new ArrayList<>();
+
+    private Use(
+        String hash,
+        @Nullable File file,
+        Session session,
+        int cacheSize,
+        List<byte @Nullable []> records,
+        boolean inMemory) {
+      this.hash = requireNonNull(hash);
+      this.file = file;
+      this.session = requireNonNull(session);
+      this.cacheSize = cacheSize;
+      this.records = requireNonNull(records);
+      this.inMemory = inMemory;
+    }
+
+    /**
+     * Prepares the next statement of the file. Uses the Core saved in the cache
+     * if it is valid in this environment; otherwise converts the statement to
+     * Core, and saves it.
+     */
+    public CompiledStatement prepare(
+        TypeSystem typeSystem,
+        Environment env,
+        AstNode statement,
+        Consumer<CompileException> warningConsumer,
+        Tracer tracer) {
+      final int i = newRecords.size();
+      // Reserve the slot now, in case the statement does not compile.
+      newRecords.add(null);
+      final byte @Nullable [] bytes =
+          i < records.size() ? records.get(i) : null;
+      if (bytes != null) {
+        final Compiles.@Nullable Resolution resolution =
+            CoreCodec.read(typeSystem, env, bytes);
+        if (resolution != null) {
+          newRecords.set(i, bytes);
+          if (inMemory) {
+            session.useCache.hit();
+          } else {
+            session.useCache.diskHit();
+          }
+          return Compiles.prepareResolution(
+              typeSystem,
+              session,
+              env,
+              null,
+              resolution,
+              warningConsumer,
+              tracer);
+        }
+      }
+      final boolean[] warned = {false};
+      final Compiles.@Nullable Resolution resolution =
+          Compiles.resolveStatement(
+              typeSystem,
+              session,
+              env,
+              statement,
+              e -> {
+                warned[0] = true;
+                warningConsumer.accept(e);
+              });
+      if (resolution == null) {
+        return Compiles.prepareStatement(
+            typeSystem, session, env, statement, null, warningConsumer, tracer);
+      }
+      // A statement that gave warnings is not saved; if it were read from the
+      // cache, the warnings would not be repeated.
+      if (!warned[0]) {
+        newRecords.set(i, CoreCodec.write(env, resolution));
+      }
+      return Compiles.prepareResolution(
+          typeSystem, session, env, null, resolution, warningConsumer, tracer);
+    }
+
+    /**
+     * Saves the records in the session's cache, and writes the cache file if
+     * its records have changed.
+     */
+    public void finish() {
+      if (cacheSize > 0) {
+        session.useCache.put(hash, newRecords, cacheSize);
+      }
+      if (file == null
+          || newRecords.size() == records.size()
+              && Ord.allMatchIndexed(
+                  newRecords,
+                  (i, bytes) -> Arrays.equals(bytes, records.get(i)))) {
+        return;
+      }
+      try {
+        final File directory = requireNonNull(file.getParentFile());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+          return;
+        }
+        // Write to a temporary file, then rename, so that another session
+        // never reads a partly-written file.
+        final File tempFile =
+            File.createTempFile(file.getName(), ".tmp", directory);
+        try (DataOutputStream out =
+            new DataOutputStream(
+                new BufferedOutputStream(
+                    Files.newOutputStream(tempFile.toPath())))) {
+          out.writeInt(MAGIC);
+          out.writeInt(newRecords.size());
+          for (byte @Nullable [] bytes : newRecords) {
+            if (bytes == null) {
+              out.writeInt(-1);
+            } else {
+              out.writeInt(bytes.length);
+              out.write(bytes);
+            }
+          }
+        }
+        try {
+          Files.move(
+              tempFile.toPath(),
+              file.toPath(),
+              StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+          Files.deleteIfExists(tempFile.toPath());
+        }
+      } catch (IOException e) {
+        // The cache is an optimization; if it cannot be written, the file
+        // will be compiled from source next time.
+      }
+    }
+  }
+}
+
+// End CoreCache.java
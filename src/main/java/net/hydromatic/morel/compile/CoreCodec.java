@@ -0,0 +1,1090 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static net.hydromatic.morel.ast.CoreBuilder.core;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Table;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.ast.Pos;
+import net.hydromatic.morel.ast.Visitor;
+import net.hydromatic.morel.eval.Unit;
+import net.hydromatic.morel.type.AliasType;
+import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.DataType;
+import net.hydromatic.morel.type.FnType;
+import net.hydromatic.morel.type.ForallType;
+import net.hydromatic.morel.type.Keys;
+import net.hydromatic.morel.type.ListType;
+import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.type.RecordLikeType;
+import net.hydromatic.morel.type.RecordType;
+import net.hydromatic.morel.type.TupleType;
+import net.hydromatic.morel.type.Type;
+import net.hydromatic.morel.type.TypeSystem;
+import net.hydromatic.morel.type.TypeVar;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Converts a statement that has been converted to Core (a {@link
+ * Compiles.Resolution}) to and from a compact binary format, so that it can be
+ * saved by one session and compiled by another.
+ *
+ * <p>Types are written by structure, and are re-created in the type system of
+ * the session that reads them. A datatype is written as its name, arguments and
+ * definition; it is read only if the reading session has a datatype of that
+ * name with the same definition.
+ *
+ * <p>A variable that the statement declares is given a new ordinal when it is
+ * read, so that it cannot be confused with a variable of the reading session. A
+ * reference to a value in the environment is written as the name and type of
+ * its binding; it is read only if the reading environment binds that name to a
+ * value of the same type. So, if {@link #read} succeeds, the result is what
+ * {@link Compiles#resolveStatement} would have produced in the reading
+ * environment.
+ *
+ * <p>Statements that declare types or overloads, that contain values computed
+ * at compile time, or that declare a variable with the same name and ordinal as
+ * a value in the environment, cannot be written.
+ */
+public class CoreCodec {
+  /** Matches a name generated by {@link NameGenerator#getPrefixed}. */
+  private static final Pattern GENERATED_NAME = Pattern.compile(".*\\$[0-9]+");
+
+  private CoreCodec() {}
+
+  /**
+   * Converts a statement to bytes, or returns null if it contains constructs
+   * that cannot be written.
+   *
+   * @param env Environment in which the statement was resolved
+   * @param resolution Statement converted to Core
+   */
+  public static byte @Nullable [] write(
+      Environment env, Compiles.Resolution resolution) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      final Writer writer = new Writer(env, resolution.coreDecl, out);
+      writer.decl(resolution.coreDecl);
+      out.writeBoolean(resolution.skipPat != null);
+      if (resolution.skipPat != null) {
+        writer.namedPat(resolution.skipPat);
+      }
+      out.writeBoolean(resolution.query);
+    } catch (CodecException e) {
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Converts bytes to a statement, or returns null if the statement is not
+   * valid in this environment.
+   *
+   * @param typeSystem Type system
+   * @param env Environment in which the statement will be compiled
+   * @param bytes Bytes created by {@link #write}
+   */
+  public static Compiles.@Nullable Resolution read(
+      TypeSystem typeSystem, Environment env, byte[] bytes) {
+    try (DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(bytes))) {
+      final Reader reader = new Reader(typeSystem, env, in);
+      final Core.Decl decl = reader.decl();
+      final Core.@Nullable NamedPat skipPat =
+          in.readBoolean() ? reader.namedPat() : null;
+      final boolean query = in.readBoolean();
+      return new Compiles.Resolution(decl, skipPat, query);
+    } catch (CodecException | IOException | RuntimeException e) {
+      // The statement uses a value or type that has changed, or the bytes are
+      // corrupt; either way, the statement must be compiled from source.
+      return null;
+    }
+  }
+
+  /**
+   * Thrown when a statement cannot be written, or is not valid in the reading
+   * environment.
+   */
+  private static class CodecException extends Exception {
+    CodecException(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  /** Writes a statement. */
+  private static class Writer {
+    private final Environment env;
+    private final DataOutputStream out;
+    /** Variables that the statement declares, compared by name and ordinal. */
+    private final Set<Core.NamedPat> declared =
+        new TreeSet<>(Core.NamedPat.ORDERING);
+
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<Type, Integer> types = new IdentityHashMap<>();
+    private final Map<Core.NamedPat, Integer> pats = new IdentityHashMap<>();
+
+    Writer(Environment env, Core.Decl decl, DataOutputStream out) {
+      this.env = env;
+      this.out = out;
+      addDeclaredPats(decl, declared);
+    }
+
+    /** Adds the variables that a declaration declares to a set. */
+    private static void addDeclaredPats(
+        Core.Decl decl, Set<Core.NamedPat> pats) {
+      decl.accept(
+          new Visitor() {
+            @Override
+            protected void visit(Core.IdPat idPat) {
+              pats.add(idPat);
+            }
+
+            @Override
+            protected void visit(Core.AsPat asPat) {
+              pats.add(asPat);
+              super.visit(asPat);
+            }
+
+            @Override
+            protected void visit(Core.From from) {
+              // Steps such as "yield" and "group" declare the variables of
+              // their environment.
+              for (Core.FromStep step : from.steps) {
+                step.env.bindings.forEach(binding -> pats.add(binding.id));
+              }
+              super.visit(from);
+            }
+          });
+    }
+
+    void varInt(int i) throws IOException {
+      while ((i & ~0x7F) != 0) {
+        out.writeByte((i & 0x7F) | 0x80);
+        i >>>= 7;
+      }
+      out.writeByte(i);
+    }
+
+    void string(String s) throws IOException {
+      final Integer index = strings.get(s);
+      if (index != null) {
+        varInt(index + 1);
+        return;
+      }
+      varInt(0);
+      final byte[] bytes = s.getBytes(UTF_8);
+      varInt(bytes.length);
+      out.write(bytes);
+      strings.put(s, strings.size());
+    }
+
+    void op(Op op) throws IOException {
+      string(op.name());
+    }
+
+    void pos(Pos pos) throws IOException {
+      string(pos.file);
+      varInt(pos.startLine);
+      varInt(pos.startColumn);
+      varInt(pos.endLine);
+      varInt(pos.endColumn);
+    }
+
+    void value(Object value) throws IOException, CodecException {
+      if (value instanceof BigDecimal) {
+        varInt(0);
+        string(value.toString());
+      } else if (value instanceof Float) {
+        varInt(1);
+        out.writeFloat((Float) value);
+      } else if (value instanceof String) {
+        varInt(2);
+        string((String) value);
+      } else if (value instanceof Character) {
+        varInt(3);
+        out.writeChar((Character) value);
+      } else if (value instanceof Boolean) {
+        varInt(4);
+        out.writeBoolean((Boolean) value);
+      } else if (value == Unit.INSTANCE) {
+        varInt(5);
+      } else {
+        throw new CodecException("value " + value);
+      }
+    }
+
+    void type(Type type) throws IOException, CodecException {
+      final Integer index = types.get(type);
+      if (index != null) {
+        varInt(index + 1);
+        return;
+      }
+      varInt(0);
+      op(type.op());
+      switch (type.op()) {
+        case ID:
+          string(((PrimitiveType) type).name());
+          break;
+        case TY_VAR:
+          varInt(((TypeVar) type).ordinal);
+          break;
+        case LIST:
+          type(((ListType) type).elementType);
+          break;
+        case FUNCTION_TYPE:
+          type(((FnType) type).paramType);
+          type(((FnType) type).resultType);
+          break;
+        case TUPLE_TYPE:
+          types(((TupleType) type).argTypes);
+          break;
+        case RECORD_TYPE:
+          final RecordType recordType = (RecordType) type;
+          out.writeBoolean(recordType.isProgressive());
+          varInt(recordType.argNameTypes.size());
+          for (Map.Entry<String, Type> entry :
+              recordType.argNameTypes.entrySet()) {
+            string(entry.getKey());
+            type(entry.getValue());
+          }
+          break;
+        case DATA_TYPE:
+          final DataType dataType = (DataType) type;
+          string(dataType.name);
+          types(dataType.arguments);
+          string(dataType.describe(new StringBuilder(), -1).toString());
+          break;
+        case ALIAS_TYPE:
+          final AliasType aliasType = (AliasType) type;
+          string(aliasType.name);
+          type(aliasType.type);
+          types(aliasType.arguments);
+          break;
+        case FORALL_TYPE:
+          varInt(((ForallType) type).parameterCount);
+          type(((ForallType) type).type);
+          break;
+        default:
+          throw new CodecException("type " + type);
+      }
+      types.put(type, types.size());
+    }
+
+    void types(List<? extends Type> types) throws IOException, CodecException {
+      varInt(types.size());
+      for (Type type : types) {
+        type(type);
+      }
+    }
+
+    void namedPat(Core.NamedPat pat) throws IOException, CodecException {
+      final Integer index = pats.get(pat);
+      if (index != null) {
+        varInt(0);
+        varInt(index);
+        return;
+      }
+      // A pattern is a reference to a value in the environment if it is the
+      // pattern of that value's binding, or if the statement does not declare
+      // it. If the statement declares a variable with the same name and
+      // ordinal as a value in the environment (such as "count" in "compute
+      // count over ()"), we cannot tell which a pattern refers to.
+      final @Nullable Binding binding = env.getOpt(pat);
+      final boolean free;
+      if (binding != null && binding.id == pat) {
+        free = true;
+      } else if (declared.contains(pat)) {
+        if (binding != null) {
+          throw new CodecException("ambiguous reference to " + pat);
+        }
+        free = false;
+      } else {
+        free = true;
+      }
+      if (free) {
+        // The binding must be the current binding of its name, so that the
+        // reader can find it by name.
+        if (binding == null
+            || binding.kind != Binding.Kind.VAL
+            || env.getTop(pat.name) != binding) {
+          throw new CodecException("reference to " + pat);
+        }
+        varInt(1);
+        string(pat.name);
+        type(binding.id.type);
+        out.writeBoolean(pat == binding.id);
+        if (pat != binding.id) {
+          type(pat.type);
+        }
+      } else if (pat instanceof Core.IdPat) {
+        varInt(2);
+        string(pat.name);
+        varInt(pat.i);
+        type(pat.type);
+      } else {
+        varInt(3);
+        string(pat.name);
+        varInt(pat.i);
+        type(pat.type);
+        pat(((Core.AsPat) pat).pat);
+      }
+      pats.put(pat, pats.size());
+    }
+
+    void pat(Core.Pat pat) throws IOException, CodecException {
+      op(pat.op);
+      switch (pat.op) {
+        case ID_PAT:
+        case AS_PAT:
+          namedPat((Core.NamedPat) pat);
+          break;
+        case WILDCARD_PAT:
+          type(pat.type);
+          break;
+        case BOOL_LITERAL_PAT:
+        case CHAR_LITERAL_PAT:
+        case INT_LITERAL_PAT:
+        case REAL_LITERAL_PAT:
+        case STRING_LITERAL_PAT:
+        case WORD_LITERAL_PAT:
+          type(pat.type);
+          value(((Core.LiteralPat) pat).value);
+          break;
+        case CON_PAT:
+        case CONS_PAT:
+          type(pat.type);
+          string(((Core.ConPat) pat).tyCon);
+          pat(((Core.ConPat) pat).pat);
+          break;
+        case CON0_PAT:
+          type(pat.type);
+          string(((Core.Con0Pat) pat).tyCon);
+          break;
+        case TUPLE_PAT:
+          type(pat.type);
+          pats(((Core.TuplePat) pat).args);
+          break;
+        case LIST_PAT:
+          type(pat.type);
+          pats(((Core.ListPat) pat).args);
+          break;
+        case RECORD_PAT:
+          type(pat.type);
+          pats(((Core.RecordPat) pat).args);
+          break;
+        default:
+          throw new CodecException("pattern " + pat);
+      }
+    }
+
+    void pats(List<Core.Pat> pats) throws IOException, CodecException {
+      varInt(pats.size());
+      for (Core.Pat pat : pats) {
+        pat(pat);
+      }
+    }
+
+    void decl(Core.Decl decl) throws IOException, CodecException {
+      op(decl.op);
+      switch (decl.op) {
+        case VAL_DECL:
+          valDecl((Core.NonRecValDecl) decl);
+          break;
+        case REC_VAL_DECL:
+          final List<Core.NonRecValDecl> list = ((Core.RecValDecl) decl).list;
+          varInt(list.size());
+          for (Core.NonRecValDecl valDecl : list) {
+            valDecl(valDecl);
+          }
+          break;
+        default:
+          throw new CodecException("declaration " + decl);
+      }
+    }
+
+    void valDecl(Core.NonRecValDecl decl) throws IOException, CodecException {
+      if (decl.overloadPat != null) {
+        throw new CodecException("overload " + decl.overloadPat);
+      }
+      pos(decl.pos);
+      namedPat(decl.pat);
+      exp(decl.exp);
+    }
+
+    void exp(Core.Exp exp) throws IOException, CodecException {
+      op(exp.op);
+      switch (exp.op) {
+        case ID:
+          pos(exp.pos);
+          namedPat(((Core.Id) exp).idPat);
+          break;
+        case RECORD_SELECTOR:
+          type(exp.type);
+          varInt(((Core.RecordSelector) exp).slot);
+          break;
+        case BOOL_LITERAL:
+        case CHAR_LITERAL:
+        case INT_LITERAL:
+        case REAL_LITERAL:
+        case STRING_LITERAL:
+        case WORD_LITERAL:
+        case UNIT_LITERAL:
+          value(((Core.Literal) exp).value);
+          break;
+        case FN_LITERAL:
+          type(exp.type);
+          string(((Core.Literal) exp).unwrap(BuiltIn.class).name());
+          break;
+        case TUPLE:
+          type(exp.type);
+          exps(((Core.Tuple) exp).args);
+          break;
+        case LET:
+          decl(((Core.Let) exp).decl);
+          exp(((Core.Let) exp).exp);
+          break;
+        case FN:
+          final Core.Fn fn = (Core.Fn) exp;
+          pos(fn.pos);
+          type(fn.type);
+          namedPat(fn.idPat);
+          exp(fn.exp);
+          break;
+        case CASE:
+          final Core.Case kase = (Core.Case) exp;
+          pos(kase.pos);
+          type(kase.type);
+          exp(kase.exp);
+          varInt(kase.matchList.size());
+          for (Core.Match match : kase.matchList) {
+            pos(match.pos);
+            pat(match.pat);
+            exp(match.exp);
+          }
+          break;
+        case APPLY:
+          final Core.Apply apply = (Core.Apply) exp;
+          pos(apply.pos);
+          type(apply.type);
+          exp(apply.fn);
+          exp(apply.arg);
+          break;
+        case RAISE:
+          pos(exp.pos);
+          type(exp.type);
+          exp(((Core.Raise) exp).exp);
+          break;
+        case FROM:
+          final Core.From from = (Core.From) exp;
+          type(from.type);
+          varInt(from.steps.size());
+          for (Core.FromStep step : from.steps) {
+            step(step);
+          }
+          break;
+        default:
+          // A value literal or internal literal holds a value that was
+          // computed at compile time; "local" declares a datatype.
+          throw new CodecException("expression " + exp);
+      }
+    }
+
+    void exps(List<Core.Exp> exps) throws IOException, CodecException {
+      varInt(exps.size());
+      for (Core.Exp exp : exps) {
+        exp(exp);
+      }
+    }
+
+    void step(Core.FromStep step) throws IOException, CodecException {
+      op(step.op);
+      if (step.op == Op.GROUP) {
+        // The environment of "group" is derived from its keys and aggregates.
+        final Core.Group group = (Core.Group) step;
+        out.writeBoolean(group.env.atom);
+        out.writeBoolean(group.env.ordered);
+        varInt(group.groupExps.size());
+        for (Map.Entry<Core.IdPat, Core.Exp> entry :
+            group.groupExps.entrySet()) {
+          namedPat(entry.getKey());
+          exp(entry.getValue());
+        }
+        varInt(group.aggregates.size());
+        for (Map.Entry<Core.IdPat, Core.Aggregate> entry :
+            group.aggregates.entrySet()) {
+          final Core.Aggregate aggregate = entry.getValue();
+          namedPat(entry.getKey());
+          pos(aggregate.pos);
+          type(aggregate.type);
+          exp(aggregate.aggregate);
+          out.writeBoolean(aggregate.argument != null);
+          if (aggregate.argument != null) {
+            exp(aggregate.argument);
+          }
+        }
+        return;
+      }
+      varInt(step.env.bindings.size());
+      for (Binding binding : step.env.bindings) {
+        if (binding.kind != Binding.Kind.VAL
+            || binding.exp != null
+            || binding.value != Unit.INSTANCE
+            || binding.parameter) {
+          throw new CodecException("binding " + binding);
+        }
+        namedPat(binding.id);
+      }
+      out.writeBoolean(step.env.atom);
+      out.writeBoolean(step.env.ordered);
+      switch (step.op) {
+        case SCAN:
+        case LEFT_JOIN:
+        case RIGHT_JOIN:
+        case FULL_JOIN:
+          final Core.Scan scan = (Core.Scan) step;
+          pat(scan.pat);
+          exp(scan.exp);
+          exp(scan.condition);
+          break;
+        case WHERE:
+          exp(((Core.Where) step).exp);
+          break;
+        case SKIP:
+          exp(((Core.Skip) step).exp);
+          break;
+        case TAKE:
+          exp(((Core.Take) step).exp);
+          break;
+        case ORDER:
+          exp(((Core.Order) step).exp);
+          break;
+        case YIELD:
+          exp(((Core.Yield) step).exp);
+          break;
+        case UNORDER:
+          break;
+        case EXCEPT:
+        case INTERSECT:
+        case UNION:
+          out.writeBoolean(((Core.SetStep) step).distinct);
+          exps(((Core.SetStep) step).args);
+          break;
+        default:
+          throw new CodecException("step " + step);
+      }
+    }
+  }
+
+  /** Reads a statement. */
+  private static class Reader {
+    private final TypeSystem typeSystem;
+    private final Environment env;
+    private final DataInputStream in;
+
+    private final List<String> strings = new ArrayList<>();
+    private final List<Type> types = new ArrayList<>();
+    private final List<Core.NamedPat> pats = new ArrayList<>();
+    /**
+     * Name and ordinal of each declared variable in the reading session,
+     * indexed by its name and ordinal in the writing session.
+     */
+    private final Table<String, Integer, Core.NamedPat> renames =
+        HashBasedTable.create();
+
+    Reader(TypeSystem typeSystem, Environment env, DataInputStream in) {
+      this.typeSystem = typeSystem;
+      this.env = env;
+      this.in = in;
+    }
+
+    int varInt() throws IOException {
+      int i = 0;
+      for (int shift = 0; ; shift += 7) {
+        final int b = in.readUnsignedByte();
+        i |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return i;
+        }
+      }
+    }
+
+    String string() throws IOException {
+      final int index = varInt();
+      if (index > 0) {
+        return strings.get(index - 1);
+      }
+      final byte[] bytes = new byte[varInt()];
+      in.readFully(bytes);
+      final String s = UTF_8.decode(ByteBuffer.wrap(bytes)).toString();
+      strings.add(s);
+      return s;
+    }
+
+    Op op() throws IOException {
+      return Op.valueOf(string());
+    }
+
+    Pos pos() throws IOException {
+      return new Pos(string(), varInt(), varInt(), varInt(), varInt());
+    }
+
+    Object value() throws IOException, CodecException {
+      switch (varInt()) {
+        case 0:
+          return new BigDecimal(string());
+        case 1:
+          return in.readFloat();
+        case 2:
+          return string();
+        case 3:
+          return in.readChar();
+        case 4:
+          return in.readBoolean();
+        case 5:
+          return Unit.INSTANCE;
+        default:
+          throw new CodecException("bad value");
+      }
+    }
+
+    Type type() throws IOException, CodecException {
+      final int index = varInt();
+      if (index > 0) {
+        return types.get(index - 1);
+      }
+      final Type type;
+      final Op op = op();
+      switch (op) {
+        case ID:
+          type = PrimitiveType.valueOf(string());
+          break;
+        case TY_VAR:
+          type = typeSystem.typeVariable(varInt());
+          break;
+        case LIST:
+          type = typeSystem.listType(type());
+          break;
+        case FUNCTION_TYPE:
+          final Type paramType = type();
+          final Type resultType = type();
+          type = typeSystem.fnType(paramType, resultType);
+          break;
+        case TUPLE_TYPE:
+          type = typeSystem.tupleType(types());
+          break;
+        case RECORD_TYPE:
+          final boolean progressive = in.readBoolean();
+          final ImmutableSortedMap.Builder<String, Type> argNameTypes =
+              ImmutableSortedMap.orderedBy(RecordType.ORDERING);
+          for (int i = varInt(); i > 0; i--) {
+            final String name = string();
+            argNameTypes.put(name, type());
+          }
+          type =
+              progressive
+                  ? typeSystem.progressiveRecordType(argNameTypes.build())
+                  : typeSystem.recordType(argNameTypes.build());
+          break;
+        case DATA_TYPE:
+          type = dataType(string(), types(), string());
+          break;
+        case ALIAS_TYPE:
+          final String name = string();
+          final Type aliasedType = type();
+          final List<Type> arguments = types();
+          type =
+              typeSystem.typeFor(
+                  Keys.alias(name, aliasedType.key(), Keys.toKeys(arguments)));
+          break;
+        case FORALL_TYPE:
+          final int parameterCount = varInt();
+          type = typeSystem.forallType(parameterCount, type());
+          break;
+        default:
+          throw new CodecException("bad type " + op);
+      }
+      types.add(type);
+      return type;
+    }
+
+    /**
+     * Returns the datatype with a given name and arguments; throws if there is
+     * no such datatype, or if its definition has changed.
+     */
+    private Type dataType(String name, List<Type> arguments, String definition)
+        throws CodecException {
+      final @Nullable Type type = lookup(name);
+      final Type dataType =
+          type instanceof ForallType ? typeSystem.apply(type, arguments) : type;
+      if (!(dataType instanceof DataType)
+          || !((DataType) dataType)
+              .describe(new StringBuilder(), -1)
+              .toString()
+              .equals(definition)) {
+        throw new CodecException("datatype " + name + " has changed");
+      }
+      return dataType;
+    }
+
+    /**
+     * Looks up a type by name. Internal types, such as {@code $collection},
+     * cannot be looked up by name, so looks for a built-in type of that name.
+     */
+    private @Nullable Type lookup(String name) {
+      final @Nullable Type type = typeSystem.lookupOpt(name);
+      if (type != null) {
+        return type;
+      }
+      for (BuiltIn.BuiltInType builtInType :
+          Iterables.concat(
+              Arrays.asList(BuiltIn.Datatype.values()),
+              Arrays.asList(BuiltIn.Eqtype.values()))) {
+        if (builtInType.isInternal() && builtInType.mlName().equals(name)) {
+          return typeSystem.lookup(builtInType);
+        }
+      }
+      return null;
+    }
+
+    List<Type> types() throws IOException, CodecException {
+      final ImmutableList.Builder<Type> list = ImmutableList.builder();
+      for (int i = varInt(); i > 0; i--) {
+        list.add(type());
+      }
+      return list.build();
+    }
+
+    Core.NamedPat namedPat() throws IOException, CodecException {
+      final Core.NamedPat pat;
+      switch (varInt()) {
+        case 0:
+          return pats.get(varInt());
+        case 1:
+          final String name = string();
+          final Type bindingType = type();
+          final @Nullable Binding binding = env.getTop(name);
+          if (binding == null
+              || binding.kind != Binding.Kind.VAL
+              || !binding.id.name.equals(name)
+              || !binding.id.type.key().equals(bindingType.key())) {
+            throw new CodecException("binding of " + name + " has changed");
+          }
+          pat = in.readBoolean() ? binding.id : binding.id.withType(type());
+          break;
+        case 2:
+          pat = rename(string(), varInt(), this::idPat);
+          break;
+        case 3:
+          pat = rename(string(), varInt(), this::asPat);
+          break;
+        default:
+          throw new CodecException("bad pattern");
+      }
+      pats.add(pat);
+      return pat;
+    }
+
+    /** Creates a declared variable with a new ordinal. */
+    private Core.NamedPat rename(String name, int i, PatFactory factory)
+        throws IOException, CodecException {
+      final Core.@Nullable NamedPat previous = renames.get(name, i);
+      final int i2;
+      if (previous != null) {
+        i2 = previous.i;
+      } else if (GENERATED_NAME.matcher(name).matches()) {
+        // The name may be a field of a record type, so keep it. Give it an
+        // ordinal that a generated variable (whose ordinal is 0) does not
+        // have, and make sure that this session does not generate it.
+        typeSystem.nameGenerator.reserve(name);
+        i2 = typeSystem.nameGenerator.inc(name) + 1;
+      } else {
+        i2 = typeSystem.nameGenerator.inc(name);
+      }
+      final Core.NamedPat pat = factory.create(name, i2);
+      renames.put(name, i, pat);
+      return pat;
+    }
+
+    private Core.NamedPat idPat(String name, int i)
+        throws IOException, CodecException {
+      return core.idPat(type(), name, i);
+    }
+
+    private Core.NamedPat asPat(String name, int i)
+        throws IOException, CodecException {
+      final Type type = type();
+      return core.asPat(type, name, i, pat());
+    }
+
+    Core.Pat pat() throws IOException, CodecException {
+      final Op op = op();
+      switch (op) {
+        case ID_PAT:
+        case AS_PAT:
+          return namedPat();
+        case WILDCARD_PAT:
+          return core.wildcardPat(type());
+        case BOOL_LITERAL_PAT:
+        case CHAR_LITERAL_PAT:
+        case INT_LITERAL_PAT:
+        case REAL_LITERAL_PAT:
+        case STRING_LITERAL_PAT:
+        case WORD_LITERAL_PAT:
+          final Type literalType = type();
+          return core.literalPat(op, literalType, (Comparable<?>) value());
+        case CON_PAT:
+        case CONS_PAT:
+          final Type conType = type();
+          final String tyCon = string();
+          final Core.Pat pat = pat();
+          return op == Op.CON_PAT
+              ? core.conPat(conType, tyCon, pat)
+              : core.consPat(conType, tyCon, pat);
+        case CON0_PAT:
+          final Type con0Type = type();
+          return core.con0Pat((DataType) con0Type, string());
+        case TUPLE_PAT:
+          final Type tupleType = type();
+          return core.tuplePat((RecordLikeType) tupleType, pats());
+        case LIST_PAT:
+          final Type listType = type();
+          return core.listPat(listType, pats());
+        case RECORD_PAT:
+          final Type recordType = type();
+          return core.recordPat((RecordType) recordType, pats());
+        default:
+          throw new CodecException("bad pattern " + op);
+      }
+    }
+
+    List<Core.Pat> pats() throws IOException, CodecException {
+      final ImmutableList.Builder<Core.Pat> list = ImmutableList.builder();
+      for (int i = varInt(); i > 0; i--) {
+        list.add(pat());
+      }
+      return list.build();
+    }
+
+    Core.ValDecl decl() throws IOException, CodecException {
+      final Op op = op();
+      switch (op) {
+        case VAL_DECL:
+          return valDecl();
+        case REC_VAL_DECL:
+          final ImmutableList.Builder<Core.NonRecValDecl> list =
+              ImmutableList.builder();
+          for (int i = varInt(); i > 0; i--) {
+            list.add(valDecl());
+          }
+          return core.recValDecl(list.build());
+        default:
+          throw new CodecException("bad declaration " + op);
+      }
+    }
+
+    Core.NonRecValDecl valDecl() throws IOException, CodecException {
+      final Pos pos = pos();
+      final Core.NamedPat pat = namedPat();
+      return core.nonRecValDecl(pos, pat, null, exp());
+    }
+
+    Core.Exp exp() throws IOException, CodecException {
+      final Op op = op();
+      final Pos pos;
+      final Type type;
+      switch (op) {
+        case ID:
+          pos = pos();
+          return core.id(pos, namedPat());
+        case RECORD_SELECTOR:
+          type = type();
+          return core.recordSelector((FnType) type, varInt());
+        case BOOL_LITERAL:
+          return core.boolLiteral((Boolean) value());
+        case CHAR_LITERAL:
+          return core.charLiteral((Character) value());
+        case INT_LITERAL:
+          return core.intLiteral((BigDecimal) value());
+        case REAL_LITERAL:
+          final Object real = value();
+          return real instanceof Float
+              ? core.realLiteral((Float) real)
+              : core.realLiteral((BigDecimal) real);
+        case STRING_LITERAL:
+          return core.stringLiteral((String) value());
+        case WORD_LITERAL:
+          return core.wordLiteral((BigDecimal) value());
+        case UNIT_LITERAL:
+          value();
+          return core.unitLiteral();
+        case FN_LITERAL:
+          type = type();
+          return core.functionLiteral(type, BuiltIn.valueOf(string()));
+        case TUPLE:
+          type = type();
+          return core.tuple((RecordLikeType) type, exps());
+        case LET:
+          final Core.ValDecl decl = decl();
+          return core.let(decl, exp());
+        case FN:
+          pos = pos();
+          type = type();
+          final Core.NamedPat idPat = namedPat();
+          return core.fn(pos, (FnType) type, (Core.IdPat) idPat, exp());
+        case CASE:
+          pos = pos();
+          type = type();
+          final Core.Exp exp = exp();
+          final ImmutableList.Builder<Core.Match> matchList =
+              ImmutableList.builder();
+          for (int i = varInt(); i > 0; i--) {
+            final Pos matchPos = pos();
+            final Core.Pat pat = pat();
+            matchList.add(core.match(matchPos, pat, exp()));
+          }
+          return core.caseOf(pos, type, exp, matchList.build());
+        case APPLY:
+          pos = pos();
+          type = type();
+          final Core.Exp fn = exp();
+          return core.apply(pos, type, fn, exp());
+        case RAISE:
+          pos = pos();
+          type = type();
+          return core.raise(pos, type, exp());
+        case FROM:
+          type = type();
+          final List<Core.FromStep> steps = new ArrayList<>();
+          for (int i = varInt(); i > 0; i--) {
+            steps.add(step());
+          }
+          return core.from(type, steps);
+        default:
+          throw new CodecException("bad expression " + op);
+      }
+    }
+
+    List<Core.Exp> exps() throws IOException, CodecException {
+      final ImmutableList.Builder<Core.Exp> list = ImmutableList.builder();
+      for (int i = varInt(); i > 0; i--) {
+        list.add(exp());
+      }
+      return list.build();
+    }
+
+    Core.FromStep step() throws IOException, CodecException {
+      final Op op = op();
+      if (op == Op.GROUP) {
+        final boolean atom = in.readBoolean();
+        final boolean ordered = in.readBoolean();
+        final SortedMap<Core.IdPat, Core.Exp> groupExps = new TreeMap<>();
+        for (int i = varInt(); i > 0; i--) {
+          final Core.IdPat id = (Core.IdPat) namedPat();
+          groupExps.put(id, exp());
+        }
+        final SortedMap<Core.IdPat, Core.Aggregate> aggregates =
+            new TreeMap<>();
+        for (int i = varInt(); i > 0; i--) {
+          final Core.IdPat id = (Core.IdPat) namedPat();
+          final Pos pos = pos();
+          final Type type = type();
+          final Core.Exp aggregate = exp();
+          final Core.@Nullable Exp argument = in.readBoolean() ? exp() : null;
+          aggregates.put(id, core.aggregate(pos, type, aggregate, argument));
+        }
+        return core.group(atom, ordered, groupExps, aggregates);
+      }
+      final List<Binding> bindings = new ArrayList<>();
+      for (int i = varInt(); i > 0; i--) {
+        bindings.add(Binding.of(namedPat()));
+      }
+      final boolean atom = in.readBoolean();
+      final boolean ordered = in.readBoolean();
+      final Core.StepEnv env = Core.StepEnv.of(bindings, atom, ordered);
+      switch (op) {
+        case SCAN:
+        case LEFT_JOIN:
+        case RIGHT_JOIN:
+        case FULL_JOIN:
+          final Core.Pat pat = pat();
+          final Core.Exp exp = exp();
+          return core.scan(op, env, pat, exp, exp());
+        case WHERE:
+          return core.where(env, exp());
+        case SKIP:
+          return core.skip(env, exp());
+        case TAKE:
+          return core.take(env, exp());
+        case ORDER:
+          return core.order(env, exp());
+        case YIELD:
+          return core.yield_(env, exp());
+        case UNORDER:
+          return core.unorder(env);
+        case EXCEPT:
+          final boolean exceptDistinct = in.readBoolean();
+          return core.except(env, exceptDistinct, exps());
+        case INTERSECT:
+          final boolean intersectDistinct = in.readBoolean();
+          return core.intersect(env, intersectDistinct, exps());
+        case UNION:
+          final boolean unionDistinct = in.readBoolean();
+          return core.union(env, unionDistinct, exps());
+        default:
+          throw new CodecException("bad step " + op);
+      }
+    }
+  }
+
+  /** Creates a named pattern with a given name and ordinal. */
+  @FunctionalInterface
+  private interface PatFactory {
+    Core.NamedPat create(String name, int i) throws IOException, CodecException;
+  }
+}
+
+// End CoreCodec.java
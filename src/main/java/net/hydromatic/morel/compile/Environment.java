@@ -24,7 +24,6 @@ import static org.apache.calcite.util.Util.first;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -84,26 +83,14 @@ public abstract class Environment {
    */
   public abstract @Nullable Binding getTop(String name);
 
-  /** Returns the binding of {@code name} if bound, null if not. */
+  /**
+   * Returns the binding of {@code name} if bound, null if not.
+   *
+   * <p>This is the most recent binding whose id or overload id has that name;
+   * the same as {@link #getTop(String)}.
+   */
   public final @Nullable Binding getOpt(String name) {
-    final Set<Core.NamedPat> idList = new LinkedHashSet<>();
-    visit(
-        binding -> {
-          if (binding.id.name.equals(name)) {
-            idList.add(binding.id);
-          }
-          if (binding.overloadId != null
-              && binding.overloadId.name.equals(name)) {
-            idList.add(binding.overloadId);
-          }
-        });
-    for (Core.NamedPat id : idList) {
-      Binding binding = getOpt(id);
-      if (binding != null) {
-        return binding;
-      }
-    }
-    return null;
+    return getTop(name);
   }
 
   /** Returns the binding of {@code id} if bound, null if not. */
@@ -158,7 +145,7 @@ public abstract class Environment {
   }
 
   protected Environment bind(Binding binding) {
-    return new Environments.SubEnvironment(this, binding);
+    return Environments.sub(this, binding);
   }
 
   /**
@@ -280,26 +267,20 @@ public abstract class Environment {
   }
 
   /** Returns whether a given name is overloaded in this environment. */
-  public boolean hasOverloaded(String name) {
-    final List<Binding> bindings = new ArrayList<>();
-    visit(
-        binding -> {
-          if (binding.overloadId != null
-              && binding.overloadId.name.equals(name)) {
-            bindings.add(binding);
-          }
-        });
-    return !bindings.isEmpty() && bindings.get(0).isInst();
-  }
+  public abstract boolean hasOverloaded(String name);
+
+  /**
+   * Visits the instances of an overloaded name, most recent first.
+   *
+   * <p>Unlike {@link #collect(Core.NamedPat, Consumer)}, does not stop at the
+   * {@code over} declaration.
+   */
+  abstract void visitInstances(
+      Core.IdPat overloadId, Consumer<Binding> consumer);
 
   public List<Core.IdPat> getOverloads(Core.IdPat id) {
     final List<Core.IdPat> list = new ArrayList<>();
-    visit(
-        binding -> {
-          if (binding.overloadId != null && binding.overloadId.equals(id)) {
-            list.add((Core.IdPat) binding.id);
-          }
-        });
+    visitInstances(id, binding -> list.add((Core.IdPat) binding.id));
     return list;
   }
 }
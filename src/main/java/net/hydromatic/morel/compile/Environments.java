@@ -18,21 +18,21 @@
  */
 package net.hydromatic.morel.compile;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static java.util.Objects.requireNonNull;
 import static net.hydromatic.morel.ast.CoreBuilder.core;
 import static net.hydromatic.morel.util.Static.SKIP;
-import static net.hydromatic.morel.util.Static.last;
 import static net.hydromatic.morel.util.Static.shorterThan;
 
-import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMultimap;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.function.ToIntFunction;
@@ -48,6 +48,7 @@ import net.hydromatic.morel.type.MultiType;
 import net.hydromatic.morel.type.PrimitiveType;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.type.TypeSystem;
+import net.hydromatic.morel.util.HashTrie;
 import net.hydromatic.morel.util.Pair;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
@@ -60,6 +61,12 @@ public abstract class Environments {
           .bind(core.idPat(PrimitiveType.BOOL, "true", 0), true)
           .bind(core.idPat(PrimitiveType.BOOL, "false", 0), false);
 
+  /**
+   * Maximum length of a chain of {@link SubEnvironment} before {@link
+   * #sub(Environment, Binding)} adds an index.
+   */
+  private static final int CHAIN_LENGTH = 32;
+
   private Environments() {}
 
   /** Creates an empty environment. */
@@ -79,6 +86,11 @@ public abstract class Environments {
 
   /**
    * Creates a compilation environment, including built-ins and foreign values.
+   *
+   * <p>If there is a session and the type system is in its initial state (as
+   * when a shell or kernel starts), copies built-in types from a {@link
+   * Snapshot}, and layers the session's bindings on top of the snapshot's
+   * environment, so that the built-ins are computed only once per JVM.
    */
   private static Environment env(
       Environment environment,
@@ -88,16 +100,54 @@ public abstract class Environments {
     if (SKIP) {
       return environment;
     }
-    final List<Binding> bindings = new ArrayList<>();
-    BuiltIn.dataTypes(typeSystem, bindings);
-    final Predicate<String> excludeStructure;
-    if (session != null) {
+    if (session != null
+        && typeSystem.isInitial()
+        && environment == EmptyEnvironment.INSTANCE) {
       final String regex = Prop.EXCLUDE_STRUCTURES.stringValue(session.map);
-      final Pattern pattern = Pattern.compile(regex);
-      excludeStructure = s -> pattern.matcher(s).matches();
-    } else {
-      excludeStructure = s -> false;
+      final Snapshot snapshot =
+          Snapshot.CACHE.computeIfAbsent(regex, Snapshot::create);
+      typeSystem.copyFrom(snapshot.typeSystem);
+      final List<Binding> bindings = snapshot.sessionBindings(session);
+      foreignBindings(typeSystem, valueMap, bindings);
+      return bind(snapshot.env, bindings);
     }
+
+    final List<Binding> bindings = new ArrayList<>();
+    final Predicate<String> excludeStructure =
+        session == null
+            ? s -> false
+            : excludeStructure(
+                Prop.EXCLUDE_STRUCTURES.stringValue(session.map));
+    builtInBindings(
+        typeSystem,
+        excludeStructure,
+        session == null
+            ? null
+            : key -> requireNonNull(key.sessionValue).apply(session),
+        bindings);
+    foreignBindings(typeSystem, valueMap, bindings);
+    return bind(environment, bindings);
+  }
+
+  /** Returns a predicate that matches structure names against a regex. */
+  private static Predicate<String> excludeStructure(String regex) {
+    final Pattern pattern = Pattern.compile(regex);
+    return s -> pattern.matcher(s).matches();
+  }
+
+  /**
+   * Registers built-in data types in a type system, and adds bindings of
+   * built-in values and structures.
+   *
+   * <p>If {@code sessionValue} is null, skips built-ins whose value depends on
+   * the session; otherwise calls it to get their value.
+   */
+  private static void builtInBindings(
+      TypeSystem typeSystem,
+      Predicate<String> excludeStructure,
+      @Nullable Function<BuiltIn, Object> sessionValue,
+      List<Binding> bindings) {
+    BuiltIn.dataTypes(typeSystem, bindings);
     final ToIntFunction<String> nameGen = typeSystem.nameGenerator::inc;
     Codes.BUILT_IN_VALUES.forEach(
         (key, value) -> {
@@ -110,10 +160,10 @@ public abstract class Environments {
           }
           final Type type = key.typeFunction.apply(typeSystem);
           if (key.sessionValue != null) {
-            if (session == null) {
+            if (sessionValue == null) {
               return;
             }
-            value = key.sessionValue.apply(session);
+            value = sessionValue.apply(key);
           }
           // If type is a MultiType, define several overloads.
           if (type instanceof MultiType) {
@@ -163,9 +213,6 @@ public abstract class Environments {
                   core.idPat(type, structure.name, nameGen),
                   requireNonNull(emptyEnv.getOpt(structure.name))));
         });
-
-    foreignBindings(typeSystem, valueMap, bindings);
-    return bind(environment, bindings);
   }
 
   private static void foreignBindings(
@@ -194,32 +241,49 @@ public abstract class Environments {
     } else {
       // We assume that the set of bindings does not include two Core.IdPat
       // instances with the same name but different ordinals.
-      //
-      // Instances (overloaded bindings) go in multimap, separate from the
-      // regular map for 'val' bindings, because there may be several instances
-      // with the same name.
-      final ImmutableMap.Builder<Core.NamedPat, Binding> builder =
-          ImmutableMap.builder();
-      final ImmutableMultimap.Builder<Core.IdPat, Binding> instanceBuilder =
-          ImmutableMultimap.builder();
-      for (Binding binding : bindings) {
-        if (binding.isInst()) {
-          instanceBuilder.put(requireNonNull(binding.overloadId), binding);
-        } else {
-          builder.put(binding.id, binding);
-        }
+      final ImmutableList<Binding> bindingList = ImmutableList.copyOf(bindings);
+      final Set<Core.NamedPat> ids = new HashSet<>();
+      boolean hasInstances = false;
+      for (Binding binding : bindingList) {
+        ids.add(binding.id);
+        hasInstances |= binding.isInst();
       }
-      final ImmutableMap<Core.NamedPat, Binding> map = builder.build();
-      final ImmutableMultimap<Core.IdPat, Binding> instanceMap =
-          instanceBuilder.build();
-      if (instanceMap.isEmpty()) {
+      if (!hasInstances) {
         // Optimize by skipping ancestor environments that are completely
         // obscured. If there are overloaded bindings, the optimization logic
         // would be complicated, so don't even try.
-        env = env.nearestAncestorNotObscuredBy(map.keySet());
+        env = env.nearestAncestorNotObscuredBy(ids);
       }
-      return new MapEnvironment(env, map, instanceMap);
+      return new MapEnvironment(env, bindingList);
+    }
+  }
+
+  /**
+   * Creates an environment that inherits from a parent environment and adds one
+   * binding.
+   *
+   * <p>Every {@link #CHAIN_LENGTH} links, the chain of {@link SubEnvironment}
+   * is capped by an empty {@link MapEnvironment}, so that a lookup never walks
+   * more than that many links before it reaches an index.
+   */
+  static Environment sub(Environment parent, Binding binding) {
+    final SubEnvironment env = new SubEnvironment(parent, binding);
+    if (env.depth < CHAIN_LENGTH) {
+      return env;
+    }
+    return new MapEnvironment(env, ImmutableList.of());
+  }
+
+  /** Returns an index of the bindings of an environment and its ancestors. */
+  private static Index index(Environment env) {
+    if (env instanceof MapEnvironment) {
+      return ((MapEnvironment) env).index;
     }
+    if (env instanceof SubEnvironment) {
+      final SubEnvironment subEnv = (SubEnvironment) env;
+      return index(subEnv.parent).plus(subEnv.binding, subEnv);
+    }
+    return Index.EMPTY;
   }
 
   /**
@@ -229,9 +293,16 @@ public abstract class Environments {
     private final Environment parent;
     private final Binding binding;
 
+    /** Number of links from here to the nearest non-sub environment. */
+    private final int depth;
+
     SubEnvironment(Environment parent, Binding binding) {
       this.parent = requireNonNull(parent);
       this.binding = requireNonNull(binding);
+      this.depth =
+          parent instanceof SubEnvironment
+              ? ((SubEnvironment) parent).depth + 1
+              : 1;
     }
 
     @Override
@@ -319,7 +390,7 @@ public abstract class Environments {
       } else {
         env = this;
       }
-      return new Environments.SubEnvironment(env, binding);
+      return sub(env, binding);
     }
 
     @Override
@@ -328,6 +399,20 @@ public abstract class Environments {
       parent.visit(consumer);
     }
 
+    @Override
+    public boolean hasOverloaded(String name) {
+      return binding.overloadId != null && binding.overloadId.name.equals(name)
+          || parent.hasOverloaded(name);
+    }
+
+    @Override
+    void visitInstances(Core.IdPat overloadId, Consumer<Binding> consumer) {
+      if (overloadId.equals(binding.overloadId)) {
+        consumer.accept(binding);
+      }
+      parent.visitInstances(overloadId, consumer);
+    }
+
     @Override
     Environment nearestAncestorNotObscuredBy(Set<Core.NamedPat> names) {
       return names.contains(binding.id)
@@ -377,6 +462,16 @@ public abstract class Environments {
       // do nothing
     }
 
+    @Override
+    public boolean hasOverloaded(String name) {
+      return false;
+    }
+
+    @Override
+    void visitInstances(Core.IdPat overloadId, Consumer<Binding> consumer) {
+      // do nothing
+    }
+
     @Override
     Environment nearestAncestorNotObscuredBy(Set<Core.NamedPat> names) {
       return this;
@@ -388,73 +483,125 @@ public abstract class Environments {
     }
   }
 
-  /** Environment that keeps bindings in a map. */
+  /**
+   * Built-in types and environment, computed once per JVM for each value of
+   * {@link Prop#EXCLUDE_STRUCTURES}.
+   *
+   * <p>Neither the type system nor the environment is modified after creation.
+   * Each session copies the type system's tables, and binds its own values on
+   * top of the environment.
+   */
+  private static class Snapshot {
+    static final Map<String, Snapshot> CACHE = new ConcurrentHashMap<>();
+
+    final TypeSystem typeSystem;
+    final Environment env;
+
+    /**
+     * Bindings in {@link #env} whose values depend on the session; their values
+     * are placeholders.
+     */
+    final ImmutableList<Binding> sessionBindings;
+
+    private Snapshot(
+        TypeSystem typeSystem,
+        Environment env,
+        ImmutableList<Binding> sessionBindings) {
+      this.typeSystem = typeSystem;
+      this.env = env;
+      this.sessionBindings = sessionBindings;
+    }
+
+    static Snapshot create(String excludeRegex) {
+      final TypeSystem typeSystem = new TypeSystem();
+      final List<Binding> bindings = new ArrayList<>();
+      builtInBindings(
+          typeSystem,
+          excludeStructure(excludeRegex),
+          SessionValue::new,
+          bindings);
+      final ImmutableList<Binding> sessionBindings =
+          bindings.stream()
+              .filter(binding -> binding.value instanceof SessionValue)
+              .collect(toImmutableList());
+      return new Snapshot(
+          typeSystem,
+          new MapEnvironment(
+              EmptyEnvironment.INSTANCE, ImmutableList.copyOf(bindings)),
+          sessionBindings);
+    }
+
+    /**
+     * Returns bindings that obscure the placeholders with this session's
+     * values.
+     */
+    List<Binding> sessionBindings(Session session) {
+      final List<Binding> list = new ArrayList<>();
+      for (Binding binding : sessionBindings) {
+        final BuiltIn key = ((SessionValue) binding.value).key;
+        list.add(
+            binding.withValue(requireNonNull(key.sessionValue).apply(session)));
+      }
+      return list;
+    }
+  }
+
+  /**
+   * Placeholder, in a {@link Snapshot}, for the value of a built-in that
+   * depends on the session.
+   */
+  private static class SessionValue {
+    final BuiltIn key;
+
+    SessionValue(BuiltIn key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * Environment that adds a list of bindings to a parent environment, and has
+   * an index of all bindings, its own and its ancestors'.
+   *
+   * <p>The index is built from the parent's index and shares most of its
+   * structure, so lookups cost O(log n) in the total number of bindings rather
+   * than O(n) in the length of the chain of environments.
+   */
   static class MapEnvironment extends Environment {
     private final Environment parent;
-    private final Map<Core.NamedPat, Binding> map;
-    private final ImmutableMultimap<Core.IdPat, Binding> instanceMap;
+    private final ImmutableList<Binding> bindings;
+    private final Index index;
 
-    MapEnvironment(
-        Environment parent,
-        ImmutableMap<Core.NamedPat, Binding> map,
-        ImmutableMultimap<Core.IdPat, Binding> instanceMap) {
+    MapEnvironment(Environment parent, ImmutableList<Binding> bindings) {
       this.parent = requireNonNull(parent);
-      this.map = requireNonNull(map);
-      this.instanceMap = requireNonNull(instanceMap);
+      this.bindings = requireNonNull(bindings);
+      Index index = index(parent);
+      for (Binding binding : bindings) {
+        index = index.plus(binding, this);
+      }
+      this.index = index;
     }
 
     @Override
     void visit(Consumer<Binding> consumer) {
-      map.values().forEach(consumer);
-      instanceMap.values().forEach(consumer);
+      bindings.forEach(consumer);
       parent.visit(consumer);
     }
 
     @Override
     public @Nullable Binding getTop(String name) {
-      final List<Binding> bindings = new ArrayList<>();
-      map.values()
-          .forEach(
-              binding -> {
-                if (binding.id.name.equals(name)) {
-                  bindings.add(binding);
-                }
-              });
-      instanceMap
-          .asMap()
-          .forEach(
-              (overloadId, bindings1) -> {
-                if (overloadId.name.equals(name)) {
-                  bindings.addAll(bindings1);
-                }
-              });
-      if (!bindings.isEmpty()) {
-        return last(bindings);
-      }
-      return parent.getTop(name);
+      return index.tops.get(name);
     }
 
     @Override
     public @Nullable Binding getOpt(Core.NamedPat id) {
-      final Binding binding = map.get(id);
-      if (binding != null && binding.id.i == id.i) {
-        return binding;
-      }
-      for (Binding binding2 : instanceMap.values()) {
-        if (binding2.id.equals(id)) {
-          return binding2;
-        }
-      }
-      return parent.getOpt(id);
+      final @Nullable Chain chain = index.chains.get(id);
+      return chain == null ? null : chain.binding;
     }
 
     @Override
     public @Nullable Pair<Binding, Environment> getOpt2(Core.NamedPat id) {
-      final Binding binding = map.get(id);
-      if (binding != null && binding.id.i == id.i) {
-        return Pair.of(binding, this);
-      }
-      return parent.getOpt2(id);
+      final @Nullable Chain chain = index.chains.get(id);
+      return chain == null ? null : Pair.of(chain.binding, chain.env);
     }
 
     @Override
@@ -465,28 +612,15 @@ public abstract class Environments {
 
     @Override
     public void collect(Core.NamedPat id, Consumer<Binding> consumer) {
-      final Binding binding = map.get(id);
-      final ImmutableCollection<Binding> instBindings =
-          id instanceof Core.IdPat
-              ? instanceMap.get((Core.IdPat) id)
-              : ImmutableList.of();
-      if (binding != null && binding.kind != Binding.Kind.OVER) {
-        // Send this binding to the consumer. It obscures all other
-        // bindings, so we're done.
-        if (!instBindings.isEmpty()) {
-          // We have not yet written the code to handle the case where a
-          // MapEnvironment contains VAL and INST bindings for the same id.
-          // It is not possible to figure out bindings came later.
-          throw new UnsupportedOperationException();
-        }
-        consumer.accept(binding);
-        return;
-      }
-
-      // Traverse the instance bindings in reverse order, so that we see
-      // instances before overload declarations.
-      for (Binding instBinding : instBindings.asList().reverse()) {
-        switch (instBinding.kind) {
+      for (Chain chain = index.chains.get(id);
+          chain != null;
+          chain = chain.next) {
+        switch (chain.binding.kind) {
+          case VAL:
+            // Send this binding to the consumer. It obscures all other
+            // bindings, so we're done.
+            consumer.accept(chain.binding);
+            return;
           case OVER:
             // We have hit the 'over <id>' declaration. There are no more
             // instances to see.
@@ -494,39 +628,105 @@ public abstract class Environments {
           case INST:
             // Send this instance to the consumer, but carry on looking for
             // more.
-            consumer.accept(instBinding);
+            consumer.accept(chain.binding);
             break;
         }
       }
-      parent.collect(id, consumer);
+    }
+
+    @Override
+    public boolean hasOverloaded(String name) {
+      return index.instances.get(name) != null;
+    }
+
+    @Override
+    void visitInstances(Core.IdPat overloadId, Consumer<Binding> consumer) {
+      for (Chain chain = index.chains.get(overloadId);
+          chain != null;
+          chain = chain.next) {
+        if (overloadId.equals(chain.binding.overloadId)) {
+          consumer.accept(chain.binding);
+        }
+      }
     }
 
     @Override
     Environment nearestAncestorNotObscuredBy(Set<Core.NamedPat> names) {
-      return names.containsAll(map.keySet())
-          ? parent.nearestAncestorNotObscuredBy(names)
-          : this;
+      for (Binding binding : bindings) {
+        if (!names.contains(binding.id)) {
+          return this;
+        }
+      }
+      return parent.nearestAncestorNotObscuredBy(names);
     }
 
     @Override
     int distance(int soFar, Core.NamedPat id) {
-      final int i = find(map.keySet(), id);
-      if (i >= 0) {
-        return soFar + map.size() - 1 - i;
-      } else {
-        return parent.distance(soFar + map.size(), id);
+      for (int i = bindings.size() - 1; i >= 0; i--) {
+        if (bindings.get(i).id.equals(id)) {
+          return soFar + bindings.size() - 1 - i;
+        }
       }
+      return parent.distance(soFar + bindings.size(), id);
     }
+  }
 
-    private <E> int find(Iterable<E> iterable, E e) {
-      int i = 0;
-      for (E e1 : iterable) {
-        if (e1.equals(e)) {
-          return i;
-        }
-        ++i;
+  /**
+   * Index of the bindings of an environment and its ancestors.
+   *
+   * <p>Immutable; {@link #plus} returns a new index.
+   */
+  private static class Index {
+    static final Index EMPTY =
+        new Index(HashTrie.empty(), HashTrie.empty(), HashTrie.empty());
+
+    /** Newest binding of each name, as its id or its overload id. */
+    final HashTrie<String, Binding> tops;
+
+    /** Newest instance of each overloaded name. */
+    final HashTrie<String, Binding> instances;
+
+    /** Bindings of each id or overload id, newest first. */
+    final HashTrie<Core.NamedPat, Chain> chains;
+
+    Index(
+        HashTrie<String, Binding> tops,
+        HashTrie<String, Binding> instances,
+        HashTrie<Core.NamedPat, Chain> chains) {
+      this.tops = tops;
+      this.instances = instances;
+      this.chains = chains;
+    }
+
+    /** Returns this index plus a binding declared in a given environment. */
+    Index plus(Binding binding, Environment env) {
+      HashTrie<String, Binding> tops = this.tops.plus(binding.id.name, binding);
+      HashTrie<String, Binding> instances = this.instances;
+      HashTrie<Core.NamedPat, Chain> chains =
+          this.chains.plus(
+              binding.id, new Chain(binding, env, this.chains.get(binding.id)));
+      final Core.@Nullable IdPat overloadId = binding.overloadId;
+      if (overloadId != null) {
+        tops = tops.plus(overloadId.name, binding);
+        instances = instances.plus(overloadId.name, binding);
+        chains =
+            chains.plus(
+                overloadId, new Chain(binding, env, chains.get(overloadId)));
       }
-      return -1;
+      return new Index(tops, instances, chains);
+    }
+  }
+
+  /** Bindings of an id, newest first, and where each was declared. */
+  private static class Chain {
+    final Binding binding;
+    final Environment env;
+    final @Nullable Chain next;
+
+    Chain(Binding binding, Environment env, @Nullable Chain next) {
+      this.binding = binding;
+      this.env = env;
+      this.next = next;
     }
   }
 }
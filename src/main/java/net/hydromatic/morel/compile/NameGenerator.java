@@ -18,8 +18,8 @@
  */
 package net.hydromatic.morel.compile;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -27,9 +27,12 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * <p>Also keeps track of how many times each given name has been used in this
  * program, so that a new occurrence of a name can be given a fresh ordinal.
+ *
+ * <p>It is safe to use from several threads.
  */
 public class NameGenerator {
-  private final Map<String, AtomicInteger> nameCounts = new HashMap<>();
+  private final Map<String, AtomicInteger> nameCounts =
+      new ConcurrentHashMap<>();
 
   /** Generates a name that is unique in this program. */
   public String get() {
@@ -42,12 +45,42 @@ public class NameGenerator {
     return s + inc(s);
   }
 
+  /**
+   * Ensures that {@link #getPrefixed} will not generate a given name, which was
+   * generated by another program, such as "v$3".
+   */
+  public void reserve(String generatedName) {
+    final int dollar = generatedName.lastIndexOf('$');
+    final int n = Integer.parseInt(generatedName.substring(dollar + 1));
+    nameCounts
+        .computeIfAbsent(
+            generatedName.substring(0, dollar + 1), s -> new AtomicInteger(0))
+        .accumulateAndGet(n + 1, Math::max);
+  }
+
   /** Returns the number of times that "name" has been used for a variable. */
   public int inc(String name) {
     return nameCounts
         .computeIfAbsent(name, n -> new AtomicInteger(0))
         .getAndIncrement();
   }
+
+  /** Returns whether no names have been generated or counted. */
+  public boolean isEmpty() {
+    return nameCounts.isEmpty();
+  }
+
+  /**
+   * Sets the counts of this generator to those of another. This generator must
+   * be empty.
+   */
+  public void copyFrom(NameGenerator nameGenerator) {
+    if (!nameCounts.isEmpty()) {
+      throw new IllegalStateException("not empty");
+    }
+    nameGenerator.nameCounts.forEach(
+        (name, count) -> nameCounts.put(name, new AtomicInteger(count.get())));
+  }
 }
 
 // End NameGenerator.java
@@ -0,0 +1,274 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import net.hydromatic.morel.ast.Ast;
+import net.hydromatic.morel.ast.AstNode;
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.eval.Session;
+import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.TypeSystem;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Compiles several statements concurrently.
+ *
+ * <p>A batch is a sequence of consecutive statements, none of which uses a name
+ * that an earlier statement in the batch defines. Each statement in a batch can
+ * therefore be compiled in the environment that precedes the batch, and all of
+ * them can be compiled at the same time, before any is executed. The statements
+ * are then executed in order.
+ *
+ * <p>Only expressions and value and function declarations can be in a batch.
+ * Declarations of types, datatypes and overloads modify the type system as they
+ * are validated, and statements that mention {@code Sys} or {@code use}, or a
+ * value of progressive type, may change how later statements are compiled; each
+ * such statement is compiled on its own, just before it is executed.
+ */
+public abstract class ParallelCompiler {
+  private ParallelCompiler() {}
+
+  /**
+   * Returns the number of statements at the start of a list that form a batch.
+   * Returns 0 if the first statement cannot be in a batch.
+   */
+  public static int batchSize(
+      Environment env, List<? extends AstNode> statements) {
+    final Set<String> definedNames = new HashSet<>();
+    int n = 0;
+    for (AstNode statement : statements) {
+      final @Nullable Names names = names(env, statement);
+      if (names == null || intersects(names.used, definedNames)) {
+        break;
+      }
+      definedNames.addAll(names.defined);
+      ++n;
+    }
+    return n;
+  }
+
+  /**
+   * Compiles a batch of statements concurrently, and returns a compilation for
+   * each statement.
+   */
+  public static List<Compilation> compile(
+      ExecutorService executor,
+      TypeSystem typeSystem,
+      Session session,
+      Environment env,
+      List<? extends AstNode> statements) {
+    final List<Future<Compilation>> futures = new ArrayList<>();
+    for (AstNode statement : statements) {
+      futures.add(
+          executor.submit(
+              () -> Compilation.of(typeSystem, session, env, statement)));
+    }
+    final ImmutableList.Builder<Compilation> compilations =
+        ImmutableList.builder();
+    for (Future<Compilation> future : futures) {
+      try {
+        compilations.add(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return compilations.build();
+  }
+
+  /**
+   * Returns the names that a statement uses and defines, or null if the
+   * statement cannot be in a batch.
+   */
+  static @Nullable Names names(Environment env, AstNode statement) {
+    AstNode node = statement;
+    while (node instanceof Ast.AttributedDecl) {
+      node = ((Ast.AttributedDecl) node).decl;
+    }
+    final Set<String> defined = new HashSet<>();
+    if (node instanceof Ast.Exp) {
+      defined.add("it");
+    } else if (node instanceof Ast.ValDecl && !((Ast.ValDecl) node).inst) {
+      for (Ast.ValBind valBind : ((Ast.ValDecl) node).valBinds) {
+        final StatementCache.NameCollector collector =
+            new StatementCache.NameCollector();
+        valBind.pat.accept(collector);
+        defined.addAll(collector.names);
+      }
+    } else if (node instanceof Ast.FunDecl) {
+      for (Ast.FunBind funBind : ((Ast.FunDecl) node).funBinds) {
+        defined.add(funBind.name);
+      }
+    } else {
+      return null;
+    }
+
+    final UseCollector collector = new UseCollector();
+    statement.accept(collector);
+    if (collector.declaresTypes
+        || collector.names.contains("Sys")
+        || collector.names.contains("use")) {
+      return null;
+    }
+    for (String name : collector.names) {
+      final Binding binding = env.getTop(name);
+      if (binding != null
+          && StatementCache.containsProgressive(binding.id.type)) {
+        return null;
+      }
+    }
+    return new Names(collector.names, defined, collector.typeNames);
+  }
+
+  private static boolean intersects(Set<String> set0, Set<String> set1) {
+    for (String s : set0) {
+      if (set1.contains(s)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Names that a statement uses and defines, and types that it uses. */
+  static class Names {
+    final Set<String> used;
+    final Set<String> defined;
+    final Set<String> typeNames;
+
+    Names(Set<String> used, Set<String> defined, Set<String> typeNames) {
+      this.used = used;
+      this.defined = defined;
+      this.typeNames = typeNames;
+    }
+  }
+
+  /**
+   * Visitor that collects the names that a statement mentions, and notes
+   * whether it declares a type (perhaps in a {@code let}).
+   */
+  private static class UseCollector extends StatementCache.NameCollector {
+    boolean declaresTypes;
+
+    @Override
+    protected void visit(Ast.TypeDecl typeDecl) {
+      declaresTypes = true;
+      super.visit(typeDecl);
+    }
+
+    @Override
+    protected void visit(Ast.DatatypeDecl datatypeDecl) {
+      declaresTypes = true;
+      super.visit(datatypeDecl);
+    }
+
+    @Override
+    protected void visit(Ast.OverDecl overDecl) {
+      declaresTypes = true;
+      super.visit(overDecl);
+    }
+  }
+
+  /**
+   * Result of compiling a statement on another thread: either a compiled
+   * statement or the exception that compiling it threw, plus any warnings.
+   */
+  public static class Compilation {
+    private final @Nullable CompiledStatement compiledStatement;
+    private final @Nullable RuntimeException exception;
+    private final ImmutableList<CompileException> warnings;
+    private final Core.@Nullable Decl coreDecl;
+    private final @Nullable Environment environment;
+
+    private Compilation(
+        @Nullable CompiledStatement compiledStatement,
+        @Nullable RuntimeException exception,
+        List<CompileException> warnings,
+        Core.@Nullable Decl coreDecl,
+        @Nullable Environment environment) {
+      this.compiledStatement = compiledStatement;
+      this.exception = exception;
+      this.warnings = ImmutableList.copyOf(warnings);
+      this.coreDecl = coreDecl;
+      this.environment = environment;
+    }
+
+    /** Compiles a statement in a fork of the session. */
+    static Compilation of(
+        TypeSystem typeSystem,
+        Session session,
+        Environment env,
+        AstNode statement) {
+      final Session session2 = session.fork();
+      final List<CompileException> warnings = new ArrayList<>();
+      try {
+        final CompiledStatement compiledStatement =
+            Compiles.prepareStatement(
+                typeSystem,
+                session2,
+                env,
+                statement,
+                null,
+                warnings::add,
+                Tracers.empty());
+        return new Compilation(
+            compiledStatement,
+            null,
+            warnings,
+            session2.coreDecl,
+            session2.environment);
+      } catch (RuntimeException e) {
+        return new Compilation(null, e, warnings, null, null);
+      }
+    }
+
+    /**
+     * Returns the compiled statement, as {@link Compiles#prepareStatement}
+     * would have: sends warnings to a consumer, stores the statement's Core
+     * form in the session for {@code Sys.planEx}, and throws if compilation
+     * failed.
+     */
+    public CompiledStatement get(
+        Session session, Consumer<CompileException> warningConsumer) {
+      warnings.forEach(warningConsumer);
+      if (coreDecl != null) {
+        session.coreDecl = coreDecl;
+        session.environment = environment;
+      }
+      if (exception != null) {
+        throw exception;
+      }
+      return requireNonNull(compiledStatement);
+    }
+  }
+}
+
+// End ParallelCompiler.java
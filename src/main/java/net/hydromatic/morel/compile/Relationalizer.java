@@ -26,7 +26,10 @@ import static net.hydromatic.morel.util.Static.skip;
 
 import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import net.hydromatic.morel.ast.Core;
 import net.hydromatic.morel.ast.Op;
 import net.hydromatic.morel.type.Binding;
@@ -41,19 +44,41 @@ import net.hydromatic.morel.type.TypeSystem;
  * BuiltIn#LIST_MAP} into {@link Core.From} expressions.
  */
 public class Relationalizer extends EnvShuttle {
+  /**
+   * Function bodies that a previous pass of this Relationalizer left unchanged.
+   * The rewrite depends only on the expression, so such a body would be left
+   * unchanged again, and need not be visited.
+   */
+  private final Set<Core.Exp> fixedExps;
+
   /** Private constructor. */
-  private Relationalizer(TypeSystem typeSystem, Environment env) {
+  private Relationalizer(
+      TypeSystem typeSystem, Environment env, Set<Core.Exp> fixedExps) {
     super(typeSystem, env);
+    this.fixedExps = fixedExps;
   }
 
   /** Creates a Relationalizer. */
   public static Relationalizer of(TypeSystem typeSystem, Environment env) {
-    return new Relationalizer(typeSystem, env);
+    return new Relationalizer(
+        typeSystem, env, Collections.newSetFromMap(new IdentityHashMap<>()));
   }
 
   @Override
   protected Relationalizer push(Environment env) {
-    return new Relationalizer(typeSystem, env);
+    return new Relationalizer(typeSystem, env, fixedExps);
+  }
+
+  @Override
+  protected Core.Fn visit(Core.Fn fn) {
+    if (fixedExps.contains(fn.exp)) {
+      return fn;
+    }
+    final Core.Fn fn2 = super.visit(fn);
+    if (fn2 == fn) {
+      fixedExps.add(fn.exp);
+    }
+    return fn2;
   }
 
   @Override
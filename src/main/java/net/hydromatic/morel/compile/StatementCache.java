@@ -0,0 +1,370 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import net.hydromatic.morel.ast.Ast;
+import net.hydromatic.morel.ast.AstNode;
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Pos;
+import net.hydromatic.morel.ast.Visitor;
+import net.hydromatic.morel.eval.Prop;
+import net.hydromatic.morel.eval.Session;
+import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.MultiType;
+import net.hydromatic.morel.type.RecordType;
+import net.hydromatic.morel.type.Type;
+import net.hydromatic.morel.type.TypeSystem;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Cache of compiled statements, so that a statement that is submitted again in
+ * an equivalent environment does not need to be validated, optimized and
+ * compiled again.
+ *
+ * <p>The key of an entry is the statement's source text and position, the
+ * session's properties, and a fingerprint of the environment. The fingerprint
+ * contains, for each name that the statement mentions, the {@link
+ * net.hydromatic.morel.type.Binding} of that name, and, for each type name, the
+ * {@link net.hydromatic.morel.type.Type}. Bindings are compared by identity,
+ * not by type, because the compiler may inline the value of a binding into the
+ * generated code.
+ *
+ * <p>The key includes the position because the compiled code contains it, to
+ * report where an exception was raised. The shell numbers the lines of each
+ * statement from 1 (see {@code MorelParserImpl.zero}), so a statement that is
+ * typed again on a later line has the same position; but the column of its
+ * first line is that of the line where it was typed.
+ *
+ * <p>Only expressions and value and function declarations are cached, and not
+ * those that use {@code Sys} or a value of progressive type. Declarations of
+ * types, datatypes and overloads modify the type system as they are validated,
+ * so must be compiled each time.
+ *
+ * <p>The cache holds at most {@link Prop#STATEMENT_CACHE_SIZE} entries,
+ * discarding the least recently used. It is thread-safe, because statements may
+ * be compiled concurrently; see {@link ParallelCompiler}.
+ */
+public class StatementCache {
+  private final Map<Key, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+  private int hitCount;
+  private int missCount;
+
+  /** Returns the number of statements found in the cache. */
+  public synchronized int hitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of cacheable statements not found in the cache. */
+  public synchronized int missCount() {
+    return missCount;
+  }
+
+  /** Returns the number of entries. */
+  public synchronized int size() {
+    return map.size();
+  }
+
+  /** Removes all entries and resets the counters. */
+  public synchronized void clear() {
+    map.clear();
+    hitCount = 0;
+    missCount = 0;
+  }
+
+  /** Returns the entry for a key, or null, and increments a counter. */
+  synchronized @Nullable Entry get(Key key) {
+    final Entry entry = map.get(key);
+    if (entry != null) {
+      ++hitCount;
+    } else {
+      ++missCount;
+    }
+    return entry;
+  }
+
+  /**
+   * Adds an entry, then discards the least recently used entries until there
+   * are no more than {@code maxSize}.
+   */
+  synchronized void put(Key key, Entry entry, int maxSize) {
+    map.put(key, entry);
+    while (map.size() > maxSize) {
+      map.remove(map.keySet().iterator().next());
+    }
+  }
+
+  /**
+   * Creates the key for a statement, or returns null if the statement cannot be
+   * cached.
+   */
+  static @Nullable Key key(
+      TypeSystem typeSystem,
+      Session session,
+      Environment env,
+      AstNode statement) {
+    AstNode node = statement;
+    while (node instanceof Ast.AttributedDecl) {
+      node = ((Ast.AttributedDecl) node).decl;
+    }
+    if (!(node instanceof Ast.Exp
+        || node instanceof Ast.ValDecl
+        || node instanceof Ast.FunDecl)) {
+      return null;
+    }
+
+    final @Nullable Fingerprint fingerprint =
+        fingerprint(typeSystem, env, statement);
+    if (fingerprint == null) {
+      return null;
+    }
+    final String source;
+    try {
+      source = statement.toString();
+    } catch (IllegalArgumentException e) {
+      // The statement contains a literal that is out of range. Let the
+      // compiler report the error.
+      return null;
+    }
+    return new Key(
+        source, statement.pos, ImmutableMap.copyOf(session.map), fingerprint);
+  }
+
+  /**
+   * Returns the fingerprint of a piece of code in an environment, or null if
+   * its meaning may depend on more than the bindings of the names it uses.
+   */
+  public static @Nullable Fingerprint fingerprint(
+      TypeSystem typeSystem, Environment env, AstNode node) {
+    final NameCollector collector = new NameCollector();
+    node.accept(collector);
+    if (collector.names.contains("Sys")) {
+      // "Sys.env" is a macro; it expands to a list of the bindings in the
+      // environment at compile time.
+      return null;
+    }
+    final @Nullable Object[] elements =
+        new Object[collector.names.size() + collector.typeNames.size()];
+    int i = 0;
+    for (String name : collector.names) {
+      final Binding binding = env.getTop(name);
+      if (binding != null && containsProgressive(binding.id.type)) {
+        // The type of a value such as "file" grows as it is explored.
+        return null;
+      }
+      elements[i++] = binding;
+    }
+    for (String name : collector.typeNames) {
+      elements[i++] = typeSystem.lookupOpt(name);
+    }
+    return new Fingerprint(elements);
+  }
+
+  /**
+   * Returns whether a type contains a progressive type.
+   *
+   * <p>Unlike {@link Type#containsProgressive()}, allows the type to contain
+   * overloaded functions, as the type of a structure such as {@code Test} may.
+   */
+  static boolean containsProgressive(Type type) {
+    if (type instanceof MultiType) {
+      for (Type type1 : ((MultiType) type).types) {
+        if (containsProgressive(type1)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (type instanceof RecordType) {
+      if (type.isProgressive()) {
+        return true;
+      }
+      for (Type type1 : ((RecordType) type).argTypes()) {
+        if (containsProgressive(type1)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return type.containsProgressive();
+  }
+
+  /** Key of a cache entry. */
+  static class Key {
+    final String source;
+    final Pos pos;
+    final ImmutableMap<Prop, Object> props;
+    final Fingerprint fingerprint;
+
+    final int hashCode;
+
+    Key(
+        String source,
+        Pos pos,
+        ImmutableMap<Prop, Object> props,
+        Fingerprint fingerprint) {
+      this.source = requireNonNull(source);
+      this.pos = requireNonNull(pos);
+      this.props = requireNonNull(props);
+      this.fingerprint = requireNonNull(fingerprint);
+      this.hashCode = Objects.hash(source, pos, props, fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key that = (Key) o;
+      return hashCode == that.hashCode
+          && source.equals(that.source)
+          && pos.equals(that.pos)
+          && props.equals(that.props)
+          && fingerprint.equals(that.fingerprint);
+    }
+  }
+
+  /**
+   * The bindings, in an environment, of the names that a piece of code uses,
+   * and the types of the type names it mentions. Elements are compared by
+   * identity, and may be null.
+   */
+  public static class Fingerprint {
+    private final @Nullable Object[] elements;
+    private final int hashCode;
+
+    Fingerprint(@Nullable Object[] elements) {
+      this.elements = elements;
+      int h = 0;
+      for (Object o : elements) {
+        h = h * 31 + System.identityHashCode(o);
+      }
+      this.hashCode = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof Fingerprint)) {
+        return false;
+      }
+      final Fingerprint that = (Fingerprint) o;
+      if (hashCode != that.hashCode
+          || elements.length != that.elements.length) {
+        return false;
+      }
+      for (int i = 0; i < elements.length; i++) {
+        if (elements[i] != that.elements[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Cache entry. */
+  static class Entry {
+    final CompiledStatement compiledStatement;
+    /** Warnings emitted while compiling the statement, to be replayed. */
+    final ImmutableList<CompileException> warnings;
+    /**
+     * Initial Core form of the statement, to be stored in {@link
+     * Session#coreDecl}; null if compiling it did not set that field.
+     */
+    final Core.@Nullable Decl coreDecl;
+
+    Entry(
+        CompiledStatement compiledStatement,
+        List<CompileException> warnings,
+        Core.@Nullable Decl coreDecl) {
+      this.compiledStatement = requireNonNull(compiledStatement);
+      this.warnings = ImmutableList.copyOf(warnings);
+      this.coreDecl = coreDecl;
+    }
+  }
+
+  /**
+   * Visitor that collects the names of values, operators and types mentioned in
+   * a statement.
+   *
+   * <p>It collects the names of local variables, too; looking them up in the
+   * environment is harmless, and makes the fingerprint more conservative.
+   */
+  static class NameCollector extends Visitor {
+    final TreeSet<String> names = new TreeSet<>();
+    final TreeSet<String> typeNames = new TreeSet<>();
+
+    @Override
+    protected void visit(Ast.Id id) {
+      names.add(id.name);
+    }
+
+    @Override
+    protected void visit(Ast.IdPat idPat) {
+      names.add(idPat.name);
+    }
+
+    @Override
+    protected void visit(Ast.InfixCall infixCall) {
+      if (infixCall.op.opName != null) {
+        names.add(infixCall.op.opName);
+      }
+      super.visit(infixCall);
+    }
+
+    @Override
+    protected void visit(Ast.PrefixCall prefixCall) {
+      if (prefixCall.op.opName != null) {
+        names.add(prefixCall.op.opName);
+      }
+      super.visit(prefixCall);
+    }
+
+    @Override
+    protected void visit(Ast.NamedType namedType) {
+      typeNames.add(namedType.name);
+      super.visit(namedType);
+    }
+  }
+}
+
+// End StatementCache.java
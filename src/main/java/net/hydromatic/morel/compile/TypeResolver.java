@@ -103,7 +103,6 @@ import net.hydromatic.morel.type.TypeVar;
 import net.hydromatic.morel.type.TypeVisitor;
 import net.hydromatic.morel.type.TypedValue;
 import net.hydromatic.morel.util.MapList;
-import net.hydromatic.morel.util.MartelliUnifier;
 import net.hydromatic.morel.util.Ord;
 import net.hydromatic.morel.util.PairList;
 import net.hydromatic.morel.util.Tracers;
@@ -119,6 +118,7 @@ import net.hydromatic.morel.util.Unifier.SubstitutionResult;
 import net.hydromatic.morel.util.Unifier.Term;
 import net.hydromatic.morel.util.Unifier.TermTerm;
 import net.hydromatic.morel.util.Unifier.Variable;
+import net.hydromatic.morel.util.UnionFindUnifier;
 import org.apache.calcite.util.Holder;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
@@ -129,7 +129,7 @@ public class TypeResolver {
   private final Consumer<CompileException> warningConsumer;
   private final PairList<Ast.Group, Triple> computeStack = PairList.of();
   private final List<Consumer<Resolved>> validations = new ArrayList<>();
-  private final Unifier unifier = new MartelliUnifier();
+  private final Unifier unifier = new UnionFindUnifier();
   private final List<TermVariable> terms = new ArrayList<>();
   private final Map<AstNode, Term> map = new HashMap<>();
   private final Map<Variable, Action> actionMap = new HashMap<>();
@@ -0,0 +1,98 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Cache, in memory, of the Core form of the statements of files loaded by
+ * {@code use}, so that a file that is used again in the same session does not
+ * need to be type-checked and converted to Core again.
+ *
+ * <p>It holds the same records as the files of {@link CoreCache}, keyed by the
+ * same hash, and is read before them. A record is read in the environment in
+ * which the file is used again, and is valid only if each name that it uses has
+ * the same type. The statements are then optimized, compiled and evaluated as
+ * usual, so the effect of using the file again is the same as if it had not
+ * been cached, even if a statement calls {@code Time.now} or reads a file.
+ *
+ * <p>Each session has its own cache, of at most {@link
+ * net.hydromatic.morel.eval.Prop#STATEMENT_CACHE_SIZE} files.
+ */
+public class UseCache {
+  private final Map<String, List<byte @Nullable []>> map =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private int hitCount;
+  private int diskHitCount;
+
+  /** Returns the number of statements whose Core was read from this cache. */
+  public synchronized int hitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of statements whose Core was read from the {@link
+   * CoreCache} on disk.
+   */
+  public synchronized int diskHitCount() {
+    return diskHitCount;
+  }
+
+  /** Notes that a statement's Core was read from this cache. */
+  synchronized void hit() {
+    ++hitCount;
+  }
+
+  /** Notes that a statement's Core was read from the cache on disk. */
+  synchronized void diskHit() {
+    ++diskHitCount;
+  }
+
+  /** Removes all entries and resets the counters. */
+  public synchronized void clear() {
+    map.clear();
+    hitCount = 0;
+    diskHitCount = 0;
+  }
+
+  /** Returns the records of a file, or null if it is not in the cache. */
+  synchronized @Nullable List<byte @Nullable []> get(String hash) {
+    return map.get(hash);
+  }
+
+  /**
+   * Adds the records of a file, then discards the least recently used files
+   * until there are no more than {@code maxSize}.
+   */
+  synchronized void put(
+      String hash, List<byte @Nullable []> records, int maxSize) {
+    // Copy the list; it may contain nulls, so we cannot use ImmutableList.
+    map.put(hash, Collections.unmodifiableList(new ArrayList<>(records)));
+    while (map.size() > maxSize) {
+      map.remove(map.keySet().iterator().next());
+    }
+  }
+}
+
+// End UseCache.java
@@ -23,12 +23,16 @@ import static net.hydromatic.morel.util.Pair.allMatch;
 import static net.hydromatic.morel.util.Static.skip;
 import static net.hydromatic.morel.util.Static.transformEager;
 
+import com.google.common.collect.ImmutableSet;
 import java.math.BigDecimal;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.BiConsumer;
 import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Op;
 import net.hydromatic.morel.ast.Pos;
+import net.hydromatic.morel.compile.BuiltIn;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.util.ImmutablePairList;
 
@@ -119,10 +123,13 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
     Object result = bindEvalBody(argValue);
     while (result instanceof Codes.TailCall) {
       final Codes.TailCall tc = (Codes.TailCall) result;
-      if (tc.fn instanceof Closure) {
-        result = ((Closure) tc.fn).bindEvalBody(tc.arg);
+      final Applicable fn = requireNonNull(tc.fn);
+      final Object arg = tc.arg();
+      tc.clear();
+      if (fn instanceof Closure) {
+        result = ((Closure) fn).bindEvalBody(arg);
       } else {
-        result = tc.fn.apply(evalEnv, tc.arg);
+        result = fn.apply(evalEnv, arg);
       }
     }
     return result;
@@ -359,34 +366,96 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
      */
     @Override
     public Object apply(Stack stack, Object argValue) {
-      Stack evalStack = stack.ensureSize(matchCode.capacity);
-      int savedTop = evalStack.save();
-      Object result = applyOnce(evalStack, argValue);
+      final Stack evalStack = stack.ensureSize(matchCode.capacity);
+      final int savedTop = evalStack.save();
+      return trampoline(evalStack, savedTop, applyOnce(evalStack, argValue));
+    }
+
+    /**
+     * Applies this closure to the elements of a 2- or 3-tuple, without creating
+     * the tuple.
+     *
+     * <p>Valid only if {@link Codes.StackMatchCode#spreadArity} is the number
+     * of arguments; if it is 2, {@code a2} is ignored.
+     */
+    public Object applySpread(Stack stack, Object a0, Object a1, Object a2) {
+      final Stack evalStack = stack.ensureSize(matchCode.capacity);
+      final int savedTop = evalStack.save();
+      return trampoline(
+          evalStack, savedTop, applyOnceSpread(evalStack, a0, a1, a2));
+    }
+
+    /**
+     * Makes pending {@link Codes.TailCall}s until a real value is produced,
+     * then restores the stack.
+     *
+     * <p>A tail call from a closure to itself (such as a loop written as a
+     * tail-recursive function) reuses the captured values already on the stack,
+     * and only re-binds the arguments.
+     */
+    private Object trampoline(Stack evalStack, int savedTop, Object result) {
+      StackClosure current = this;
       while (result instanceof Codes.TailCall) {
         final Codes.TailCall tc = (Codes.TailCall) result;
-        evalStack.restore(savedTop);
-        if (tc.fn instanceof StackClosure) {
-          final StackClosure nextFn = (StackClosure) tc.fn;
+        final Applicable fn = requireNonNull(tc.fn);
+        if (!(fn instanceof StackClosure)) {
+          final Object arg = tc.arg();
+          tc.clear();
+          evalStack.restore(savedTop);
+          result = fn.apply(evalStack, arg);
+          break;
+        }
+        final StackClosure next = (StackClosure) fn;
+        if (next == current) {
+          // Self tail call; the captured values are still in place.
+          evalStack.restore(savedTop + current.captured.length);
+        } else {
+          evalStack.restore(savedTop);
           // Ensure slots array is large enough for the tail-called closure.
           // The outer closure may have a smaller capacity than the tail-called
           // closure needs (e.g., fn x => case x of head::tail => ...).
-          evalStack = evalStack.ensureSize(nextFn.matchCode.capacity);
-          result = nextFn.applyOnce(evalStack, tc.arg);
+          evalStack = evalStack.ensureSize(next.matchCode.capacity);
+          next.pushCaptured(evalStack);
+          current = next;
+        }
+        if (tc.spreadArity > 0) {
+          final Object a0 = tc.a0;
+          final Object a1 = tc.a1;
+          final Object a2 = tc.a2;
+          tc.clear();
+          result = current.bindSpreadEval(evalStack, a0, a1, a2);
         } else {
-          result = tc.fn.apply(evalStack, tc.arg);
-          break;
+          final Object arg = requireNonNull(tc.arg);
+          tc.clear();
+          result = current.bindEval(evalStack, arg);
         }
       }
       evalStack.restore(savedTop);
       return result;
     }
 
-    private Object applyOnce(Stack stack, Object argValue) {
+    private void pushCaptured(Stack stack) {
       // Push all captured values (outer vars, then rec-group peers if any).
       for (Object v : captured) {
         stack.push(v);
       }
-      // Try each pattern arm.
+    }
+
+    private Object applyOnce(Stack stack, Object argValue) {
+      pushCaptured(stack);
+      return bindEval(stack, argValue);
+    }
+
+    private Object bindEval(Stack stack, Object argValue) {
+      return bindEval(matchCode, stack, argValue);
+    }
+
+    /**
+     * Binds the argument to the first arm whose pattern matches, and evaluates
+     * that arm. Assumes that the captured values have been pushed.
+     */
+    static Object bindEval(
+        Codes.StackMatchCode matchCode, Stack stack, Object argValue) {
       for (Map.Entry<Core.Pat, Code> patCode : matchCode.patCodes) {
         final int armTop = stack.save();
         if (pushBindings(patCode.getKey(), argValue, stack)) {
@@ -398,6 +467,48 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
           Codes.BuiltInExn.BIND, matchCode.pos);
     }
 
+    private Object applyOnceSpread(
+        Stack stack, Object a0, Object a1, Object a2) {
+      pushCaptured(stack);
+      return bindSpreadEval(stack, a0, a1, a2);
+    }
+
+    /**
+     * Similar to {@link #bindEval}, but the argument is a tuple that has not
+     * been created.
+     */
+    private Object bindSpreadEval(
+        Stack stack, Object a0, Object a1, Object a2) {
+      for (Map.Entry<Core.Pat, Code> patCode : matchCode.patCodes) {
+        final int armTop = stack.save();
+        if (pushSpreadBindings(patCode.getKey(), a0, a1, a2, stack)) {
+          return patCode.getValue().eval(stack);
+        }
+        stack.restore(armTop);
+      }
+      throw new Codes.MorelRuntimeException(
+          Codes.BuiltInExn.BIND, matchCode.pos);
+    }
+
+    /**
+     * Matches a tuple, record or wildcard pattern against the elements of a
+     * tuple that has not been created, pushing bound values onto the stack in
+     * the same order as {@link #pushBindings}.
+     */
+    private static boolean pushSpreadBindings(
+        Core.Pat pat, Object a0, Object a1, Object a2, Stack stack) {
+      if (pat.op == Op.WILDCARD_PAT) {
+        return true;
+      }
+      final List<Core.Pat> args =
+          pat.op == Op.TUPLE_PAT
+              ? ((Core.TuplePat) pat).args
+              : ((Core.RecordPat) pat).args;
+      return pushBindings(args.get(0), a0, stack)
+          && pushBindings(args.get(1), a1, stack)
+          && (args.size() == 2 || pushBindings(args.get(2), a2, stack));
+    }
+
     /**
      * Applies this closure without a pre-existing {@link Stack}.
      *
@@ -552,6 +663,98 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
       return pushBindings(conPat.pat, Variant.innerValue(variant), stack);
     }
   }
+
+  /**
+   * Function value for a {@code fn} expression that is passed to a built-in
+   * function that calls it only while the built-in is running (such as {@code
+   * List.map}), and does not retain it.
+   *
+   * <p>Unlike a {@link StackClosure}, does not copy the captured values into an
+   * array, nor allocate a {@link Stack} per call. The captured values are
+   * pushed once onto the caller's stack by {@link
+   * Codes.StackMatchCode#pushCaptured}; each call re-binds the argument above
+   * them and evaluates the body in place.
+   *
+   * <p>Valid only until the built-in returns; the frame is then discarded.
+   */
+  static final class InPlaceClosure implements Applicable, Applicable1 {
+    /**
+     * Built-in functions whose first argument is a function that they call only
+     * before they return, and that they neither store nor return.
+     */
+    static final Set<BuiltIn> BUILT_INS =
+        ImmutableSet.of(
+            BuiltIn.BAG_ALL,
+            BuiltIn.BAG_APP,
+            BuiltIn.BAG_EXISTS,
+            BuiltIn.BAG_FILTER,
+            BuiltIn.BAG_FIND,
+            BuiltIn.BAG_FOLD,
+            BuiltIn.BAG_MAP,
+            BuiltIn.BAG_MAP_PARTIAL,
+            BuiltIn.BAG_PARTITION,
+            BuiltIn.LIST_ALL,
+            BuiltIn.LIST_APP,
+            BuiltIn.LIST_EXISTS,
+            BuiltIn.LIST_FILTER,
+            BuiltIn.LIST_FIND,
+            BuiltIn.LIST_FOLDL,
+            BuiltIn.LIST_FOLDR,
+            BuiltIn.LIST_MAP,
+            BuiltIn.LIST_MAPI,
+            BuiltIn.LIST_MAP_PARTIAL,
+            BuiltIn.LIST_PARTITION);
+
+    private final Stack stack;
+    private final int frameTop;
+    private final Codes.StackMatchCode matchCode;
+
+    /**
+     * Creates an InPlaceClosure. The captured values must have been pushed onto
+     * {@code stack}, and its top is the base for the arguments of each call.
+     */
+    InPlaceClosure(Stack stack, Codes.StackMatchCode matchCode) {
+      this.stack = stack;
+      this.frameTop = stack.top;
+      this.matchCode = matchCode;
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return describer.start("inPlaceClosure", d -> {});
+    }
+
+    @Override
+    public Object apply(Stack stack, Object argValue) {
+      return apply(argValue);
+    }
+
+    @Override
+    public Object apply(Object argValue) {
+      stack.restore(frameTop);
+      Object result = StackClosure.bindEval(matchCode, stack, argValue);
+      stack.restore(frameTop);
+      if (result instanceof Codes.TailCall) {
+        // The body ended in a call. Our bindings are dead, so make the call
+        // just above the captured values.
+        final Codes.TailCall tc = (Codes.TailCall) result;
+        final Applicable fn = requireNonNull(tc.fn);
+        if (tc.spreadArity > 0) {
+          final Object a0 = tc.a0;
+          final Object a1 = tc.a1;
+          final Object a2 = tc.a2;
+          tc.clear();
+          result = ((StackClosure) fn).applySpread(stack, a0, a1, a2);
+        } else {
+          final Object arg = tc.arg();
+          tc.clear();
+          result = fn.apply(stack, arg);
+        }
+        stack.restore(frameTop);
+      }
+      return result;
+    }
+  }
 }
 
 // End Closure.java
@@ -35,6 +35,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import com.google.common.primitives.Chars;
@@ -55,11 +56,11 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
@@ -88,8 +89,10 @@ import net.hydromatic.morel.type.RangeExtent;
 import net.hydromatic.morel.type.TupleType;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.type.TypeSystem;
+import net.hydromatic.morel.util.AppendOnlySet;
 import net.hydromatic.morel.util.Characters;
 import net.hydromatic.morel.util.ColorScheme;
+import net.hydromatic.morel.util.ConcatList;
 import net.hydromatic.morel.util.ImmutablePairList;
 import net.hydromatic.morel.util.JavaVersion;
 import net.hydromatic.morel.util.Lindig;
@@ -2461,7 +2464,7 @@ public abstract class Codes {
     return new BaseApplicable2<List, List, List>(builtIn) {
       @Override
       public List apply(List list0, List list1) {
-        return ImmutableList.builder().addAll(list0).addAll(list1).build();
+        return ConcatList.of(list0, list1);
       }
     };
   }
@@ -2499,11 +2502,11 @@ public abstract class Codes {
     return new BaseApplicable1<List, List<List>>(builtIn) {
       @Override
       public List apply(List<List> lists) {
-        final ImmutableList.Builder builder = ImmutableList.builder();
+        List result = ImmutableList.of();
         for (List list : lists) {
-          builder.addAll(list);
+          result = ConcatList.of(result, list);
         }
-        return builder.build();
+        return result;
       }
     };
   }
@@ -4813,28 +4816,26 @@ public abstract class Codes {
         @Override
         public List apply(
             final List initialList, Applicable1<List, List> update) {
+          // Semi-naive evaluation. The store only grows, and its hash index
+          // is reused across rounds; each round passes the whole store and
+          // the previous round's delta as views, without copying either.
+          final AppendOnlySet store = new AppendOnlySet(initialList);
           List list = initialList;
-          List newList = list;
-          final Set seen = new LinkedHashSet(list);
+          List newList = initialList;
           for (; ; ) {
+            final int start = store.size();
             List nextList = update.apply(FlatLists.of(list, newList));
-            // Subtract already-seen elements (semi-naive evaluation).
-            // Without this, cyclic graphs would cause infinite iteration.
-            final List genuinelyNew = new ArrayList();
+            // Subtract already-seen elements. Without this, cyclic graphs
+            // would cause infinite iteration.
             for (Object o : nextList) {
-              if (seen.add(o)) {
-                genuinelyNew.add(o);
-              }
+              store.add(o);
             }
-            if (genuinelyNew.isEmpty()) {
+            final int end = store.size();
+            if (end == start) {
               return list;
             }
-            list =
-                ImmutableList.builder()
-                    .addAll(list)
-                    .addAll(genuinelyNew)
-                    .build();
-            newList = genuinelyNew;
+            list = store.view(0, end);
+            newList = store.view(start, end);
           }
         }
       };
@@ -7013,6 +7014,11 @@ public abstract class Codes {
 
   /** Generates the code for applying a function value to two arguments. */
   public static Code apply2(Applicable2 fnValue, Code argCode0, Code argCode1) {
+    if (argCode0 instanceof StackMatchCode
+        && callsInPlace(fnValue, (StackMatchCode) argCode0)) {
+      return new ApplyInPlaceCode2(
+          fnValue, (StackMatchCode) argCode0, argCode1);
+    }
     return new ApplyCode2(fnValue, argCode0, argCode1);
   }
 
@@ -7024,9 +7030,31 @@ public abstract class Codes {
   /** Generates the code for applying a function value to three arguments. */
   public static Code apply3(
       Applicable3 fnValue, Code argCode0, Code argCode1, Code argCode2) {
+    if (argCode0 instanceof StackMatchCode
+        && callsInPlace(fnValue, (StackMatchCode) argCode0)) {
+      return new ApplyInPlaceCode3(
+          fnValue, (StackMatchCode) argCode0, argCode1, argCode2);
+    }
     return new ApplyCode3(fnValue, argCode0, argCode1, argCode2);
   }
 
+  /**
+   * Returns whether a call to a built-in function whose first argument is a
+   * {@code fn} expression can evaluate that expression as an {@link
+   * Closure.InPlaceClosure}.
+   *
+   * <p>True if the built-in is in {@link Closure.InPlaceClosure#BUILT_INS} and
+   * the {@code fn} is not part of a recursive group (whose peers would need to
+   * refer to it as a value).
+   */
+  private static boolean callsInPlace(
+      Object fnValue, StackMatchCode matchCode) {
+    return fnValue instanceof BaseApplicable
+        && Closure.InPlaceClosure.BUILT_INS.contains(
+            ((BaseApplicable) fnValue).builtIn)
+        && matchCode.recPeerCount == 0;
+  }
+
   /** Generates the code for applying a function value to a 3-tuple argument. */
   public static Code apply3Tuple(Applicable3 fnValue, Code argCode0) {
     return new ApplyCode3Tuple(fnValue, argCode0);
@@ -7054,6 +7082,14 @@ public abstract class Codes {
     return new WrapRelList(code);
   }
 
+  /**
+   * Returns a {@code Code} that evaluates a {@code Code} and if the result is a
+   * {@link RelList}, prunes it to the given fields.
+   */
+  public static Code pruneRelList(Code code, SortedSet<Integer> fields) {
+    return new PruneRelList(code, ImmutableSortedSet.copyOf(fields));
+  }
+
   /**
    * Returns an applicable that constructs an instance of a datatype.
    *
@@ -8460,6 +8496,14 @@ public abstract class Codes {
 
     final Pos pos;
 
+    /**
+     * Number of elements of the tuple (or record) argument that {@link
+     * Closure.StackClosure#applySpread} can bind without the tuple being
+     * created; 2 or 3 if every arm's pattern is a tuple (or record) pattern of
+     * that arity or a wildcard, otherwise -1.
+     */
+    final int spreadArity;
+
     public StackMatchCode(
         int[] captureOffsets,
         int recPeerCount,
@@ -8471,6 +8515,31 @@ public abstract class Codes {
       this.patCodes = patCodes;
       this.capacity = capacity;
       this.pos = pos;
+      this.spreadArity = spreadArity(patCodes);
+    }
+
+    private static int spreadArity(ImmutablePairList<Core.Pat, Code> patCodes) {
+      int arity = -1;
+      for (Core.Pat pat : patCodes.leftList()) {
+        final int n;
+        switch (pat.op) {
+          case WILDCARD_PAT:
+            continue;
+          case TUPLE_PAT:
+            n = ((Core.TuplePat) pat).args.size();
+            break;
+          case RECORD_PAT:
+            n = ((Core.RecordPat) pat).args.size();
+            break;
+          default:
+            return -1;
+        }
+        if (arity >= 0 && arity != n) {
+          return -1;
+        }
+        arity = n;
+      }
+      return arity == 2 || arity == 3 ? arity : -1;
     }
 
     @Override
@@ -8494,6 +8563,17 @@ public abstract class Codes {
       }
       return new Closure.StackClosure(stack.session, captured, this);
     }
+
+    /**
+     * Pushes the captured values onto the stack, in the same order as {@link
+     * Closure.StackClosure} would push its {@code captured} array.
+     */
+    void pushCaptured(Stack stack) {
+      final int top = stack.top;
+      for (int captureOffset : captureOffsets) {
+        stack.push(stack.slots[top - captureOffset]);
+      }
+    }
   }
 
   /** Applies an {@link Applicable} to a {@link Code}. */
@@ -8581,6 +8661,53 @@ public abstract class Codes {
     }
   }
 
+  /**
+   * Applies an {@link Applicable2} whose first argument is a {@code fn}
+   * expression that does not escape the call.
+   *
+   * <p>Rather than creating a {@link Closure.StackClosure}, pushes the captured
+   * values onto the stack and passes the built-in an {@link
+   * Closure.InPlaceClosure} that evaluates the body in that frame.
+   */
+  private static class ApplyInPlaceCode2 implements Code {
+    private final Applicable2 fnValue;
+    private final StackMatchCode matchCode;
+    private final Code argCode1;
+
+    ApplyInPlaceCode2(
+        Applicable2 fnValue, StackMatchCode matchCode, Code argCode1) {
+      this.fnValue = fnValue;
+      this.matchCode = matchCode;
+      this.argCode1 = argCode1;
+    }
+
+    @Override
+    public int maxSlots() {
+      return maxOf(matchCode, argCode1);
+    }
+
+    @Override
+    public Object eval(Stack stack) {
+      final Object arg1 = argCode1.eval(stack);
+      final Stack frame = stack.ensureSize(matchCode.capacity);
+      final int savedTop = frame.save();
+      try {
+        matchCode.pushCaptured(frame);
+        return fnValue.apply(
+            new Closure.InPlaceClosure(frame, matchCode), arg1);
+      } finally {
+        frame.restore(savedTop);
+      }
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return describer.start(
+          "apply2",
+          d -> d.arg("fnValue", fnValue).arg("", matchCode).arg("", argCode1));
+    }
+  }
+
   /** Applies an {@link Applicable2} to an argument that yields a 2-tuple. */
   private static class ApplyCode2Tuple implements Code {
     private final Applicable2 fnValue;
@@ -8647,6 +8774,61 @@ public abstract class Codes {
     }
   }
 
+  /**
+   * Applies an {@link Applicable3} whose first argument is a {@code fn}
+   * expression that does not escape the call.
+   *
+   * @see ApplyInPlaceCode2
+   */
+  private static class ApplyInPlaceCode3 implements Code {
+    private final Applicable3 fnValue;
+    private final StackMatchCode matchCode;
+    private final Code argCode1;
+    private final Code argCode2;
+
+    ApplyInPlaceCode3(
+        Applicable3 fnValue,
+        StackMatchCode matchCode,
+        Code argCode1,
+        Code argCode2) {
+      this.fnValue = fnValue;
+      this.matchCode = matchCode;
+      this.argCode1 = argCode1;
+      this.argCode2 = argCode2;
+    }
+
+    @Override
+    public int maxSlots() {
+      return maxOf(matchCode, argCode1, argCode2);
+    }
+
+    @Override
+    public Object eval(Stack stack) {
+      final Object arg1 = argCode1.eval(stack);
+      final Object arg2 = argCode2.eval(stack);
+      final Stack frame = stack.ensureSize(matchCode.capacity);
+      final int savedTop = frame.save();
+      try {
+        matchCode.pushCaptured(frame);
+        return fnValue.apply(
+            new Closure.InPlaceClosure(frame, matchCode), arg1, arg2);
+      } finally {
+        frame.restore(savedTop);
+      }
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return describer.start(
+          "apply3",
+          d ->
+              d.arg("fnValue", fnValue)
+                  .arg("", matchCode)
+                  .arg("", argCode1)
+                  .arg("", argCode2));
+    }
+  }
+
   /** Applies an {@link Applicable3} to an argument that yields a 3-tuple. */
   private static class ApplyCode3Tuple implements Code {
     private final Applicable3 fnValue;
@@ -8728,14 +8910,21 @@ public abstract class Codes {
    *
    * <p>If {@link #fnCode} is constant, you should use {@link ApplyCode}
    * instead.
+   *
+   * <p>Uses a {@link CallSiteCache} to remember how to call the functions seen
+   * at this site. If the argument is a tuple expression and the function can
+   * take the tuple's elements directly, evaluates the elements and passes them
+   * without creating the tuple.
    */
   static class ApplyCodeCode implements Code {
     public final Code fnCode;
     public final Code argCode;
+    private final CallSiteCache cache;
 
     ApplyCodeCode(Code fnCode, Code argCode) {
       this.fnCode = fnCode;
       this.argCode = argCode;
+      this.cache = new CallSiteCache(argCode);
     }
 
     @Override
@@ -8752,22 +8941,215 @@ public abstract class Codes {
     @Override
     public Object eval(Stack stack) {
       final Object fn = fnCode.eval(stack);
-      final Object arg = argCode.eval(stack);
+      final List<Code> argCodes;
+      switch (cache.kind(fn)) {
+        case SPREAD2:
+          argCodes = cache.argCodes;
+          return ((Applicable2) fn)
+              .apply(argCodes.get(0).eval(stack), argCodes.get(1).eval(stack));
+        case SPREAD3:
+          argCodes = cache.argCodes;
+          return ((Applicable3) fn)
+              .apply(
+                  argCodes.get(0).eval(stack),
+                  argCodes.get(1).eval(stack),
+                  argCodes.get(2).eval(stack));
+        case CLOSURE_SPREAD:
+          argCodes = cache.argCodes;
+          return ((Closure.StackClosure) fn)
+              .applySpread(
+                  stack,
+                  argCodes.get(0).eval(stack),
+                  argCodes.get(1).eval(stack),
+                  argCodes.size() == 2
+                      ? Unit.INSTANCE
+                      : argCodes.get(2).eval(stack));
+        case CLOSURE:
+          return ((Closure.StackClosure) fn).apply(stack, argCode.eval(stack));
+        case APPLY1:
+          return ((Applicable1) fn).apply(argCode.eval(stack));
+        default:
+          return ((Applicable) fn).apply(stack, argCode.eval(stack));
+      }
+    }
+  }
+
+  /** How an apply site calls a function. */
+  enum CallKind {
+    /** Calls {@link Applicable#apply(Stack, Object)}. */
+    APPLY,
+    /** Calls {@link Applicable1#apply(Object)}. */
+    APPLY1,
+    /**
+     * Calls {@link Closure.StackClosure#apply(Stack, Object)}, on the caller's
+     * stack.
+     */
+    CLOSURE,
+    /**
+     * Calls {@link Closure.StackClosure#applySpread}, passing the elements of
+     * the argument tuple.
+     */
+    CLOSURE_SPREAD,
+    /** Calls {@link Applicable2#apply(Object, Object)}. */
+    SPREAD2,
+    /** Calls {@link Applicable3#apply(Object, Object, Object)}. */
+    SPREAD3
+  }
+
+  /**
+   * Polymorphic inline cache for a site that applies a function computed at run
+   * time.
+   *
+   * <p>Remembers up to {@link #SIZE} callees and the {@link CallKind} with
+   * which to call each. A callee is identified by its class, or, if it is a
+   * {@link Closure.StackClosure}, by its {@link StackMatchCode}, whose patterns
+   * determine whether the argument tuple can be spread. When more than {@link
+   * #SIZE} callees have been seen, the site is megamorphic, and further callees
+   * are classified on each call but not remembered.
+   *
+   * <p>Entries are immutable and are written to the array in one store, so the
+   * cache may safely be read and updated by several threads.
+   */
+  static final class CallSiteCache {
+    private static final int SIZE = 4;
+
+    /**
+     * Codes of the elements of the argument, if the argument is a tuple with 2
+     * or 3 elements; otherwise null.
+     */
+    final @Nullable List<Code> argCodes;
+
+    private final @Nullable CacheEntry[] entries = new CacheEntry[SIZE];
+
+    CallSiteCache(Code argCode) {
+      this.argCodes =
+          argCode instanceof TupleCode
+                  && (((TupleCode) argCode).codes.size() == 2
+                      || ((TupleCode) argCode).codes.size() == 3)
+              ? ((TupleCode) argCode).codes
+              : null;
+    }
+
+    /** Returns how to call a function. */
+    CallKind kind(Object fn) {
+      final Object key =
+          fn instanceof Closure.StackClosure
+              ? ((Closure.StackClosure) fn).matchCode
+              : fn.getClass();
+      for (int i = 0; i < SIZE; i++) {
+        final CacheEntry entry = entries[i];
+        if (entry == null) {
+          final CallKind kind = classify(fn);
+          entries[i] = new CacheEntry(key, kind);
+          return kind;
+        }
+        if (entry.key == key) {
+          return entry.kind;
+        }
+      }
+      return classify(fn);
+    }
+
+    private CallKind classify(Object fn) {
+      final int arity = argCodes == null ? -1 : argCodes.size();
+      if (fn instanceof Closure.StackClosure) {
+        return arity > 0
+                && ((Closure.StackClosure) fn).matchCode.spreadArity == arity
+            ? CallKind.CLOSURE_SPREAD
+            : CallKind.CLOSURE;
+      }
+      // Only the base classes are known to spread a tuple argument in
+      // apply(Stack, Object); other implementations of Applicable2 may be
+      // curried.
+      if (arity == 2 && fn instanceof BaseApplicable2) {
+        return CallKind.SPREAD2;
+      }
+      if (arity == 3 && fn instanceof BaseApplicable3) {
+        return CallKind.SPREAD3;
+      }
       if (fn instanceof Applicable1) {
-        return ((Applicable1) fn).apply(arg);
+        return CallKind.APPLY1;
       }
-      return ((Applicable) fn).apply(stack, arg);
+      return CallKind.APPLY;
     }
   }
 
-  /** Sentinel value returned from tail-call positions. */
+  /** Entry in a {@link CallSiteCache}. */
+  private static final class CacheEntry {
+    final Object key;
+    final CallKind kind;
+
+    CacheEntry(Object key, CallKind kind) {
+      this.key = key;
+      this.kind = kind;
+    }
+  }
+
+  /**
+   * Pending tail call, returned from tail-call positions.
+   *
+   * <p>Code in tail position does not make the call; it records the function
+   * and argument in the {@code TailCall} owned by its {@link Stack} (see {@link
+   * Stack#tailCall()}) and returns that object. The trampoline in {@link
+   * Closure.StackClosure} reads the call and makes it. Because one object is
+   * reused for every tail call on a stack, a tail-recursive loop does not
+   * allocate a {@code TailCall} per iteration.
+   *
+   * <p>If the callee is a {@link Closure.StackClosure} that can bind the
+   * elements of a tuple argument directly (see {@link
+   * StackMatchCode#spreadArity}), the elements are recorded in {@link #a0},
+   * {@link #a1}, {@link #a2} and the tuple is never created.
+   */
   static final class TailCall {
-    final Applicable fn;
-    final Object arg;
+    @Nullable Applicable fn;
+    @Nullable Object arg;
+    /** 2 or 3 if the argument is spread into {@link #a0} etc., otherwise 0. */
+    int spreadArity;
+
+    @Nullable Object a0;
+    @Nullable Object a1;
+    @Nullable Object a2;
 
-    private TailCall(Applicable fn, Object arg) {
+    TailCall() {}
+
+    /** Records a call to a function with an argument. */
+    TailCall set(Applicable fn, Object arg) {
       this.fn = fn;
       this.arg = arg;
+      this.spreadArity = 0;
+      return this;
+    }
+
+    /** Records a call to a closure with the elements of a tuple. */
+    TailCall setSpread(
+        Closure.StackClosure fn, int arity, Object a0, Object a1, Object a2) {
+      this.fn = fn;
+      this.spreadArity = arity;
+      this.a0 = a0;
+      this.a1 = a1;
+      this.a2 = a2;
+      return this;
+    }
+
+    /**
+     * Returns the argument, creating a tuple if the elements were recorded
+     * separately.
+     */
+    Object arg() {
+      switch (spreadArity) {
+        case 2:
+          return Arrays.asList(a0, a1);
+        case 3:
+          return Arrays.asList(a0, a1, a2);
+        default:
+          return requireNonNull(arg);
+      }
+    }
+
+    /** Forgets the call, so that its values can be garbage-collected. */
+    void clear() {
+      fn = null;
+      arg = a0 = a1 = a2 = null;
     }
   }
 
@@ -8776,9 +9158,23 @@ public abstract class Codes {
     private final Applicable fnValue;
     private final Code argCode;
 
+    /**
+     * Codes of the elements of the argument tuple, if {@link #fnValue} is a
+     * closure that can bind them without creating the tuple; otherwise null.
+     */
+    private final @Nullable List<Code> spreadArgCodes;
+
     TailApplyCode(Applicable fnValue, Code argCode) {
       this.fnValue = fnValue;
       this.argCode = argCode;
+      final List<Code> argCodes = new CallSiteCache(argCode).argCodes;
+      this.spreadArgCodes =
+          argCodes != null
+                  && fnValue instanceof Closure.StackClosure
+                  && ((Closure.StackClosure) fnValue).matchCode.spreadArity
+                      == argCodes.size()
+              ? argCodes
+              : null;
     }
 
     @Override
@@ -8788,7 +9184,11 @@ public abstract class Codes {
 
     @Override
     public Object eval(Stack stack) {
-      return new TailCall(fnValue, argCode.eval(stack));
+      if (spreadArgCodes != null) {
+        return tailSpread(
+            stack, (Closure.StackClosure) fnValue, spreadArgCodes);
+      }
+      return stack.tailCall().set(fnValue, argCode.eval(stack));
     }
 
     @Override
@@ -8798,14 +9198,32 @@ public abstract class Codes {
     }
   }
 
+  /**
+   * Evaluates the elements of a tuple argument and records a tail call to a
+   * closure that can bind them directly.
+   */
+  private static TailCall tailSpread(
+      Stack stack, Closure.StackClosure fn, List<Code> argCodes) {
+    final Object a0 = argCodes.get(0).eval(stack);
+    final Object a1 = argCodes.get(1).eval(stack);
+    if (argCodes.size() == 2) {
+      return stack.tailCall().setSpread(fn, 2, a0, a1, Unit.INSTANCE);
+    }
+    final Object a2 = argCodes.get(2).eval(stack);
+    return stack.tailCall().setSpread(fn, 3, a0, a1, a2);
+  }
+
   /** Tail-call variant of {@link ApplyCodeCode}: returns {@link TailCall}. */
   static class TailApplyCodeCode implements Code {
     public final Code fnCode;
     public final Code argCode;
 
+    private final CallSiteCache cache;
+
     TailApplyCodeCode(Code fnCode, Code argCode) {
       this.fnCode = fnCode;
       this.argCode = argCode;
+      this.cache = new CallSiteCache(argCode);
     }
 
     @Override
@@ -8815,7 +9233,28 @@ public abstract class Codes {
 
     @Override
     public Object eval(Stack stack) {
-      return new TailCall((Applicable) fnCode.eval(stack), argCode.eval(stack));
+      final Object fn = fnCode.eval(stack);
+      final List<Code> argCodes;
+      switch (cache.kind(fn)) {
+        case SPREAD2:
+          // A built-in does not recurse via this call site, so it is safe to
+          // call it directly rather than via the trampoline.
+          argCodes = cache.argCodes;
+          return ((Applicable2) fn)
+              .apply(argCodes.get(0).eval(stack), argCodes.get(1).eval(stack));
+        case SPREAD3:
+          argCodes = cache.argCodes;
+          return ((Applicable3) fn)
+              .apply(
+                  argCodes.get(0).eval(stack),
+                  argCodes.get(1).eval(stack),
+                  argCodes.get(2).eval(stack));
+        case CLOSURE_SPREAD:
+          return tailSpread(
+              stack, (Closure.StackClosure) fn, requireNonNull(cache.argCodes));
+        default:
+          return stack.tailCall().set((Applicable) fn, argCode.eval(stack));
+      }
     }
 
     @Override
@@ -8825,6 +9264,39 @@ public abstract class Codes {
     }
   }
 
+  /**
+   * A {@code Code} that evaluates a {@code Code} and if the result is a {@link
+   * RelList}, replaces it with a list that reads only some of its fields.
+   *
+   * <p>It describes itself as the underlying code; pruning does not change the
+   * logical plan.
+   */
+  static class PruneRelList implements Code {
+    public final Code code;
+    private final ImmutableSortedSet<Integer> fields;
+
+    PruneRelList(Code code, ImmutableSortedSet<Integer> fields) {
+      this.code = code;
+      this.fields = fields;
+    }
+
+    @Override
+    public int maxSlots() {
+      return code.maxSlots();
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return code.describe(describer);
+    }
+
+    @Override
+    public Object eval(Stack stack) {
+      final Object o = code.eval(stack);
+      return o instanceof RelList ? ((RelList) o).prune(fields) : o;
+    }
+  }
+
   /**
    * A {@code Code} that evaluates a {@code Code} and if the result is a {@link
    * net.hydromatic.morel.foreign.RelList}, wraps it in a different kind of
@@ -8865,6 +9337,11 @@ public abstract class Codes {
           public int size() {
             return list.size();
           }
+
+          @Override
+          public Iterator<Object> iterator() {
+            return list.iterator();
+          }
         };
       }
       return arg;
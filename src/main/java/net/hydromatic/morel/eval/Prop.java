@@ -60,6 +60,26 @@ public enum Prop {
       "Startup banner message displayed when launching the Morel " //
           + "shell."),
 
+  /**
+   * Integer property "codeGenerationThreshold" is the number of times that a
+   * hybrid plan is executed by Calcite's interpreter before Java code is
+   * generated for it.
+   *
+   * <p>Generating and compiling the code of a plan takes tens of milliseconds,
+   * much longer than interpreting a typical plan once, so it pays off only for
+   * plans that are executed many times, such as a query inside a function that
+   * is called repeatedly. Zero means generate code before the first execution;
+   * a negative value means never generate code. Default is 10.
+   */
+  CODE_GENERATION_THRESHOLD(
+      "codeGenerationThreshold",
+      Integer.class,
+      true,
+      10,
+      "In hybrid mode, the number of times a query plan is interpreted "
+          + "before Java code is generated for it. If 0, code is generated "
+          + "before the first execution; if negative, never."),
+
   /**
    * String property "colorScheme" selects the color scheme used for syntax
    * highlighting in the shell.
@@ -77,6 +97,26 @@ public enum Prop {
           + "('dark', 'light' or 'none'), or a user-defined scheme. If unset, "
           + "the scheme is deduced from the environment."),
 
+  /**
+   * Integer property "compileThreads" is the number of threads that may compile
+   * the statements of a file at the same time.
+   *
+   * <p>When a script or a file loaded by {@code use} is run, and this property
+   * is greater than 1, the shell reads all statements before executing any, and
+   * compiles consecutive value and function declarations that do not depend on
+   * each other concurrently. Statements are still executed in order. Zero means
+   * the number of available processors. Default is 1, which compiles each
+   * statement just before executing it.
+   */
+  COMPILE_THREADS(
+      "compileThreads",
+      Integer.class,
+      true,
+      1,
+      "Number of threads that may compile statements of a file concurrently. "
+          + "If 0, the number of available processors; if 1, statements are "
+          + "compiled one at a time."),
+
   /**
    * File property "directory" is the path of the directory that the {@code
    * file} variable maps to in this connection.
@@ -120,6 +160,21 @@ public enum Prop {
       false,
       "Whether to try to create a hybrid execution plan that uses Apache Calcite relational algebra."),
 
+  /**
+   * Integer property "hybridThreads" is the number of independent Calcite
+   * queries in a statement that may run at the same time, in hybrid mode. If 0,
+   * the number of available processors. Default is 1, which runs queries one at
+   * a time, on the thread that executes the statement.
+   */
+  HYBRID_THREADS(
+      "hybridThreads",
+      Integer.class,
+      true,
+      1,
+      "In hybrid mode, the number of independent Calcite queries in a "
+          + "statement that may run concurrently. If 0, the number of "
+          + "available processors; if 1, queries run one at a time."),
+
   /** Maximum number of inlining passes. */
   INLINE_PASS_COUNT(
       "inlinePassCount",
@@ -305,6 +360,21 @@ public enum Prop {
           + "When running a script, it is generally set to the directory that "
           + "contains the script."),
 
+  /**
+   * Integer property "statementCacheSize" is the maximum number of compiled
+   * statements that a session remembers, so that a statement that is submitted
+   * again in an equivalent environment is not compiled again. It also limits
+   * the number of files loaded by {@code use} whose Core form the session
+   * remembers. Zero disables the cache. Default is 100.
+   */
+  STATEMENT_CACHE_SIZE(
+      "statementCacheSize",
+      Integer.class,
+      true,
+      100,
+      "Maximum number of compiled statements to cache. If 0, statements are "
+          + "always compiled."),
+
   /**
    * Integer property "stringDepth" is the length of strings at which ellipsis
    * begins.
@@ -362,7 +432,23 @@ public enum Prop {
       false,
       null,
       "Overrides the local timezone. Value is a timezone ID (e.g. 'UTC' or "
-          + "'America/New_York'). If not set, the JVM default timezone is used.");
+          + "'America/New_York'). If not set, the JVM default timezone is used."),
+
+  /**
+   * File property "useCacheDirectory" is the path of a directory in which the
+   * {@code use} command saves the compiled form of each file that it loads, so
+   * that the file does not need to be compiled again, in this or any other
+   * session, until its contents change. If not set, compiled files are not
+   * saved.
+   */
+  USE_CACHE_DIRECTORY(
+      "useCacheDirectory",
+      File.class,
+      false,
+      null,
+      "Path of the directory in which the 'use' command saves the compiled "
+          + "form of each file that it loads. If not set, compiled files are "
+          + "not saved.");
 
   public final String camelName;
   public final Class<?> type;
@@ -31,6 +31,15 @@ public interface RowSink extends Describable {
   /** Returns the collected results using a {@link Stack}. */
   List<Object> result(Stack stack);
 
+  /**
+   * Returns whether this sink will ignore any further rows, until it is next
+   * {@link #start(Stack) started}. If so, the step that is supplying rows may
+   * stop; for example, a scan after {@code take 10} has accepted 10 rows.
+   */
+  default boolean isDone() {
+    return false;
+  }
+
   default void start(EvalEnv env) {
     throw new UnsupportedOperationException("use start(Stack)");
   }
@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -267,6 +268,11 @@ public abstract class RowSinks {
       return rowSink.result(stack);
     }
 
+    @Override
+    public boolean isDone() {
+      return rowSink.isDone();
+    }
+
     @Override
     public int maxSlots() {
       return rowSink.maxSlots();
@@ -336,6 +342,16 @@ public abstract class RowSinks {
                   .arg("sink", rowSink));
     }
 
+    private static void close(Iterator<Object> iterator) {
+      if (iterator instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable) iterator).close();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
     static boolean isConstantTrue(Code code) {
       return code.isConstant()
           && Objects.equals(
@@ -356,23 +372,31 @@ public abstract class RowSinks {
       Stack s = stack.ensureSize(varCount);
       final int savedTop = s.save();
       boolean matched = false;
-      for (Object element : elements) {
-        s.restore(savedTop);
-        // Push scan variable bindings onto the stack.
-        if (Closure.StackClosure.pushBindings(pat, element, s)) {
-          if ((Boolean) conditionCode.eval(s)) {
-            if (optionalRight) {
-              // 'left join': the newly scanned fields are optional downstream,
-              // so wrap them in 'SOME'. (The 'on' condition above saw the raw,
-              // unwrapped values.)
-              for (int k = savedTop; k < savedTop + varCount; k++) {
-                s.slots[k] = Codes.optionSome(s.slots[k]);
+      final Iterator<Object> iterator = elements.iterator();
+      try {
+        while (iterator.hasNext() && !rowSink.isDone()) {
+          final Object element = iterator.next();
+          s.restore(savedTop);
+          // Push scan variable bindings onto the stack.
+          if (Closure.StackClosure.pushBindings(pat, element, s)) {
+            if ((Boolean) conditionCode.eval(s)) {
+              if (optionalRight) {
+                // 'left join': the newly scanned fields are optional
+                // downstream, so wrap them in 'SOME'. (The 'on' condition
+                // above saw the raw, unwrapped values.)
+                for (int k = savedTop; k < savedTop + varCount; k++) {
+                  s.slots[k] = Codes.optionSome(s.slots[k]);
+                }
               }
+              matched = true;
+              rowSink.accept(s);
             }
-            matched = true;
-            rowSink.accept(s);
           }
         }
+      } finally {
+        // If we stopped early, release the source's resources (for example,
+        // the cursor of a foreign table).
+        close(iterator);
       }
       s.restore(savedTop);
       if (optionalRight && !matched) {
@@ -705,6 +729,11 @@ public abstract class RowSinks {
         rowSink.accept(stack);
       }
     }
+
+    @Override
+    public boolean isDone() {
+      return take <= 0 || rowSink.isDone();
+    }
   }
 
   /**
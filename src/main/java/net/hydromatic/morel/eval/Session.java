@@ -21,6 +21,8 @@ package net.hydromatic.morel.eval;
 import static java.util.Objects.requireNonNull;
 
 import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -33,6 +35,8 @@ import net.hydromatic.morel.compile.BagPrinter;
 import net.hydromatic.morel.compile.CompileException;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.compile.NameGenerator;
+import net.hydromatic.morel.compile.StatementCache;
+import net.hydromatic.morel.compile.UseCache;
 import net.hydromatic.morel.type.TypeSystem;
 import net.hydromatic.morel.util.ColorScheme;
 import net.hydromatic.morel.util.MorelException;
@@ -102,7 +106,20 @@ public class Session {
    * Name generator. Ensures that internal names generated by various statements
    * in this session do not overlap.
    */
-  public final NameGenerator nameGenerator = new NameGenerator();
+  public final NameGenerator nameGenerator;
+
+  /** Compiled statements, keyed by source text and environment. */
+  public final StatementCache statementCache;
+
+  /** Core form of files loaded by {@code use}, keyed by file contents. */
+  public final UseCache useCache;
+
+  /**
+   * Compiled state of the Morel functions that Calcite calls back; see {@link
+   * #compiledFunctions()}. Created on first use, because many sessions are
+   * created only to compile or evaluate one expression.
+   */
+  private final Supplier<Cache<Object, Object>> compiledFunctions;
 
   /** Controls element ordering when printing bag values. */
   private BagPrinter bagPrinter = BagPrinter.NATURAL;
@@ -132,11 +149,70 @@ public class Session {
    *     use)
    */
   public Session(Map<Prop, Object> map, @Nullable TypeSystem typeSystem) {
+    this(
+        map,
+        typeSystem,
+        Suppliers.memoize(() -> Files.create(Prop.DIRECTORY.fileValue(map))),
+        new NameGenerator(),
+        new StatementCache(),
+        new UseCache(),
+        Suppliers.memoize(
+            () ->
+                CacheBuilder.newBuilder()
+                    .maximumSize(1_000)
+                    .recordStats()
+                    .build()));
+  }
+
+  /** Creates a Session with given state. */
+  private Session(
+      Map<Prop, Object> map,
+      @Nullable TypeSystem typeSystem,
+      Supplier<File> file,
+      NameGenerator nameGenerator,
+      StatementCache statementCache,
+      UseCache useCache,
+      Supplier<Cache<Object, Object>> compiledFunctions) {
     this.map = map;
     this.typeSystem = typeSystem;
-    this.file =
-        Suppliers.memoize(
-            () -> Files.create(Prop.DIRECTORY.fileValue(this.map)));
+    this.file = file;
+    this.nameGenerator = nameGenerator;
+    this.statementCache = statementCache;
+    this.useCache = useCache;
+    this.compiledFunctions = compiledFunctions;
+  }
+
+  /**
+   * Returns the compiled state of the Morel functions that Calcite calls back;
+   * see {@link net.hydromatic.morel.foreign.CalciteFunctions}. It belongs to
+   * the session because it refers to the session's bindings and type system.
+   */
+  public Cache<Object, Object> compiledFunctions() {
+    return compiledFunctions.get();
+  }
+
+  /**
+   * Creates a session in which to compile a statement on another thread.
+   *
+   * <p>The new session shares this session's properties, type system, name
+   * generator and caches, but has its own {@link #coreDecl}, {@link
+   * #environment} and {@link #code}, so that compiling does not overwrite the
+   * state of the statement that is executing.
+   */
+  public Session fork() {
+    final Session session =
+        new Session(
+            map,
+            typeSystem,
+            file,
+            nameGenerator,
+            statementCache,
+            useCache,
+            compiledFunctions);
+    session.globalEnv = globalEnv;
+    session.bagPrinter = bagPrinter;
+    session.shell = shell;
+    return session;
   }
 
   /**
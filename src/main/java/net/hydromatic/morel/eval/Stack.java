@@ -23,6 +23,7 @@ import static java.util.Objects.requireNonNull;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
  * Evaluation stack for the Morel interpreter.
@@ -75,6 +76,12 @@ public final class Stack {
    */
   public int top;
 
+  /**
+   * Holder for the pending tail call, shared by this stack and the stacks grown
+   * from it by {@link #ensureSize}; created on first use.
+   */
+  private Codes.@Nullable TailCall tailCall;
+
   /**
    * Creates a Stack with a pre-allocated slots array.
    *
@@ -146,7 +153,23 @@ public final class Stack {
     if (slots.length >= top + needed) {
       return this;
     }
-    return new Stack(session, Arrays.copyOf(slots, top + needed), top);
+    final Stack stack =
+        new Stack(session, Arrays.copyOf(slots, top + needed), top);
+    stack.tailCall = tailCall;
+    return stack;
+  }
+
+  /**
+   * Returns the {@link Codes.TailCall} in which code in tail position records
+   * the call it wants the trampoline to make. The same object is returned every
+   * time, so a tail call does not allocate.
+   */
+  Codes.TailCall tailCall() {
+    Codes.TailCall tailCall = this.tailCall;
+    if (tailCall == null) {
+      this.tailCall = tailCall = new Codes.TailCall();
+    }
+    return tailCall;
   }
 }
 
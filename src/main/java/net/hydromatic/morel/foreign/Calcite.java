@@ -18,20 +18,47 @@
  */
 package net.hydromatic.morel.foreign;
 
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.eval.Code;
 import net.hydromatic.morel.eval.Codes;
 import net.hydromatic.morel.eval.Describer;
+import net.hydromatic.morel.eval.Prop;
 import net.hydromatic.morel.eval.Stack;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.util.ThreadLocals;
 import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.adapter.enumerable.EnumerableInterpretable;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRules;
 import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.adapter.jdbc.JdbcConvention;
+import org.apache.calcite.adapter.jdbc.JdbcRules;
+import org.apache.calcite.adapter.jdbc.JdbcTableScan;
 import org.apache.calcite.config.CalciteConnectionConfig;
 import org.apache.calcite.interpreter.Interpreter;
 import org.apache.calcite.jdbc.CalciteSchema;
@@ -40,28 +67,78 @@ import org.apache.calcite.linq4j.QueryProvider;
 import org.apache.calcite.plan.RelOptLattice;
 import org.apache.calcite.plan.RelOptMaterialization;
 import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptRule;
+import org.apache.calcite.plan.RelOptSchema;
 import org.apache.calcite.plan.RelOptUtil;
 import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.prepare.CalciteCatalogReader;
 import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelVisitor;
+import org.apache.calcite.rel.core.Aggregate;
 import org.apache.calcite.rel.core.RelFactories;
+import org.apache.calcite.rel.core.TableFunctionScan;
+import org.apache.calcite.rel.core.TableScan;
 import org.apache.calcite.rel.metadata.DefaultRelMetadataProvider;
+import org.apache.calcite.rel.rules.CoreRules;
 import org.apache.calcite.rel.type.DelegatingTypeSystem;
 import org.apache.calcite.rel.type.RelDataTypeSystem;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexShuttle;
+import org.apache.calcite.runtime.Bindable;
+import org.apache.calcite.schema.ScannableTable;
 import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.sql.SqlExplainLevel;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.SqlOperator;
 import org.apache.calcite.sql2rel.RelDecorrelator;
 import org.apache.calcite.tools.Frameworks;
 import org.apache.calcite.tools.Program;
 import org.apache.calcite.tools.Programs;
 import org.apache.calcite.tools.RelBuilder;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /** Runtime context. */
 public class Calcite {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Calcite.class);
+
   final RelBuilder relBuilder;
   final JavaTypeFactory typeFactory;
   public final SchemaPlus rootSchema;
   public final DataContext dataContext;
 
+  private final PlanCache planCache = new PlanCache();
+
+  /** Rules that convert a logical plan to Enumerable convention. */
+  private static final List<RelOptRule> ENUMERABLE_RULES =
+      ImmutableList.<RelOptRule>builder()
+          .addAll(EnumerableRules.ENUMERABLE_RULES)
+          .add(EnumerableRules.ENUMERABLE_TABLE_SCAN_RULE)
+          .build();
+
+  /**
+   * Rules that move filters and projections towards the table scans, and
+   * combine them, so that more of a plan can be executed by a JDBC database.
+   */
+  private static final List<RelOptRule> PUSH_DOWN_RULES =
+      ImmutableList.of(
+          CoreRules.FILTER_PROJECT_TRANSPOSE,
+          CoreRules.FILTER_MERGE,
+          CoreRules.PROJECT_MERGE,
+          CoreRules.PROJECT_REMOVE);
+
+  /**
+   * Operators that call back into Morel. They need the Morel stack and
+   * environment, which only the interpreter provides.
+   */
+  private static final List<SqlOperator> MOREL_OPERATORS =
+      ImmutableList.of(
+          CalciteFunctions.TABLE_OPERATOR,
+          CalciteFunctions.SCALAR_OPERATOR,
+          CalciteFunctions.APPLY_OPERATOR);
+
   protected Calcite() {
     rootSchema = CalciteSchema.createRootSchema(false).plus();
     relBuilder =
@@ -89,26 +166,284 @@ public class Calcite {
     return relBuilder.transform(c -> c);
   }
 
+  /** Returns the cache of optimized plans. */
+  public PlanCache planCache() {
+    return planCache;
+  }
+
+  /**
+   * Returns whether a relational expression is executed by generated Java code,
+   * rather than by Calcite's interpreter.
+   */
+  @VisibleForTesting
+  public boolean isCompiled(RelNode rel) {
+    return plan(rel).isCompiled();
+  }
+
   /**
    * Creates a {@code Code} that evaluates a Calcite relational expression,
    * converting it to Morel list type {@code type}.
    */
   public Code code(Environment env, RelNode rel, Type type) {
-    // Transform the relational expression, converting sub-queries. For example,
-    // RexSubQuery.IN becomes a Join.
+    final Plan plan = plan(rel);
+    final Function<Enumerable<Object[]>, List<Object>> converter =
+        Converters.fromEnumerable(rel, type);
+    return new CalciteCode(dataContext, plan, env, converter);
+  }
+
+  /**
+   * Returns a {@code Code} that evaluates a tuple or list, running the elements
+   * that are independent Calcite queries concurrently; or null if fewer than
+   * two elements are independent.
+   *
+   * <p>A query is independent if it does not call back into Morel, and so needs
+   * neither the Morel stack nor the session. Up to {@code threads - 1} such
+   * queries start in the background when evaluation of the tuple begins; the
+   * calling thread evaluates the other elements, in order. When it reaches a
+   * background query it waits for the result, or, if the query has not started
+   * yet, runs it itself.
+   */
+  public static @Nullable Code parallelTuple(List<Code> codes, int threads) {
+    final BitSet background = new BitSet();
+    boolean first = true;
+    for (int i = 0; i < codes.size(); i++) {
+      final Code code = codes.get(i);
+      if (code instanceof CalciteCode
+          && ((CalciteCode) code).plan.independent) {
+        if (first) {
+          // The calling thread will evaluate the first query
+          first = false;
+        } else if (background.cardinality() < threads - 1) {
+          background.set(i);
+        }
+      }
+    }
+    if (background.isEmpty()) {
+      return null;
+    }
+    return new ParallelTupleCode(ImmutableList.copyOf(codes), background);
+  }
+
+  /**
+   * Returns an enumerable that evaluates a relational expression.
+   *
+   * <p>If possible, converts the expression to {@link EnumerableConvention} and
+   * runs the generated Java code. If the expression cannot be compiled, for
+   * example because it calls back into Morel, evaluates it using Calcite's
+   * {@link Interpreter}.
+   *
+   * <p>Unlike hybrid queries, this method ignores {@link
+   * Prop#CODE_GENERATION_THRESHOLD} and generates code on the first execution:
+   * the interpreter reads all rows of a table before returning the first,
+   * whereas generated code reads only as many as the consumer needs.
+   */
+  public Enumerable<Object[]> enumerable(RelNode rel) {
+    return plan(rel).enumerable(dataContext, 0);
+  }
+
+  /**
+   * Returns the optimized plan for a relational expression.
+   *
+   * <p>Plans are cached, keyed by the expression's digest, so that an
+   * expression that is compiled again, for example because a statement is
+   * re-submitted, is optimized only once, and its execution count (see {@link
+   * Plan}) accumulates.
+   */
+  Plan plan(RelNode rel) {
+    final String digest =
+        RelOptUtil.toString(rel, SqlExplainLevel.DIGEST_ATTRIBUTES)
+            + rel.getRowType().getFullTypeString();
+    final @Nullable Plan plan = planCache.get(digest);
+    if (plan != null) {
+      return plan;
+    }
+    final Plan plan2 = new Plan(optimize(rel));
+    planCache.put(digest, plan2);
+    return plan2;
+  }
+
+  /**
+   * Transforms a relational expression, converting sub-queries. For example,
+   * RexSubQuery.IN becomes a Join.
+   */
+  private static RelNode optimize(RelNode rel) {
     final Program program =
         Programs.sequence(
             Programs.subQuery(DefaultRelMetadataProvider.INSTANCE),
             new DecorrelateProgram());
     final RelOptPlanner planner = rel.getCluster().getPlanner();
     final RelTraitSet traitSet = rel.getCluster().traitSet();
-    final RelNode rel2 =
-        program.run(
-            planner, rel, traitSet, ImmutableList.of(), ImmutableList.of());
+    // The planner is shared by the sessions that use this Calcite (see
+    // "compile"), so only one thread may use it at a time.
+    synchronized (planner) {
+      return program.run(
+          planner, rel, traitSet, ImmutableList.of(), ImmutableList.of());
+    }
+  }
 
-    final Function<Enumerable<Object[]>, List<Object>> converter =
-        Converters.fromEnumerable(rel, type);
-    return new CalciteCode(dataContext, rel2, env, converter);
+  /**
+   * Converts a relational expression to Enumerable convention and generates
+   * Java code for it; returns null if that is not possible.
+   */
+  private static @Nullable CompiledPlan compile(RelNode rel) {
+    final @Nullable List<RelOptRule> rules = enumerableRules(rel);
+    if (rules == null) {
+      return null;
+    }
+    final Set<SchemaPlus> rootSchemas = rootSchemas(rel);
+    if (rootSchemas.size() > 1) {
+      // Generated code can see only one root schema.
+      return null;
+    }
+    try {
+      // The planner belongs to the cluster, which is shared by all plans
+      // created by this Calcite's RelBuilder, so only one thread may use it
+      // at a time.
+      final RelOptPlanner planner = rel.getCluster().getPlanner();
+      final EnumerableRel enumerableRel;
+      synchronized (planner) {
+        try {
+          final RelTraitSet traitSet =
+              rel.getTraitSet().replace(EnumerableConvention.INSTANCE);
+          // EnumerableProject and EnumerableFilter cannot generate code, so
+          // the "calc" program converts them to EnumerableCalc.
+          enumerableRel =
+              (EnumerableRel)
+                  Programs.sequence(
+                          Programs.ofRules(rules),
+                          Programs.calc(DefaultRelMetadataProvider.INSTANCE))
+                      .run(
+                          planner,
+                          rel,
+                          traitSet,
+                          ImmutableList.of(),
+                          ImmutableList.of());
+        } finally {
+          planner.clear();
+        }
+      }
+      final Map<String, Object> parameters = new HashMap<>();
+      final Bindable<?> bindable =
+          EnumerableInterpretable.toBindable(
+              parameters, null, enumerableRel, EnumerableRel.Prefer.ARRAY);
+      return new CompiledPlan(
+          bindable,
+          parameters,
+          rootSchemas.isEmpty() ? null : rootSchemas.iterator().next(),
+          rel.getRowType().getFieldCount());
+    } catch (RuntimeException | AssertionError e) {
+      // The planner could not find an Enumerable plan, or the generated code
+      // did not compile. The interpreter will have to do.
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug(
+            "Cannot generate code for plan; will interpret it: {}",
+            RelOptUtil.toString(rel),
+            e);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Returns the rules that convert a relational expression to Enumerable
+   * convention, or null if it cannot be converted. It must not call back into
+   * Morel, each table that it scans must be a JDBC table or be scannable, and
+   * it must not compute {@code min} or {@code max} over a whole relation.
+   *
+   * <p>For each JDBC schema that the expression scans, the rules include that
+   * schema's {@link JdbcRules}, so that filters, projections, aggregates, sorts
+   * and limits above its tables are executed by the database. (The planner
+   * would register those rules itself when it first sees a JDBC table scan, but
+   * it forgets them when it is cleared after each plan.)
+   */
+  private static @Nullable List<RelOptRule> enumerableRules(RelNode rel) {
+    final boolean[] ok = {true};
+    final boolean[] emptyRow = {false};
+    final Set<JdbcConvention> jdbcConventions = new LinkedHashSet<>();
+    final RexShuttle rexShuttle =
+        new RexShuttle() {
+          @Override
+          public RexNode visitCall(RexCall call) {
+            if (MOREL_OPERATORS.contains(call.getOperator())) {
+              ok[0] = false;
+            }
+            if (call.getKind() == SqlKind.ROW && call.operands.isEmpty()) {
+              emptyRow[0] = true;
+            }
+            return super.visitCall(call);
+          }
+        };
+    new RelVisitor() {
+      @Override
+      public void visit(RelNode node, int ordinal, @Nullable RelNode parent) {
+        if (node instanceof TableFunctionScan) {
+          ok[0] = false;
+        } else if (node instanceof Aggregate
+            && ((Aggregate) node).getGroupSet().isEmpty()
+            && ((Aggregate) node)
+                .getAggCallList().stream()
+                    .anyMatch(
+                        aggCall ->
+                            aggCall.getAggregation().getKind() == SqlKind.MIN
+                                || aggCall.getAggregation().getKind()
+                                    == SqlKind.MAX)) {
+          // Over an empty collection, Morel's 'min' and 'max' raise Empty.
+          // The interpreter returns no rows, which has that effect, but
+          // generated code would return a row of nulls.
+          ok[0] = false;
+        } else if (node instanceof JdbcTableScan) {
+          jdbcConventions.add((JdbcConvention) node.getConvention());
+        } else if (node instanceof TableScan
+            && ((TableScan) node).getTable().unwrap(ScannableTable.class)
+                == null) {
+          ok[0] = false;
+        }
+        node.accept(rexShuttle);
+        super.visit(node, ordinal, parent);
+      }
+    }.go(rel);
+    if (!ok[0]) {
+      return null;
+    }
+    if (jdbcConventions.isEmpty()) {
+      return ENUMERABLE_RULES;
+    }
+    if (emptyRow[0]) {
+      // A unit value is an empty ROW, which databases cannot express in SQL.
+      return null;
+    }
+    final ImmutableList.Builder<RelOptRule> rules = ImmutableList.builder();
+    rules.addAll(ENUMERABLE_RULES).addAll(PUSH_DOWN_RULES);
+    jdbcConventions.forEach(
+        jdbcConvention -> rules.addAll(JdbcRules.rules(jdbcConvention)));
+    return rules.build();
+  }
+
+  /**
+   * Returns the root schemas of the tables that a relational expression scans.
+   *
+   * <p>Generated code finds a JDBC table's data source by looking up its schema
+   * in the root schema of the data context. The tables of a foreign value
+   * belong to the root schema of the {@code Calcite} that created the value,
+   * which may not be the one that executes the plan.
+   */
+  private static Set<SchemaPlus> rootSchemas(RelNode rel) {
+    final Set<SchemaPlus> rootSchemas = new LinkedHashSet<>();
+    new RelVisitor() {
+      @Override
+      public void visit(RelNode node, int ordinal, @Nullable RelNode parent) {
+        if (node instanceof TableScan) {
+          final RelOptSchema relOptSchema =
+              ((TableScan) node).getTable().getRelOptSchema();
+          if (relOptSchema instanceof CalciteCatalogReader) {
+            rootSchemas.add(
+                ((CalciteCatalogReader) relOptSchema).getRootSchema().plus());
+          }
+        }
+        super.visit(node, ordinal, parent);
+      }
+    }.go(rel);
+    return rootSchemas;
   }
 
   /** Copied from {@link Programs}. */
@@ -155,6 +490,202 @@ public class Calcite {
     }
   }
 
+  /**
+   * Cache of optimized plans, keyed by digest.
+   *
+   * <p>The cache holds at most {@link #MAX_SIZE} entries, discarding the least
+   * recently used. It is thread-safe, because sessions that run concurrently
+   * may share a {@code Calcite}.
+   */
+  public static class PlanCache {
+    static final int MAX_SIZE = 1_000;
+
+    private final Map<String, Plan> map = new LinkedHashMap<>(16, 0.75f, true);
+    private int hitCount;
+    private int missCount;
+
+    /** Returns the number of plans found in the cache. */
+    public synchronized int hitCount() {
+      return hitCount;
+    }
+
+    /** Returns the number of plans not found in the cache. */
+    public synchronized int missCount() {
+      return missCount;
+    }
+
+    /** Returns the number of entries. */
+    public synchronized int size() {
+      return map.size();
+    }
+
+    /** Removes all entries and resets the counters. */
+    public synchronized void clear() {
+      map.clear();
+      hitCount = 0;
+      missCount = 0;
+    }
+
+    /** Returns the plan for a digest, or null, and increments a counter. */
+    synchronized @Nullable Plan get(String digest) {
+      final Plan plan = map.get(digest);
+      if (plan != null) {
+        ++hitCount;
+      } else {
+        ++missCount;
+      }
+      return plan;
+    }
+
+    /**
+     * Adds a plan, then discards the least recently used plans until there are
+     * no more than {@link #MAX_SIZE}.
+     */
+    synchronized void put(String digest, Plan plan) {
+      map.put(digest, plan);
+      while (map.size() > MAX_SIZE) {
+        map.remove(map.keySet().iterator().next());
+      }
+    }
+  }
+
+  /**
+   * Optimized plan, and the code to execute it.
+   *
+   * <p>The plan is executed by the interpreter until it has been executed a
+   * given number of times (see {@link Prop#CODE_GENERATION_THRESHOLD}); then
+   * Java code is generated, and re-used thereafter. If code cannot be
+   * generated, the plan is always executed by the interpreter.
+   */
+  static class Plan {
+    final RelNode rel;
+    /**
+     * Whether the plan does not call back into Morel, and reads only JDBC and
+     * scannable tables; if so, it can run on any thread.
+     */
+    final boolean independent;
+
+    private final Supplier<Optional<CompiledPlan>> compiledPlan;
+    /** Number of times this plan has been executed. */
+    private final AtomicInteger executionCount = new AtomicInteger();
+
+    Plan(RelNode rel) {
+      this.rel = requireNonNull(rel);
+      this.independent = enumerableRules(rel) != null;
+      //noinspection FunctionalExpressionCanBeFolded
+      this.compiledPlan =
+          Suppliers.memoize(() -> Optional.ofNullable(compile(rel)))::get;
+    }
+
+    /**
+     * Returns whether Java code can be generated for this plan; generates it if
+     * it has not been generated yet.
+     */
+    boolean isCompiled() {
+      return compiledPlan.get().isPresent();
+    }
+
+    /**
+     * Returns an enumerable that executes this plan.
+     *
+     * @param dataContext Data context
+     * @param threshold Number of executions before Java code is generated; if
+     *     negative, code is never generated
+     */
+    Enumerable<Object[]> enumerable(DataContext dataContext, int threshold) {
+      // Stop counting once the threshold is reached, so that the count does
+      // not overflow.
+      if (threshold >= 0
+          && (executionCount.get() >= threshold
+              || executionCount.getAndIncrement() >= threshold)) {
+        final Optional<CompiledPlan> compiledPlan = this.compiledPlan.get();
+        if (compiledPlan.isPresent()) {
+          return compiledPlan.get().bind(dataContext);
+        }
+      }
+      return new Interpreter(dataContext, rel);
+    }
+  }
+
+  /** Plan that has been compiled to Java code. */
+  private static class CompiledPlan {
+    final Bindable<?> bindable;
+    /** Values stashed by the generated code; read via {@link DataContext}. */
+    final Map<String, Object> parameters;
+    /** Root schema of the tables that the plan scans, or null. */
+    final @Nullable SchemaPlus rootSchema;
+
+    final int fieldCount;
+
+    CompiledPlan(
+        Bindable<?> bindable,
+        Map<String, Object> parameters,
+        @Nullable SchemaPlus rootSchema,
+        int fieldCount) {
+      this.bindable = bindable;
+      this.parameters = ImmutableMap.copyOf(parameters);
+      this.rootSchema = rootSchema;
+      this.fieldCount = fieldCount;
+    }
+
+    /**
+     * Executes the generated code. Rows of one column are returned as scalars,
+     * so we wrap them in arrays.
+     */
+    @SuppressWarnings("unchecked")
+    Enumerable<Object[]> bind(DataContext dataContext) {
+      final Enumerable<Object> enumerable =
+          (Enumerable<Object>)
+              bindable.bind(
+                  new StashDataContext(dataContext, parameters, rootSchema));
+      switch (fieldCount) {
+        case 0:
+          return enumerable.select(row -> new Object[0]);
+        case 1:
+          return enumerable.select(row -> new Object[] {row});
+        default:
+          return enumerable.select(row -> (Object[]) row);
+      }
+    }
+  }
+
+  /**
+   * Data context that returns the values stashed by generated code and,
+   * optionally, a root schema, and otherwise delegates to an underlying data
+   * context.
+   */
+  private static class StashDataContext implements DataContext {
+    private final DataContext dataContext;
+    private final Map<String, Object> parameters;
+    private final @Nullable SchemaPlus rootSchema;
+
+    StashDataContext(
+        DataContext dataContext,
+        Map<String, Object> parameters,
+        @Nullable SchemaPlus rootSchema) {
+      this.dataContext = dataContext;
+      this.parameters = parameters;
+      this.rootSchema = rootSchema;
+    }
+
+    public SchemaPlus getRootSchema() {
+      return rootSchema != null ? rootSchema : dataContext.getRootSchema();
+    }
+
+    public JavaTypeFactory getTypeFactory() {
+      return dataContext.getTypeFactory();
+    }
+
+    public QueryProvider getQueryProvider() {
+      return dataContext.getQueryProvider();
+    }
+
+    public @Nullable Object get(String name) {
+      final Object value = parameters.get(name);
+      return value != null ? value : dataContext.get(name);
+    }
+  }
+
   /** Data context that has no variables. */
   private static class EmptyDataContext implements DataContext {
     private final JavaTypeFactory typeFactory;
@@ -188,17 +719,17 @@ public class Calcite {
    */
   private static class CalciteCode implements Code {
     final DataContext dataContext;
-    final RelNode rel;
+    final Plan plan;
     final Environment env;
     final Function<Enumerable<Object[]>, List<Object>> converter;
 
     CalciteCode(
         DataContext dataContext,
-        RelNode rel,
+        Plan plan,
         Environment env,
         Function<Enumerable<Object[]>, List<Object>> converter) {
       this.dataContext = dataContext;
-      this.rel = rel;
+      this.plan = plan;
       this.env = env;
       this.converter = converter;
     }
@@ -212,7 +743,7 @@ public class Calcite {
     @Override
     public Describer describe(Describer describer) {
       return describer.start(
-          "calcite", d -> d.arg("plan", RelOptUtil.toString(rel)));
+          "calcite", d -> d.arg("plan", RelOptUtil.toString(plan.rel)));
     }
 
     @Override
@@ -223,12 +754,140 @@ public class Calcite {
           () ->
               ThreadLocals.mutate(
                   CalciteFunctions.THREAD_CX,
-                  c -> c.withEnv(env),
-                  () -> {
-                    final Interpreter interpreter =
-                        new Interpreter(dataContext, rel);
-                    return converter.apply(interpreter);
-                  }));
+                  c -> c.forExecution(env, stack),
+                  () ->
+                      converter.apply(
+                          plan.enumerable(dataContext, threshold(stack)))));
+    }
+
+    /**
+     * Evaluates an {@link Plan#independent independent} plan, which does not
+     * need the Morel stack or context, on any thread.
+     *
+     * @param threshold Code generation threshold; see {@link #threshold}
+     */
+    Object evalIndependent(int threshold) {
+      return converter.apply(plan.enumerable(dataContext, threshold));
+    }
+
+    /**
+     * Returns the number of times that a plan is interpreted before Java code
+     * is generated, per the session's {@link Prop#CODE_GENERATION_THRESHOLD}.
+     */
+    static int threshold(Stack stack) {
+      return Prop.CODE_GENERATION_THRESHOLD.intValue(stack.session.map);
+    }
+  }
+
+  /**
+   * Code that evaluates a tuple, some of whose elements are independent Calcite
+   * queries that run in the background.
+   *
+   * @see #parallelTuple(List, int)
+   */
+  private static class ParallelTupleCode implements Code {
+    final ImmutableList<Code> codes;
+    /** Ordinals of the elements that run in the background. */
+    final BitSet background;
+
+    ParallelTupleCode(ImmutableList<Code> codes, BitSet background) {
+      this.codes = codes;
+      this.background = background;
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return describer.start(
+          "parallelTuple", d -> codes.forEach(code -> d.arg("", code)));
+    }
+
+    @Override
+    public int maxSlots() {
+      int maxSlots = 0;
+      for (Code code : codes) {
+        maxSlots = Math.max(maxSlots, code.maxSlots());
+      }
+      return maxSlots;
+    }
+
+    @Override
+    public Object eval(Stack stack) {
+      final int threshold = CalciteCode.threshold(stack);
+      final List<@Nullable FutureTask<Object>> tasks = new ArrayList<>();
+      for (int i = 0; i < codes.size(); i++) {
+        if (background.get(i)) {
+          final CalciteCode code = (CalciteCode) codes.get(i);
+          final FutureTask<Object> task =
+              new FutureTask<>(() -> code.evalIndependent(threshold));
+          BackgroundExecutor.INSTANCE.execute(task);
+          tasks.add(task);
+        } else {
+          tasks.add(null);
+        }
+      }
+      try {
+        final Object[] values = new Object[codes.size()];
+        for (int i = 0; i < values.length; i++) {
+          final @Nullable FutureTask<Object> task = tasks.get(i);
+          values[i] = task == null ? codes.get(i).eval(stack) : join(task);
+        }
+        return Arrays.asList(values);
+      } finally {
+        // If an element failed, stop the queries that are still running.
+        for (@Nullable FutureTask<Object> task : tasks) {
+          if (task != null) {
+            task.cancel(true);
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the result of a task, running it on this thread if it has not
+     * started.
+     */
+    private static Object join(FutureTask<Object> task) {
+      task.run(); // does nothing if the task has started or finished
+      try {
+        return task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+      }
+    }
+  }
+
+  /**
+   * Holder for the executor that runs independent queries in the background.
+   * The executor is created when first needed. It has a bounded number of
+   * threads; they are daemons, so that they do not prevent the JVM from
+   * exiting.
+   */
+  private static class BackgroundExecutor {
+    static final ExecutorService INSTANCE = createExecutor();
+
+    private static ExecutorService createExecutor() {
+      final AtomicInteger threadCount = new AtomicInteger();
+      final ThreadFactory threadFactory =
+          runnable -> {
+            final Thread thread =
+                new Thread(
+                    runnable, "morel-calcite-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          };
+      return Executors.newFixedThreadPool(
+          Math.max(2, Runtime.getRuntime().availableProcessors()),
+          threadFactory);
     }
   }
 
@@ -147,7 +147,7 @@ public class CalciteForeignValue implements ForeignValue {
                   Converters.ofRow(rel.getRowType());
               fieldValues.put(
                   nameConverter.convert(schemaPath, tableName),
-                  new RelList(rel, calcite.dataContext, converter));
+                  new RelList(rel, calcite, converter));
             });
 
     // Recursively walk sub-schemas and add their tables to fieldValues
@@ -21,12 +21,18 @@ package net.hydromatic.morel.foreign;
 import static java.util.Objects.requireNonNull;
 import static net.hydromatic.morel.util.Static.transform;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.ast.Core;
 import net.hydromatic.morel.compile.CompileException;
@@ -35,6 +41,7 @@ import net.hydromatic.morel.compile.Compiles;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.compile.Inliner;
 import net.hydromatic.morel.compile.Resolver;
+import net.hydromatic.morel.compile.StatementCache;
 import net.hydromatic.morel.compile.TypeResolver;
 import net.hydromatic.morel.eval.Applicable;
 import net.hydromatic.morel.eval.Code;
@@ -93,6 +100,57 @@ public class CalciteFunctions {
 
   private CalciteFunctions() {}
 
+  /**
+   * Returns the compiled state of a function, from the cache if possible,
+   * otherwise by calling {@code supplier}.
+   *
+   * <p>The cache belongs to the session ({@link Session#compiledFunctions()}),
+   * so that a function that is called in many queries, or in a query that is
+   * executed many times, is parsed, type-checked and compiled once, but the
+   * compiled state does not outlive the session.
+   *
+   * <p>If {@code env} is not null, the function's code is evaluated in it, and
+   * the key includes the bindings of the names that the code uses (see {@link
+   * StatementCache#fingerprint}); each statement has a new environment, but
+   * usually the same bindings.
+   */
+  static <T> T compiled(
+      Class<T> compiledClass,
+      Context cx,
+      @Nullable Environment env,
+      String ml,
+      String typeJson,
+      Supplier<T> supplier) {
+    final StatementCache.@Nullable Fingerprint fingerprint;
+    if (env == null) {
+      fingerprint = null;
+    } else {
+      final Ast.Exp exp;
+      try {
+        exp = new MorelParserImpl(new StringReader(ml)).expressionSafe();
+      } catch (MorelParseException e) {
+        return supplier.get();
+      }
+      fingerprint = StatementCache.fingerprint(cx.typeSystem, env, exp);
+      if (fingerprint == null) {
+        return supplier.get();
+      }
+    }
+    final CompiledKey key =
+        new CompiledKey(
+            compiledClass,
+            ml,
+            typeJson,
+            fingerprint,
+            cx.typeSystem,
+            cx.typeFactory);
+    return compiledClass.cast(
+        cx.session
+            .compiledFunctions()
+            .asMap()
+            .computeIfAbsent(key, k -> supplier.get()));
+  }
+
   public static final SqlOperator TABLE_OPERATOR =
       new SqlUserDefinedTableFunction(
           new SqlIdentifier("morelTable", SqlParserPos.ZERO),
@@ -182,9 +240,7 @@ public class CalciteFunctions {
       if (args != null) {
         String ml = (String) args.get(0);
         String typeJson = (String) args.get(1);
-        compiled =
-            Compiled.create(
-                ml, typeJson, typeFactory, cx.env, cx.typeSystem, cx.session);
+        compiled = compiled(ml, typeJson);
       } else {
         compiled = null;
       }
@@ -198,10 +254,7 @@ public class CalciteFunctions {
     @SuppressWarnings("unused") // called via reflection
     public ScannableTable eval(String ml, String typeJson) {
       final Compiled compiled =
-          this.compiled != null
-              ? this.compiled
-              : Compiled.create(
-                  ml, typeJson, typeFactory, cx.env, cx.typeSystem, cx.session);
+          this.compiled != null ? this.compiled : compiled(ml, typeJson);
       return new ScannableTable() {
         @Override
         public RelDataType getRowType(RelDataTypeFactory factory) {
@@ -246,6 +299,18 @@ public class CalciteFunctions {
       };
     }
 
+    private Compiled compiled(String ml, String typeJson) {
+      return CalciteFunctions.compiled(
+          Compiled.class,
+          cx,
+          cx.originalEnv,
+          ml,
+          typeJson,
+          () ->
+              Compiled.create(
+                  ml, typeJson, typeFactory, cx.env, cx.typeSystem));
+    }
+
     /** Compiled state. */
     private static class Compiled {
       final Code code;
@@ -267,8 +332,10 @@ public class CalciteFunctions {
           String typeJson,
           RelDataTypeFactory typeFactory,
           Environment env,
-          TypeSystem typeSystem,
-          Session session) {
+          TypeSystem typeSystem) {
+        // The code runs in its own session, whose global environment is set
+        // below; the compiled state may outlive the statement that created it.
+        final Session session = new Session(ImmutableMap.of());
         final Ast.Exp exp;
         try {
           MorelParserImpl parser = new MorelParserImpl(new StringReader(ml));
@@ -321,8 +388,7 @@ public class CalciteFunctions {
       if (args != null) {
         final String ml = (String) args.get(0);
         final String typeJson = (String) args.get(1);
-        compiled =
-            new Compiled(cx.env, cx.typeSystem, typeFactory, ml, typeJson);
+        compiled = compiled(ml, typeJson);
       } else {
         compiled = null;
       }
@@ -335,13 +401,26 @@ public class CalciteFunctions {
 
     @SuppressWarnings("unused") // called via reflection
     public Object eval(String ml, String typeJson) {
-      final Compiled compiled =
-          this.compiled != null
-              ? this.compiled
-              : new Compiled(cx.env, cx.typeSystem, typeFactory, ml, typeJson);
-      final Stack stack = requireNonNull(THREAD_STACK.get());
-      final Object v = compiled.code.eval(stack);
-      return compiled.f.apply(v);
+      return cx.memo(
+          cx.scalarValues,
+          ml,
+          typeJson,
+          () -> {
+            final Compiled compiled =
+                this.compiled != null ? this.compiled : compiled(ml, typeJson);
+            final Object v = compiled.code.eval(cx.stack());
+            return compiled.f.apply(v);
+          });
+    }
+
+    private Compiled compiled(String ml, String typeJson) {
+      return CalciteFunctions.compiled(
+          Compiled.class,
+          cx,
+          cx.originalEnv,
+          ml,
+          typeJson,
+          () -> new Compiled(cx.env, cx.typeSystem, typeFactory, ml, typeJson));
     }
 
     /** Compiled state. */
@@ -394,7 +473,7 @@ public class CalciteFunctions {
       final @Nullable List<Object> args = context.unwrap(List.class);
       if (args != null) {
         final String morelArgTypeJson = (String) args.get(0);
-        compiled = new Compiled(morelArgTypeJson, typeFactory, cx.typeSystem);
+        compiled = compiled(morelArgTypeJson);
       } else {
         compiled = null;
       }
@@ -410,11 +489,25 @@ public class CalciteFunctions {
       final Compiled compiled =
           this.compiled != null
               ? this.compiled
-              : new Compiled(morelArgTypeJson, typeFactory, cx.typeSystem);
+              : cx.memo(
+                  cx.applyCompiled,
+                  "",
+                  morelArgTypeJson,
+                  () -> compiled(morelArgTypeJson));
       final Applicable fn = (Applicable) closure;
-      final Stack stack = requireNonNull(THREAD_STACK.get());
       final Object o = compiled.converter.apply(arg);
-      return fn.apply(stack, o);
+      return fn.apply(cx.stack(), o);
+    }
+
+    /** Returns the converter for an argument type; it needs no environment. */
+    private Compiled compiled(String morelArgTypeJson) {
+      return CalciteFunctions.compiled(
+          Compiled.class,
+          cx,
+          null,
+          "",
+          morelArgTypeJson,
+          () -> new Compiled(morelArgTypeJson, typeFactory, cx.typeSystem));
     }
 
     /** Compiled state. */
@@ -434,6 +527,57 @@ public class CalciteFunctions {
     }
   }
 
+  /**
+   * Key of the cache of compiled functions. Type systems and type factories are
+   * compared by identity.
+   */
+  private static class CompiledKey {
+    final Class<?> compiledClass;
+    final String ml;
+    final String typeJson;
+    final StatementCache.@Nullable Fingerprint fingerprint;
+    final TypeSystem typeSystem;
+    final @Nullable RelDataTypeFactory typeFactory;
+
+    CompiledKey(
+        Class<?> compiledClass,
+        String ml,
+        String typeJson,
+        StatementCache.@Nullable Fingerprint fingerprint,
+        TypeSystem typeSystem,
+        @Nullable RelDataTypeFactory typeFactory) {
+      this.compiledClass = compiledClass;
+      this.ml = ml;
+      this.typeJson = typeJson;
+      this.fingerprint = fingerprint;
+      this.typeSystem = typeSystem;
+      this.typeFactory = typeFactory;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          compiledClass,
+          ml,
+          typeJson,
+          fingerprint,
+          System.identityHashCode(typeSystem),
+          System.identityHashCode(typeFactory));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o == this
+          || o instanceof CompiledKey
+              && compiledClass == ((CompiledKey) o).compiledClass
+              && ml.equals(((CompiledKey) o).ml)
+              && typeJson.equals(((CompiledKey) o).typeJson)
+              && Objects.equals(fingerprint, ((CompiledKey) o).fingerprint)
+              && typeSystem == ((CompiledKey) o).typeSystem
+              && typeFactory == ((CompiledKey) o).typeFactory;
+    }
+  }
+
   /** Operand to a user-defined function. */
   private interface Arg {
     String name();
@@ -486,23 +630,98 @@ public class CalciteFunctions {
   public static class Context {
     public final Session session;
     public final Environment env;
+    /**
+     * The environment before it was renumbered. Renumbering creates a new
+     * object each time, so compiled functions are cached by the identity of
+     * this one.
+     */
+    final Environment originalEnv;
+
     public final TypeSystem typeSystem;
     public final @Nullable RelDataTypeFactory typeFactory;
 
+    /**
+     * Stack of the Morel code that is executing a Calcite plan, or null if this
+     * context is not for an execution. Calcite calls Morel functions once per
+     * row, and they use this stack rather than looking up {@link #THREAD_STACK}
+     * for every row.
+     */
+    final @Nullable Stack stack;
+
+    /**
+     * Values that are constant for one execution of a plan, keyed by Morel code
+     * and type: the value of each scalar expression, which can only read the
+     * stack, and the compiled state of each apply function. The same code may
+     * occur with different types, so the key includes both, as does the key of
+     * {@link CalciteFunctions#compiled}. Calcite executes a plan on one thread,
+     * so the maps need not be thread-safe.
+     */
+    private final Map<List<String>, Object> scalarValues = new HashMap<>();
+
+    private final Map<List<String>, Object> applyCompiled = new HashMap<>();
+
     public Context(
         Session session,
         Environment env,
         TypeSystem typeSystem,
         @Nullable RelDataTypeFactory typeFactory) {
+      this(session, env, typeSystem, typeFactory, null);
+    }
+
+    private Context(
+        Session session,
+        Environment env,
+        TypeSystem typeSystem,
+        @Nullable RelDataTypeFactory typeFactory,
+        @Nullable Stack stack) {
       this.session = session;
+      this.originalEnv = env;
       this.env = env.renumber();
       this.typeSystem = typeSystem;
       this.typeFactory = typeFactory;
+      this.stack = stack;
     }
 
     public Context withEnv(Environment env) {
       return new Context(session, env, typeSystem, typeFactory);
     }
+
+    /**
+     * Returns a context for one execution of a Calcite plan by Morel code
+     * running on {@code stack}.
+     */
+    public Context forExecution(Environment env, Stack stack) {
+      return new Context(session, env, typeSystem, typeFactory, stack);
+    }
+
+    /** Returns the stack on which to evaluate Morel code. */
+    Stack stack() {
+      return stack != null ? stack : requireNonNull(THREAD_STACK.get());
+    }
+
+    /**
+     * Returns a value that is computed once per execution, even if it is null;
+     * or, if this context is not for an execution, computes it every time.
+     */
+    <T> T memo(
+        Map<List<String>, Object> map,
+        String ml,
+        String typeJson,
+        Supplier<T> supplier) {
+      if (stack == null) {
+        return supplier.get();
+      }
+      final List<String> key = ImmutableList.of(ml, typeJson);
+      // The value may be null (SQL NULL), so test for the key, not the value.
+      if (map.containsKey(key)) {
+        @SuppressWarnings("unchecked")
+        final T value = (T) map.get(key);
+        return value;
+      }
+      final T value = supplier.get();
+      map.put(key, value);
+      return value;
+    }
   }
 }
 
@@ -32,6 +32,8 @@ import java.math.BigDecimal;
 import java.util.AbstractList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.SortedSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import net.hydromatic.morel.eval.Unit;
@@ -51,6 +53,7 @@ import org.apache.calcite.rel.type.RelDataTypeFactory;
 import org.apache.calcite.rel.type.RelDataTypeField;
 import org.apache.calcite.sql.type.SqlTypeName;
 import org.apache.calcite.util.ImmutableNullableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 /** Utilities for Converter. */
 public class Converters {
@@ -58,6 +61,11 @@ public class Converters {
 
   public static Converter<Object[]> ofRow(RelDataType rowType) {
     final List<RelDataTypeField> fields = rowType.getFieldList();
+    final int[] ordinals = new int[fields.size()];
+    forEachIndexed(fields, (field, i) -> ordinals[i] = i);
+    if (isViewable(fields, ordinals)) {
+      return new RecordViewConverter(fields, ordinals);
+    }
     final ImmutableList.Builder<Converter<Object[]>> converters =
         ImmutableList.builder();
     forEachIndexed(
@@ -65,6 +73,64 @@ public class Converters {
     return new RecordConverter(converters.build());
   }
 
+  /**
+   * Creates a converter from a row that contains only some of the fields of
+   * {@code rowType} (those whose ordinals are in {@code fields}) to a Morel
+   * record of the full type. The record's other fields are null.
+   */
+  public static Converter<Object[]> ofPrunedRow(
+      RelDataType rowType, SortedSet<Integer> fields) {
+    final List<RelDataTypeField> fieldList = rowType.getFieldList();
+    final int[] ordinals = new int[fieldList.size()];
+    int ordinal = 0;
+    for (RelDataTypeField field : fieldList) {
+      ordinals[field.getIndex()] =
+          fields.contains(field.getIndex()) ? ordinal++ : -1;
+    }
+    if (isViewable(fieldList, ordinals)) {
+      return new RecordViewConverter(fieldList, ordinals);
+    }
+    final ImmutableList.Builder<Converter<Object[]>> converters =
+        ImmutableList.builder();
+    for (RelDataTypeField field : fieldList) {
+      final int i = ordinals[field.getIndex()];
+      converters.add(i >= 0 ? ofField(field.getType(), i) : values -> null);
+    }
+    return new RecordConverter(converters.build());
+  }
+
+  /**
+   * Returns whether every column that a record reads already holds the Java
+   * class that Morel uses for the field, so that the record can be a view onto
+   * the row.
+   *
+   * <p>Calcite represents {@code BOOLEAN}, {@code INTEGER}, {@code REAL} and
+   * character values as {@link Boolean}, {@link Integer}, {@link Float} and
+   * {@link String}, the same as Morel. Other types, such as {@code BIGINT},
+   * {@code DECIMAL} and {@code DATE}, must be converted, and it is cheaper to
+   * convert them once, when the record is created, than each time the field is
+   * read.
+   */
+  private static boolean isViewable(
+      List<RelDataTypeField> fields, int[] ordinals) {
+    for (RelDataTypeField field : fields) {
+      if (ordinals[field.getIndex()] < 0) {
+        continue;
+      }
+      switch (field.getType().getSqlTypeName()) {
+        case BOOLEAN:
+        case INTEGER:
+        case REAL:
+        case CHAR:
+        case VARCHAR:
+          break;
+        default:
+          return false;
+      }
+    }
+    return true;
+  }
+
   public static Converter<Object[]> ofRow2(
       RelDataType rowType, RecordLikeType type) {
     return ofRow3(
@@ -212,11 +278,17 @@ public class Converters {
     },
     FROM_INTEGER(PrimitiveType.INT) {
       public Integer convertFrom(Object o) {
+        if (o instanceof Integer) {
+          return (Integer) o; // avoid re-boxing
+        }
         return o == null ? 0 : ((Number) o).intValue();
       }
     },
     FROM_FLOAT(PrimitiveType.REAL) {
       public Float convertFrom(Object o) {
+        if (o instanceof Float) {
+          return (Float) o; // avoid re-boxing
+        }
         return o == null ? 0f : ((Number) o).floatValue();
       }
     },
@@ -491,22 +563,108 @@ public class Converters {
 
   /**
    * Converter that creates a record. Uses one sub-Converter per output field.
+   *
+   * <p>Creates a new array for each record, so that it can be used by several
+   * threads at once.
    */
   private static class RecordConverter implements Converter<Object[]> {
-    final Object[] tempValues;
     final ImmutableList<Converter<Object[]>> converterList;
 
     RecordConverter(ImmutableList<Converter<Object[]>> converterList) {
-      tempValues = new Object[converterList.size()];
       this.converterList = converterList;
     }
 
     @Override
     public List<Object> apply(Object[] a) {
-      for (int i = 0; i < tempValues.length; i++) {
-        tempValues[i] = converterList.get(i).apply(a);
+      final Object[] values = new Object[converterList.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = converterList.get(i).apply(a);
       }
-      return ImmutableNullableList.copyOf(tempValues);
+      return new ArrayRecord(values);
+    }
+  }
+
+  /** Converter that creates a {@link RecordView} of each row. */
+  private static class RecordViewConverter implements Converter<Object[]> {
+    /** For each field of the record, the ordinal of its column in the row. */
+    final int[] ordinals;
+    /** For each field of the record, how to convert its value. */
+    final FieldConverter[] fieldConverters;
+
+    RecordViewConverter(List<RelDataTypeField> fields, int[] ordinals) {
+      this.ordinals = ordinals;
+      this.fieldConverters = new FieldConverter[fields.size()];
+      forEachIndexed(
+          fields,
+          (field, i) ->
+              fieldConverters[i] = FieldConverter.toType(field.getType()));
+    }
+
+    @Override
+    public List<Object> apply(Object[] row) {
+      return new RecordView(row, this);
+    }
+  }
+
+  /**
+   * Morel record whose fields are in an array that no one else modifies.
+   *
+   * <p>Unlike {@link ImmutableNullableList#copyOf(Object[])}, does not copy the
+   * array.
+   */
+  private static class ArrayRecord extends AbstractList<Object>
+      implements RandomAccess {
+    private final Object[] values;
+
+    ArrayRecord(Object[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public Object get(int index) {
+      return values[index];
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+  }
+
+  /**
+   * Morel record that is a view onto a Calcite row.
+   *
+   * <p>Field {@code i} of the record is the column whose ordinal is {@code
+   * ordinals[i]}, or null if the ordinal is negative (a column that a pruned
+   * scan did not read). Fields are converted as they are read, which is cheap
+   * because a {@link RecordViewConverter} is only used if no column needs more
+   * than a cast.
+   *
+   * <p>Calcite creates a new array for each row, so a view remains valid after
+   * the enumerator has moved on, and may be retained in a long-lived
+   * collection.
+   */
+  private static class RecordView extends AbstractList<Object>
+      implements RandomAccess {
+    private final Object[] row;
+    private final RecordViewConverter converter;
+
+    RecordView(Object[] row, RecordViewConverter converter) {
+      this.row = row;
+      this.converter = converter;
+    }
+
+    @Override
+    public @Nullable Object get(int index) {
+      final int ordinal = converter.ordinals[index];
+      return ordinal < 0
+          ? null
+          : converter.fieldConverters[index].convertFrom(row[ordinal]);
+    }
+
+    @Override
+    public int size() {
+      return converter.ordinals.length;
     }
   }
 }
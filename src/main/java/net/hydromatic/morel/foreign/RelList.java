@@ -18,45 +18,145 @@
  */
 package net.hydromatic.morel.foreign;
 
-import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import java.lang.ref.SoftReference;
 import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
-import java.util.function.Supplier;
 import net.hydromatic.morel.compile.Environment;
-import org.apache.calcite.DataContext;
-import org.apache.calcite.interpreter.Interpreter;
+import org.apache.calcite.linq4j.Enumerator;
 import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.tools.RelBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
-/** A list whose contents are computed by evaluating a relational expression. */
+/**
+ * A list whose contents are computed by evaluating a relational expression.
+ *
+ * <p>Iterating over the list streams rows from the relational expression, so a
+ * consumer that stops early, such as a {@code from} with {@code take}, reads
+ * only the rows it needs; the iterator is {@link AutoCloseable} so that the
+ * consumer can release the underlying cursor. (But if the relational expression
+ * calls back into Morel, it is executed by Calcite's interpreter, which reads
+ * all of its input before it returns the first row.) {@link #size()} is
+ * answered from metadata if the relational expression has a known, fixed number
+ * of rows.
+ *
+ * <p>Otherwise, and for {@link #get(int)}, the contents are materialized. The
+ * materialized contents (and those of a stream of at most {@link
+ * #MAX_RETAINED_ROWS} rows that was read to the end) are retained for later
+ * calls, but held via a soft reference, so the garbage collector may evict them
+ * if memory runs short; they are then recomputed.
+ */
 public class RelList extends AbstractList<Object> {
   /** Value printed instead of the contents of an external relation. */
   public static final String RELATION = "<relation>";
 
+  /**
+   * Maximum number of rows that an iterator retains, so that they become the
+   * contents of the list if it reads to the end. An iterator over a larger
+   * relation discards the rows it has read, and so uses constant memory.
+   */
+  static final int MAX_RETAINED_ROWS = 10_000;
+
   public final RelNode rel;
-  private final Supplier<List<Object>> supplier;
+  private final Calcite calcite;
+  private final Function<Object[], Object> converter;
+  private volatile SoftReference<@Nullable List<Object>> contents =
+      new SoftReference<>(null);
+  /** Pruned versions of this list, keyed by the fields they read. */
+  private final Map<SortedSet<Integer>, RelList> prunedLists =
+      new ConcurrentHashMap<>();
 
-  RelList(
-      RelNode rel,
-      DataContext dataContext,
-      Function<Object[], Object> converter) {
+  RelList(RelNode rel, Calcite calcite, Function<Object[], Object> converter) {
     this.rel = rel;
-    //noinspection FunctionalExpressionCanBeFolded
-    supplier =
-        Suppliers.memoize(
-                () ->
-                    new Interpreter(dataContext, rel)
-                        .select(converter::apply)
-                        .toList())
-            ::get;
+    this.calcite = calcite;
+    this.converter = converter;
+  }
+
+  /**
+   * Returns a list that has the same rows as this list, but reads only some of
+   * the fields.
+   *
+   * <p>Its relational expression projects only the fields whose ordinals are in
+   * {@code fields}; so, if the table is in a JDBC database, only those columns
+   * are fetched. Its rows are records of the same type as this list's, but the
+   * other fields are null; the caller must not read them.
+   */
+  public RelList prune(SortedSet<Integer> fields) {
+    if (fields.isEmpty() || fields.size() == rel.getRowType().getFieldCount()) {
+      return this;
+    }
+    return prunedLists.computeIfAbsent(
+        ImmutableSortedSet.copyOf(fields),
+        fields2 -> {
+          final RelBuilder b = calcite.relBuilder();
+          final RelNode rel2 =
+              b.push(rel)
+                  .project(b.fields(ImmutableList.copyOf(fields2)))
+                  .build();
+          return new RelList(
+              rel2, calcite, Converters.ofPrunedRow(rel.getRowType(), fields2));
+        });
+  }
+
+  /** Returns the contents of this list, computing them if necessary. */
+  private List<Object> list() {
+    @Nullable List<Object> list = contents.get();
+    if (list == null) {
+      list = calcite.enumerable(rel).select(converter::apply).toList();
+      contents = new SoftReference<>(list);
+    }
+    return list;
   }
 
   public Object get(int index) {
-    return supplier.get().get(index);
+    return list().get(index);
   }
 
   public int size() {
-    return supplier.get().size();
+    final @Nullable List<Object> list = contents.get();
+    if (list != null) {
+      return list.size();
+    }
+    final @Nullable Integer rowCount = exactRowCount(rel);
+    if (rowCount != null) {
+      return rowCount;
+    }
+    return list().size();
+  }
+
+  @Override
+  public Iterator<Object> iterator() {
+    final @Nullable List<Object> list = contents.get();
+    if (list != null) {
+      return list.iterator();
+    }
+    return new RelIterator(calcite.enumerable(rel).enumerator());
+  }
+
+  /**
+   * Returns the number of rows that a relational expression will return, if
+   * metadata knows it exactly, otherwise null.
+   */
+  private static @Nullable Integer exactRowCount(RelNode rel) {
+    // The metadata query belongs to the cluster, which is shared.
+    synchronized (rel.getCluster().getPlanner()) {
+      final RelMetadataQuery mq = rel.getCluster().getMetadataQuery();
+      final @Nullable Double min = mq.getMinRowCount(rel);
+      final @Nullable Double max = mq.getMaxRowCount(rel);
+      if (min != null && min.equals(max) && max <= Integer.MAX_VALUE) {
+        return max.intValue();
+      }
+      return null;
+    }
   }
 
   /**
@@ -80,7 +180,67 @@ public class RelList extends AbstractList<Object> {
    * @see Environment#asString()
    */
   public String asString() {
-    return supplier.get().toString();
+    return list().toString();
+  }
+
+  /**
+   * Iterator that reads rows from an enumerator as they are needed. If it
+   * reaches the end, and there were not more than {@link #MAX_RETAINED_ROWS}
+   * rows, it retains the rows it has read as the contents of the list.
+   */
+  private class RelIterator implements Iterator<Object>, AutoCloseable {
+    private final Enumerator<Object[]> enumerator;
+    /** Rows read so far, or null if there were too many to retain. */
+    private @Nullable List<Object> rows = new ArrayList<>();
+    /** Whether the enumerator is positioned on a row not yet returned. */
+    private boolean ready;
+
+    private boolean closed;
+
+    RelIterator(Enumerator<Object[]> enumerator) {
+      this.enumerator = enumerator;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (!ready && !closed) {
+        if (enumerator.moveNext()) {
+          ready = true;
+        } else {
+          if (rows != null) {
+            contents = new SoftReference<>(rows);
+          }
+          close();
+        }
+      }
+      return ready;
+    }
+
+    @Override
+    public Object next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ready = false;
+      final Object row = converter.apply(enumerator.current());
+      if (rows != null) {
+        if (rows.size() < MAX_RETAINED_ROWS) {
+          rows.add(row);
+        } else {
+          rows = null;
+        }
+      }
+      return row;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        ready = false;
+        enumerator.close();
+      }
+    }
   }
 }
 
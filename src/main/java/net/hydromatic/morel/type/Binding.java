@@ -134,6 +134,12 @@ public class Binding {
         : new Binding(id, overloadId, exp, value, parameter, kind);
   }
 
+  public Binding withValue(Object value) {
+    return value == this.value
+        ? this
+        : new Binding(id, overloadId, exp, value, parameter, kind);
+  }
+
   public Binding withKind(Kind kind) {
     return kind == this.kind
         ? this
@@ -40,6 +40,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import net.hydromatic.morel.ast.Op;
@@ -57,11 +58,14 @@ import org.checkerframework.checker.nullness.qual.Nullable;
  * "{@code int -> int}").
  */
 public class TypeSystem {
-  final Map<String, Type> typeByName = new HashMap<>();
-  final Map<BuiltIn.BuiltInType, Type> builtInTypes = new HashMap<>();
-  final Map<Key, Type> typeByKey = new HashMap<>();
+  // Concurrent maps, because independent declarations may be compiled on
+  // several threads at once; see ParallelCompiler.
+  final Map<String, Type> typeByName = new ConcurrentHashMap<>();
+  final Map<BuiltIn.BuiltInType, Type> builtInTypes = new ConcurrentHashMap<>();
+  final Map<Key, Type> typeByKey = new ConcurrentHashMap<>();
 
-  private final Map<String, TypeCon> typeConstructorByName = new HashMap<>();
+  private final Map<String, TypeCon> typeConstructorByName =
+      new ConcurrentHashMap<>();
 
   public final NameGenerator nameGenerator = new NameGenerator();
 
@@ -77,6 +81,37 @@ public class TypeSystem {
     }
   }
 
+  /**
+   * Returns whether this type system is in its initial state, containing only
+   * primitive types.
+   */
+  public boolean isInitial() {
+    return typeByName.size() == PrimitiveType.values().length
+        && builtInTypes.isEmpty()
+        && typeByKey.isEmpty()
+        && typeConstructorByName.isEmpty()
+        && nameGenerator.isEmpty();
+  }
+
+  /**
+   * Copies the types, type constructors and name counts of another type system
+   * into this, which must be in its initial state.
+   *
+   * <p>Types are immutable, so the two type systems share them; each has its
+   * own tables, and types subsequently created in one are not seen by the
+   * other.
+   */
+  public void copyFrom(TypeSystem typeSystem) {
+    if (!isInitial()) {
+      throw new IllegalStateException("not initial");
+    }
+    typeByName.putAll(typeSystem.typeByName);
+    builtInTypes.putAll(typeSystem.builtInTypes);
+    typeByKey.putAll(typeSystem.typeByKey);
+    typeConstructorByName.putAll(typeSystem.typeConstructorByName);
+    nameGenerator.copyFrom(typeSystem.nameGenerator);
+  }
+
   /** Creates a binding of a type constructor value. */
   public Binding bindTyCon(DataType dataType, String tyConName) {
     final Type type = dataType.typeConstructors(this).get(tyConName);
@@ -146,7 +181,11 @@ public class TypeSystem {
     Type type = typeByKey.get(key);
     if (type == null) {
       type = key.toType(this);
-      typeByKey.putIfAbsent(key, type);
+      // If another thread created the same type meanwhile, use its.
+      final Type previous = typeByKey.putIfAbsent(key, type);
+      if (previous != null) {
+        type = previous;
+      }
     }
     return type;
   }
@@ -0,0 +1,117 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Collection that only grows, remembers the order in which elements were added,
+ * and has a hash index to reject duplicates.
+ *
+ * <p>Because elements are never removed or moved, {@link #view(int, int)} can
+ * return a read-only window onto a range of elements without copying; the
+ * window remains valid (and unchanged) as more elements are added. This makes
+ * it suitable as the store of a semi-naive fixed-point computation, where each
+ * round reads the whole store and the previous round's delta.
+ *
+ * @param <E> Element type
+ */
+public class AppendOnlySet<E> {
+  private final List<E> elements;
+  private final Set<E> index;
+
+  /**
+   * Creates an AppendOnlySet whose initial contents are the given elements.
+   *
+   * <p>The initial elements are stored as is, even if they contain duplicates;
+   * subsequent calls to {@link #add} reject any element that is equal to an
+   * initial element.
+   */
+  public AppendOnlySet(Collection<? extends E> initialElements) {
+    this.elements = new ArrayList<>(initialElements);
+    this.index = new HashSet<>(initialElements);
+  }
+
+  /**
+   * Adds an element if it is not already present; returns whether it was added.
+   */
+  public boolean add(E e) {
+    if (index.add(e)) {
+      elements.add(e);
+      return true;
+    }
+    return false;
+  }
+
+  /** Returns the number of elements. */
+  public int size() {
+    return elements.size();
+  }
+
+  /** Returns a read-only view of the elements in a range. */
+  public List<E> view(int start, int end) {
+    if (start < 0 || end > elements.size() || start > end) {
+      throw new IndexOutOfBoundsException();
+    }
+    return new View<>(elements, start, end);
+  }
+
+  /** Returns a read-only view of the current elements. */
+  public List<E> view() {
+    return view(0, elements.size());
+  }
+
+  /**
+   * Read-only window onto a range of an append-only list.
+   *
+   * @param <E> Element type
+   */
+  private static class View<E> extends AbstractList<E> implements RandomAccess {
+    private final List<E> elements;
+    private final int start;
+    private final int size;
+
+    View(List<E> elements, int start, int end) {
+      this.elements = elements;
+      this.start = start;
+      this.size = end - start;
+    }
+
+    @Override
+    public E get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException();
+      }
+      return elements.get(start + index);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+}
+
+// End AppendOnlySet.java
@@ -0,0 +1,338 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Immutable list that is the concatenation of two immutable non-empty lists.
+ *
+ * <p>Concatenation shares the structure of its operands rather than copying
+ * them, so building a list by repeated appends (such as {@code acc @ [x]} in a
+ * fold) costs O(log n) per append rather than O(n).
+ *
+ * <p>The tree is kept balanced (as in an AVL tree, the heights of the two
+ * children of a node differ by at most one) and small adjacent leaves are
+ * merged. Iteration walks the tree; the first call to a random-access method
+ * such as {@link #get(int)} flattens the list into an array, and later calls
+ * use that array.
+ *
+ * @param <E> Element type
+ */
+public final class ConcatList<E> extends AbstractImmutableList<E> {
+  /** Leaves whose combined size is at most this are merged into one leaf. */
+  private static final int LEAF_SIZE = 32;
+
+  private final List<E> left;
+  private final List<E> right;
+  private final int size;
+  private final int height;
+
+  /** Flattened contents; null until the first random access. */
+  private @Nullable ImmutableList<E> flat;
+
+  private ConcatList(List<E> left, List<E> right) {
+    this.left = left;
+    this.right = right;
+    this.size = left.size() + right.size();
+    this.height = Math.max(height(left), height(right)) + 1;
+  }
+
+  /**
+   * Returns a list that is the concatenation of two lists.
+   *
+   * <p>If either list is mutable, uses an immutable copy of it.
+   */
+  public static <E> List<E> of(
+      List<? extends E> list0, List<? extends E> list1) {
+    if (list0.isEmpty()) {
+      return leaf(list1);
+    }
+    if (list1.isEmpty()) {
+      return leaf(list0);
+    }
+    return join(leaf(list0), leaf(list1));
+  }
+
+  /**
+   * Converts a list to a leaf or sub-tree. Immutable lists are used as is;
+   * mutable lists are copied.
+   */
+  @SuppressWarnings("unchecked")
+  private static <E> List<E> leaf(List<? extends E> list) {
+    if (list instanceof ConcatList || list instanceof ImmutableList) {
+      return (List<E>) list;
+    }
+    return ImmutableList.copyOf(list);
+  }
+
+  private static int height(List<?> list) {
+    return list instanceof ConcatList ? ((ConcatList<?>) list).height : 0;
+  }
+
+  /** Joins two balanced trees into a balanced tree. */
+  private static <E> List<E> join(List<E> list0, List<E> list1) {
+    final int height0 = height(list0);
+    final int height1 = height(list1);
+    if (height0 == 0
+        && height1 == 0
+        && list0.size() + list1.size() <= LEAF_SIZE) {
+      return ImmutableList.<E>builder().addAll(list0).addAll(list1).build();
+    }
+    if (height0 > height1 + 1) {
+      final ConcatList<E> c0 = (ConcatList<E>) list0;
+      return balance(c0.left, join(c0.right, list1));
+    }
+    if (height1 > height0 + 1) {
+      final ConcatList<E> c1 = (ConcatList<E>) list1;
+      return balance(join(list0, c1.left), c1.right);
+    }
+    return new ConcatList<>(list0, list1);
+  }
+
+  /**
+   * Creates a node from two balanced trees whose heights differ by at most two,
+   * rotating if necessary.
+   */
+  private static <E> ConcatList<E> balance(List<E> left, List<E> right) {
+    final int leftHeight = height(left);
+    final int rightHeight = height(right);
+    if (leftHeight > rightHeight + 1) {
+      final ConcatList<E> l = (ConcatList<E>) left;
+      if (height(l.left) >= height(l.right)) {
+        return new ConcatList<>(l.left, new ConcatList<>(l.right, right));
+      }
+      final ConcatList<E> lr = (ConcatList<E>) l.right;
+      return new ConcatList<>(
+          new ConcatList<>(l.left, lr.left), new ConcatList<>(lr.right, right));
+    }
+    if (rightHeight > leftHeight + 1) {
+      final ConcatList<E> r = (ConcatList<E>) right;
+      if (height(r.right) >= height(r.left)) {
+        return new ConcatList<>(new ConcatList<>(left, r.left), r.right);
+      }
+      final ConcatList<E> rl = (ConcatList<E>) r.left;
+      return new ConcatList<>(
+          new ConcatList<>(left, rl.left), new ConcatList<>(rl.right, r.right));
+    }
+    return new ConcatList<>(left, right);
+  }
+
+  /** Returns the contents of this list as a flat list, computing it once. */
+  private ImmutableList<E> flatten() {
+    ImmutableList<E> flat = this.flat;
+    if (flat == null) {
+      final ImmutableList.Builder<E> b =
+          ImmutableList.builderWithExpectedSize(size);
+      forEachLeaf(b::addAll);
+      this.flat = flat = b.build();
+    }
+    return flat;
+  }
+
+  /**
+   * Calls a consumer for each leaf, left to right. Uses an explicit stack
+   * rather than recursion.
+   */
+  private void forEachLeaf(Consumer<List<E>> consumer) {
+    final Deque<List<E>> stack = new ArrayDeque<>();
+    stack.push(this);
+    while (!stack.isEmpty()) {
+      final List<E> list = stack.pop();
+      if (list instanceof ConcatList) {
+        final ConcatList<E> c = (ConcatList<E>) list;
+        if (c.flat != null) {
+          consumer.accept(c.flat);
+        } else {
+          stack.push(c.right);
+          stack.push(c.left);
+        }
+      } else {
+        consumer.accept(list);
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public E get(int index) {
+    return flatten().get(index);
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    if (flat != null) {
+      return flat.iterator();
+    }
+    return new LeafIterator<>(this);
+  }
+
+  @Override
+  public ListIterator<E> listIterator(int index) {
+    return flatten().listIterator(index);
+  }
+
+  @Override
+  public List<E> subList(int fromIndex, int toIndex) {
+    return flatten().subList(fromIndex, toIndex);
+  }
+
+  @Override
+  public int indexOf(Object o) {
+    return flatten().indexOf(o);
+  }
+
+  @Override
+  public int lastIndexOf(Object o) {
+    return flatten().lastIndexOf(o);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    for (E e : this) {
+      if (e == null ? o == null : e.equals(o)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public @Nullable Object[] toArray() {
+    final Object[] a = new Object[size];
+    final int[] i = {0};
+    forEachLeaf(
+        list -> {
+          for (E e : list) {
+            a[i[0]++] = e;
+          }
+        });
+    return a;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T> @Nullable T[] toArray(@Nullable T[] a) {
+    if (size > a.length) {
+      a = Arrays.copyOf(a, size);
+    } else if (size < a.length) {
+      a[size] = null;
+    }
+    final Object[] a2 = a;
+    final int[] i = {0};
+    forEachLeaf(
+        list -> {
+          for (E e : list) {
+            a2[i[0]++] = e;
+          }
+        });
+    return a;
+  }
+
+  @Override
+  public int hashCode() {
+    int h = 1;
+    for (E e : this) {
+      h = 31 * h + (e == null ? 0 : e.hashCode());
+    }
+    return h;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof List) || ((List<?>) o).size() != size) {
+      return false;
+    }
+    final Iterator<?> iterator = ((List<?>) o).iterator();
+    for (E e : this) {
+      final Object e2 = iterator.next();
+      if (e == null ? e2 != null : !e.equals(e2)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return flatten().toString();
+  }
+
+  /**
+   * Iterator over a {@link ConcatList} that walks its leaves without
+   * flattening.
+   *
+   * @param <E> Element type
+   */
+  private static class LeafIterator<E> implements Iterator<E> {
+    private final Deque<List<E>> stack = new ArrayDeque<>();
+    private Iterator<E> current = ImmutableList.<E>of().iterator();
+
+    LeafIterator(ConcatList<E> list) {
+      stack.push(list);
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!current.hasNext()) {
+        if (stack.isEmpty()) {
+          return false;
+        }
+        final List<E> list = stack.pop();
+        if (list instanceof ConcatList && ((ConcatList<E>) list).flat == null) {
+          final ConcatList<E> c = (ConcatList<E>) list;
+          stack.push(c.right);
+          stack.push(c.left);
+        } else {
+          current =
+              list instanceof ConcatList
+                  ? ((ConcatList<E>) list).flatten().iterator()
+                  : list.iterator();
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public E next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+  }
+}
+
+// End ConcatList.java
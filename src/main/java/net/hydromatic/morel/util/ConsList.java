@@ -41,6 +41,7 @@ public class ConsList<E> extends AbstractImmutableList<E> {
    */
   public static <E> List<E> of(E first, List<? extends E> rest) {
     if (rest instanceof ConsList
+        || rest instanceof ConcatList
         || rest instanceof ImmutableList && !rest.isEmpty()) {
       //noinspection unchecked
       return new ConsList<>(first, (List<E>) rest);
@@ -0,0 +1,253 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Arrays;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Immutable map implemented as a hash array mapped trie.
+ *
+ * <p>{@link #plus} returns a new map and leaves this one unchanged; the two
+ * share all but the O(log n) nodes on the path to the new entry. Lookups cost
+ * O(log n), with a branching factor of 32, so the trie is at most 7 levels
+ * deep.
+ *
+ * <p>Null keys and values are not allowed.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public final class HashTrie<K, V> {
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  @SuppressWarnings("rawtypes")
+  private static final HashTrie EMPTY = new HashTrie<>(null, 0);
+
+  private final @Nullable Node root;
+  private final int size;
+
+  private HashTrie(@Nullable Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /** Returns an empty map. */
+  @SuppressWarnings("unchecked")
+  public static <K, V> HashTrie<K, V> empty() {
+    return (HashTrie<K, V>) EMPTY;
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the value of a key, or null if the key is not present. */
+  @SuppressWarnings("unchecked")
+  public @Nullable V get(Object key) {
+    return root == null ? null : (V) root.get(key, hash(key), 0);
+  }
+
+  /**
+   * Returns a map that is the same as this, except that {@code key} has value
+   * {@code value}.
+   */
+  public HashTrie<K, V> plus(K key, V value) {
+    requireNonNull(key, "key");
+    requireNonNull(value, "value");
+    final int hash = hash(key);
+    if (root == null) {
+      return new HashTrie<>(BitmapNode.EMPTY.plus(key, value, hash, 0), 1);
+    }
+    final Node root2 = root.plus(key, value, hash, 0);
+    if (root2 == root) {
+      return this;
+    }
+    final int size2 = root.get(key, hash, 0) == null ? size + 1 : size;
+    return new HashTrie<>(root2, size2);
+  }
+
+  @Override
+  public String toString() {
+    return "HashTrie(size=" + size + ")";
+  }
+
+  /**
+   * Spreads the bits of a key's hash code, as does {@link java.util.HashMap}.
+   */
+  private static int hash(Object key) {
+    final int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /** Node of a trie. */
+  private abstract static class Node {
+    abstract @Nullable Object get(Object key, int hash, int shift);
+
+    /** Returns a node with the entry added; or this if it is already there. */
+    abstract Node plus(Object key, Object value, int hash, int shift);
+  }
+
+  /**
+   * Node whose entries are indexed by a 5-bit fragment of the hash code. A bit
+   * is set in {@link #bitmap} for each fragment present, and {@link #array}
+   * holds, for each, a key and value, or null and a child node.
+   */
+  private static class BitmapNode extends Node {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    final int bitmap;
+    final @Nullable Object[] array;
+
+    BitmapNode(int bitmap, @Nullable Object[] array) {
+      this.bitmap = bitmap;
+      this.array = array;
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    @Nullable
+    Object get(Object key, int hash, int shift) {
+      final int bit = 1 << ((hash >>> shift) & MASK);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      final int i = 2 * index(bit);
+      final Object k = array[i];
+      final Object v = requireNonNull(array[i + 1]);
+      if (k == null) {
+        return ((Node) v).get(key, hash, shift + BITS);
+      }
+      return key.equals(k) ? v : null;
+    }
+
+    @Override
+    Node plus(Object key, Object value, int hash, int shift) {
+      final int bit = 1 << ((hash >>> shift) & MASK);
+      final int i = 2 * index(bit);
+      if ((bitmap & bit) == 0) {
+        final int n = Integer.bitCount(bitmap);
+        final @Nullable Object[] array2 = new Object[2 * (n + 1)];
+        System.arraycopy(array, 0, array2, 0, i);
+        array2[i] = key;
+        array2[i + 1] = value;
+        System.arraycopy(array, i, array2, i + 2, 2 * n - i);
+        return new BitmapNode(bitmap | bit, array2);
+      }
+      final Object k = array[i];
+      final Object v = requireNonNull(array[i + 1]);
+      if (k == null) {
+        final Node child = (Node) v;
+        final Node child2 = child.plus(key, value, hash, shift + BITS);
+        if (child2 == child) {
+          return this;
+        }
+        return with(i, null, child2);
+      }
+      if (key.equals(k)) {
+        if (v == value) {
+          return this;
+        }
+        return with(i, k, value);
+      }
+      // Two different keys share this fragment; push both down a level.
+      return with(
+          i, null, split(k, v, hash(k), key, value, hash, shift + BITS));
+    }
+
+    private BitmapNode with(int i, @Nullable Object key, Object value) {
+      final @Nullable Object[] array2 = array.clone();
+      array2[i] = key;
+      array2[i + 1] = value;
+      return new BitmapNode(bitmap, array2);
+    }
+
+    private static Node split(
+        Object key0,
+        Object value0,
+        int hash0,
+        Object key1,
+        Object value1,
+        int hash1,
+        int shift) {
+      if (hash0 == hash1) {
+        return new CollisionNode(
+            hash0, new Object[] {key0, value0, key1, value1});
+      }
+      return EMPTY
+          .plus(key0, value0, hash0, shift)
+          .plus(key1, value1, hash1, shift);
+    }
+  }
+
+  /** Node whose keys all have the same hash code. */
+  private static class CollisionNode extends Node {
+    final int hash;
+    final Object[] array;
+
+    CollisionNode(int hash, Object[] array) {
+      this.hash = hash;
+      this.array = array;
+    }
+
+    @Override
+    @Nullable
+    Object get(Object key, int hash, int shift) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) {
+          return array[i + 1];
+        }
+      }
+      return null;
+    }
+
+    @Override
+    Node plus(Object key, Object value, int hash, int shift) {
+      if (hash != this.hash) {
+        // Nest this node inside a bitmap node, then add the new entry there.
+        final int bit = 1 << ((this.hash >>> shift) & MASK);
+        return new BitmapNode(bit, new Object[] {null, this})
+            .plus(key, value, hash, shift);
+      }
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) {
+          if (array[i + 1] == value) {
+            return this;
+          }
+          final Object[] array2 = array.clone();
+          array2[i + 1] = value;
+          return new CollisionNode(hash, array2);
+        }
+      }
+      final Object[] array2 = Arrays.copyOf(array, array.length + 2);
+      array2[array.length] = key;
+      array2[array.length + 1] = value;
+      return new CollisionNode(hash, array2);
+    }
+  }
+}
+
+// End HashTrie.java
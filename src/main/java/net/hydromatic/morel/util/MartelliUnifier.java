@@ -173,7 +173,7 @@ public class MartelliUnifier extends Unifier {
   // where orderedness is the atom "ordered" (a list) or "unordered" (a bag).
   // These constants mirror those in TypeResolver, and let error messages render
   // a collection as "element list"/"element bag" instead of leaking internals.
-  private static final String COLLECTION_OP = "$collection";
+  static final String COLLECTION_OP = "$collection";
   private static final String ORDERED_OP = "ordered";
   private static final String UNORDERED_OP = "unordered";
 
@@ -182,7 +182,7 @@ public class MartelliUnifier extends Unifier {
    * orderedness atoms are both concrete and differ (i.e. one is a list and the
    * other a bag).
    */
-  private static boolean isOrderednessConflict(Sequence left, Sequence right) {
+  static boolean isOrderednessConflict(Sequence left, Sequence right) {
     if (!left.operator.equals(COLLECTION_OP) || left.terms.size() != 2) {
       return false;
     }
@@ -206,7 +206,7 @@ public class MartelliUnifier extends Unifier {
    * collection(e, ordered)} as {@code list(e)} and {@code $collection(e,
    * $unordered)} as {@code bag(e)}.
    */
-  private static String render(Term term) {
+  static String render(Term term) {
     if (term instanceof Sequence) {
       final Sequence seq = (Sequence) term;
       final String ord = orderednessAtom(seq);
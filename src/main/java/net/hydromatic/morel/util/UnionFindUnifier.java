@@ -0,0 +1,732 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+import static net.hydromatic.morel.util.MartelliUnifier.COLLECTION_OP;
+import static net.hydromatic.morel.util.MartelliUnifier.isOrderednessConflict;
+import static net.hydromatic.morel.util.MartelliUnifier.render;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Unification algorithm based on union-find.
+ *
+ * <p>Processes term pairs in the same order as {@link MartelliUnifier}, but
+ * rather than substituting each new binding into every pending term pair and
+ * constraint, records it in a union-find structure (with path compression and
+ * union by rank) and resolves variables lazily, when a pair is taken from a
+ * queue. Each equivalence class of variables is bound at most once to a
+ * sequence, so the work is nearly linear in the size of the terms.
+ *
+ * <p>An {@link Action} fires when the class of its variable becomes bound to a
+ * sequence. A {@link Constraint} is re-examined only when a variable that
+ * occurs in its argument or candidate terms is bound.
+ */
+public class UnionFindUnifier extends Unifier {
+  @Override
+  public Result unify(
+      List<TermTerm> termPairs,
+      Map<Variable, Action> termActions,
+      List<Constraint> constraints,
+      Tracer tracer) {
+    final Work work = new Work(tracer, termActions, constraints);
+    termPairs.forEach(pair -> work.add(pair.left, pair.right));
+    final @Nullable Failure failure = work.run();
+    if (failure != null) {
+      return failure;
+    }
+
+    // Any overload constraint that still has more than one candidate never
+    // had its argument type pinned down; surface it so that it can become a
+    // predicate of a qualified type.
+    final List<Constraint> residualConstraints = new ArrayList<>();
+    for (MutableConstraint constraint : work.constraints) {
+      if (constraint.constraint.name != null
+          && constraint.termActions.size() > 1) {
+        residualConstraints.add(constraint.constraint);
+      }
+    }
+    return SubstitutionResult.create(work.result, residualConstraints);
+  }
+
+  /** Workspace for {@link UnionFindUnifier}. */
+  private class Work {
+    final Tracer tracer;
+    final Map<Variable, Action> termActions;
+    final ArrayQueue<TermTerm> seqSeqQueue = new ArrayQueue<>();
+    final PendingQueue varAnyQueue = new PendingQueue();
+    final List<MutableConstraint> constraints = new ArrayList<>();
+    final Map<Variable, Node> nodes = new HashMap<>();
+
+    /**
+     * Bindings in the order they were made. Each variable is bound at most
+     * once, to a sequence or to the representative of the class it joined, so
+     * this is a triangular substitution, as in {@link MartelliUnifier}.
+     */
+    final Map<Variable, Term> result = new LinkedHashMap<>();
+
+    final Substitution substitution = new Substitution(result);
+
+    Work(
+        Tracer tracer,
+        Map<Variable, Action> termActions,
+        List<Constraint> constraints) {
+      this.tracer = tracer;
+      this.termActions = termActions;
+      for (Constraint c : constraints) {
+        final MutableConstraint constraint =
+            new MutableConstraint(c, this.constraints.size());
+        this.constraints.add(constraint);
+        watch(constraint);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return format(
+          "seqSeq %s varAny %s constraints %s result %s",
+          seqSeqQueue, varAnyQueue, constraints, result);
+    }
+
+    /** Returns the node of a variable, creating it if necessary. */
+    Node node(Variable variable) {
+      return nodes.computeIfAbsent(variable, Node::new);
+    }
+
+    /** Returns the root of the class of a variable. */
+    Node root(Variable variable) {
+      Node node = node(variable);
+      while (node.parent != node) {
+        // Path halving: point each node at its grandparent.
+        node.parent = node.parent.parent;
+        node = node.parent;
+      }
+      return node;
+    }
+
+    /**
+     * Returns the sequence to which a variable's class is bound, or the
+     * representative variable of the class if it is unbound. Returns other
+     * terms unchanged.
+     */
+    Term walk(Term term) {
+      if (term instanceof Variable) {
+        final Node root = root((Variable) term);
+        return root.term != null ? root.term : root.repr;
+      }
+      return term;
+    }
+
+    /** Applies all bindings to a term, recursively. */
+    Term resolve(Term term) {
+      final Term term2 = walk(term);
+      if (term2 instanceof Variable) {
+        return term2;
+      }
+      final Sequence sequence = (Sequence) term2;
+      if (sequence.terms.isEmpty()) {
+        return sequence;
+      }
+      List<Term> terms = null;
+      for (int i = 0; i < sequence.terms.size(); i++) {
+        final Term t = sequence.terms.get(i);
+        final Term t2 = resolve(t);
+        if (t2 != t && terms == null) {
+          terms = new ArrayList<>(sequence.terms.subList(0, i));
+        }
+        if (terms != null) {
+          terms.add(t2);
+        }
+      }
+      return terms == null ? sequence : new Sequence(sequence.operator, terms);
+    }
+
+    /**
+     * Returns whether the class {@code root} occurs in a term, following the
+     * bindings of the variables in the term.
+     */
+    boolean occurs(Node root, Term term, Set<Node> visited) {
+      if (term instanceof Variable) {
+        final Node root2 = root((Variable) term);
+        return root2 == root
+            || root2.term != null
+                && visited.add(root2)
+                && occurs(root, root2.term, visited);
+      }
+      for (Term t : ((Sequence) term).terms) {
+        if (occurs(root, t, visited)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void add(Term left, Term right) {
+      final Term left2 = walk(left);
+      final Term right2 = walk(right);
+      if (left2.equals(right2)) {
+        tracer.onDelete(left, right);
+      } else if (!(left2 instanceof Sequence)) {
+        enqueue(left, right);
+      } else if (right2 instanceof Sequence) {
+        seqSeqQueue.add(new TermTerm(left2, right2));
+      } else {
+        tracer.onSwap(left, right);
+        enqueue(right, left);
+      }
+    }
+
+    /**
+     * Adds a pair whose left term is an unbound variable to {@link
+     * #varAnyQueue}, and registers it with the class of each variable, so that
+     * it can be moved to {@link #seqSeqQueue} if both become bound.
+     */
+    private void enqueue(Term left, Term right) {
+      final Pending pending = new Pending(new TermTerm(left, right));
+      varAnyQueue.add(pending);
+      register(pending, left);
+      register(pending, right);
+    }
+
+    private void register(Pending pending, Term term) {
+      if (term instanceof Variable) {
+        final Node root = root((Variable) term);
+        if (root.term == null) {
+          if (root.pending == null) {
+            root.pending = new ArrayList<>();
+          }
+          root.pending.add(pending);
+        }
+      }
+    }
+
+    /**
+     * Having bound a class to a sequence, moves the pending pairs that now have
+     * a sequence on both sides to {@link #seqSeqQueue}, and puts the variable
+     * first in pairs that now have one sequence.
+     */
+    private void promote(List<Pending> pendings) {
+      final List<Pending> moved = new ArrayList<>();
+      for (Pending pending : pendings) {
+        if (pending.slot < 0
+            || !(walk(pending.pair.left) instanceof Sequence)) {
+          continue;
+        }
+        if (walk(pending.pair.right) instanceof Sequence) {
+          moved.add(pending);
+        } else {
+          pending.pair = new TermTerm(pending.pair.right, pending.pair.left);
+        }
+      }
+      requeue(moved);
+    }
+
+    /**
+     * Having merged two classes, removes the pending pairs whose two sides are
+     * now in the same class. Such a pair is registered with both classes, so it
+     * is enough to scan the pairs of one of them.
+     */
+    private void prune(@Nullable List<Pending> pendings) {
+      if (pendings == null) {
+        return;
+      }
+      final List<Pending> moved = new ArrayList<>();
+      for (Pending pending : pendings) {
+        if (pending.slot >= 0
+            && walk(pending.pair.left).equals(walk(pending.pair.right))) {
+          moved.add(pending);
+        }
+      }
+      requeue(moved);
+    }
+
+    /**
+     * Removes pairs from {@link #varAnyQueue} and adds them to {@link
+     * #seqSeqQueue} (or deletes them if their sides are equal).
+     *
+     * <p>{@link MartelliUnifier} does the same by scanning its queue and
+     * removing each affected pair, and {@link ArrayQueue#remove(int)} moves the
+     * tail of the queue into the hole. We make the same moves in the same
+     * order, so that the two algorithms process pairs in the same order and
+     * report the same conflicts.
+     */
+    private void requeue(List<Pending> moved) {
+      if (moved.isEmpty()) {
+        return;
+      }
+      final TreeSet<Pending> remaining = new TreeSet<>(Pending.ORDER);
+      remaining.addAll(moved);
+      for (; ; ) {
+        final Pending pending = remaining.pollFirst();
+        if (pending == null) {
+          break;
+        }
+        final @Nullable Pending tail = varAnyQueue.remove(pending);
+        if (tail != null && remaining.remove(tail)) {
+          // The tail has moved into the hole, and is examined next.
+          tail.slot = pending.slot;
+          remaining.add(tail);
+        } else if (tail != null) {
+          tail.slot = pending.slot;
+        }
+        pending.slot = -1;
+        final Term left = walk(pending.pair.left);
+        final Term right = walk(pending.pair.right);
+        if (left.equals(right)) {
+          tracer.onDelete(left, right);
+        } else {
+          seqSeqQueue.add(new TermTerm(left, right));
+        }
+      }
+    }
+
+    @Nullable
+    Failure run() {
+      for (; ; ) {
+        TermTerm pair = seqSeqQueue.poll();
+        if (pair != null) {
+          final Failure failure =
+              decompose((Sequence) pair.left, (Sequence) pair.right);
+          if (failure != null) {
+            return failure;
+          }
+          continue;
+        }
+
+        final Pending pending = varAnyQueue.poll();
+        if (pending == null) {
+          return null;
+        }
+        pair = pending.pair;
+        final Term left = walk(pair.left);
+        final Term right = walk(pair.right);
+        if (left.equals(right)) {
+          // We already knew that 'pair.left' and 'pair.right' were equivalent.
+          tracer.onDelete(left, right);
+          continue;
+        }
+        final Failure failure;
+        if (left instanceof Variable) {
+          failure = bind((Variable) left, right);
+        } else if (right instanceof Variable) {
+          // The variable on the left was bound since the pair was queued.
+          tracer.onSwap(left, right);
+          failure = bind((Variable) right, left);
+        } else {
+          failure = decompose((Sequence) left, (Sequence) right);
+        }
+        if (failure != null) {
+          return failure;
+        }
+      }
+    }
+
+    @Nullable
+    Failure decompose(Sequence left, Sequence right) {
+      if (!left.operator.equals(right.operator)
+          || left.terms.size() != right.terms.size()) {
+        tracer.onConflict(left, right);
+        return conflict(left, right);
+      }
+
+      // Report a list-versus-bag conflict on the parent terms, as does
+      // MartelliUnifier.
+      if (left.operator.equals(COLLECTION_OP)
+          && isOrderednessConflict(
+              (Sequence) resolve(left), (Sequence) resolve(right))) {
+        tracer.onConflict(left, right);
+        return conflict(left, right);
+      }
+
+      tracer.onSequence(left, right);
+      for (int j = 0; j < left.terms.size(); j++) {
+        add(left.terms.get(j), right.terms.get(j));
+      }
+      return null;
+    }
+
+    private Failure conflict(Sequence left, Sequence right) {
+      return failure(
+          "conflict: "
+              + render(resolve(left))
+              + " vs "
+              + render(resolve(right)));
+    }
+
+    /**
+     * Binds an unbound variable, the representative of its class, to a term
+     * (the representative of another unbound class, or a sequence).
+     */
+    @Nullable
+    Failure bind(Variable variable, Term term) {
+      final Node root = root(variable);
+      if (term instanceof Sequence && occurs(root, term, new HashSet<>())) {
+        tracer.onCycle(variable, term);
+        return failure("cycle: variable " + variable + " in " + resolve(term));
+      }
+
+      tracer.onVariable(variable, term);
+      result.put(variable, term);
+      final Node root2;
+      if (term instanceof Variable) {
+        final Node root1 = root((Variable) term);
+        final @Nullable List<Pending> pendings =
+            size(root.pending) < size(root1.pending)
+                ? root.pending
+                : root1.pending;
+        root2 = union(root, root1);
+        prune(pendings);
+      } else {
+        root.term = (Sequence) term;
+        root2 = root;
+        if (!termActions.isEmpty()) {
+          fire(root2.members, term);
+        }
+        if (root2.pending != null) {
+          final List<Pending> pendings = root2.pending;
+          root2.pending = null;
+          promote(pendings);
+        }
+      }
+
+      // Re-examine the constraints that mention the variables whose type has
+      // just become better known.
+      if (root2.watchers != null) {
+        final Set<MutableConstraint> watchers = root2.watchers;
+        root2.watchers = null;
+        for (MutableConstraint constraint : watchers) {
+          final Failure failure = examine(constraint);
+          if (failure != null) {
+            return failure;
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Merges the class whose root is {@code node} into the class whose root is
+     * {@code node2}; the representative of the merged class is the
+     * representative of {@code node2}.
+     */
+    private Node union(Node node, Node node2) {
+      final Node root;
+      final Node child;
+      if (node.rank > node2.rank) {
+        root = node;
+        child = node2;
+      } else {
+        root = node2;
+        child = node;
+        if (node.rank == node2.rank) {
+          ++node2.rank;
+        }
+      }
+      final Variable repr = node2.repr;
+      final List<Variable> members =
+          requireNonNull(concat(root.members, child.members));
+      final @Nullable Set<MutableConstraint> watchers =
+          merge(root.watchers, child.watchers);
+      final @Nullable List<Pending> pending =
+          concat(root.pending, child.pending);
+      child.parent = root;
+      child.members = null;
+      child.watchers = null;
+      child.pending = null;
+      root.repr = repr;
+      root.members = members;
+      root.watchers = watchers;
+      root.pending = pending;
+      return root;
+    }
+
+    /** Calls the actions of variables whose class has just been bound. */
+    private void fire(@Nullable List<Variable> members, Term term) {
+      for (Variable member : requireNonNull(members)) {
+        final Action action = termActions.get(member);
+        if (action != null) {
+          action.accept(member, term, substitution, this::add);
+        }
+      }
+    }
+
+    /** Registers a constraint with the classes of the variables it mentions. */
+    private void watch(MutableConstraint constraint) {
+      watch(constraint, constraint.arg);
+      constraint.termActions.leftList().forEach(t -> watch(constraint, t));
+    }
+
+    private void watch(MutableConstraint constraint, Term term) {
+      if (term instanceof Variable) {
+        final Node root = root((Variable) term);
+        if (root.watchers == null) {
+          root.watchers = new TreeSet<>(MutableConstraint.ORDER);
+        }
+        root.watchers.add(constraint);
+      } else {
+        for (Term t : ((Sequence) term).terms) {
+          watch(constraint, t);
+        }
+      }
+    }
+
+    /**
+     * Applies the bindings to a constraint's argument and candidates, removes
+     * candidates that can no longer match, and if just one candidate remains,
+     * calls its action.
+     */
+    private @Nullable Failure examine(MutableConstraint constraint) {
+      final Term arg2 = resolve(constraint.arg);
+      int changeCount = 0;
+      if (!arg2.equals(constraint.arg)) {
+        ++changeCount;
+        constraint.arg = arg2;
+        constraint
+            .termActions
+            .leftList()
+            .removeIf(arg1 -> !arg2.couldUnifyWith(arg1));
+      }
+      for (ListIterator<Term> iterator =
+              constraint.termActions.leftList().listIterator();
+          iterator.hasNext(); ) {
+        final Term subArg = iterator.next();
+        final Term subArg2 = resolve(subArg);
+        if (!subArg2.equals(subArg)) {
+          ++changeCount;
+          iterator.set(subArg2);
+          if (!arg2.couldUnifyWith(subArg2)) {
+            iterator.remove();
+          }
+        }
+      }
+      watch(constraint);
+      if (changeCount > 0) {
+        switch (constraint.termActions.size()) {
+          case 0:
+            final Constraint c = constraint.constraint;
+            if (c.name != null) {
+              return failure(
+                  format(
+                      "no instance of '%s' matches argument type '%s'",
+                      c.name, render(constraint.arg)));
+            }
+            return failure("no valid overloads");
+          case 1:
+            final Term term1 = constraint.termActions.left(0);
+            final Constraint.Action action = constraint.termActions.right(0);
+            action.accept(constraint.arg, term1, this::add);
+            break;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Returns the concatenation of two lists, either of which may be null,
+   * reusing the larger.
+   */
+  private static <E> @Nullable List<E> concat(
+      @Nullable List<E> list0, @Nullable List<E> list1) {
+    if (list0 == null) {
+      return list1;
+    }
+    if (list1 == null) {
+      return list0;
+    }
+    if (list0.size() < list1.size()) {
+      return concat(list1, list0);
+    }
+    list0.addAll(list1);
+    return list0;
+  }
+
+  private static int size(@Nullable List<?> list) {
+    return list == null ? 0 : list.size();
+  }
+
+  /** Returns the union of two sets, either of which may be null. */
+  private static <E> @Nullable Set<E> merge(
+      @Nullable Set<E> set0, @Nullable Set<E> set1) {
+    if (set0 == null) {
+      return set1;
+    }
+    if (set1 == null) {
+      return set0;
+    }
+    if (set0.size() < set1.size()) {
+      return merge(set1, set0);
+    }
+    set0.addAll(set1);
+    return set0;
+  }
+
+  /**
+   * Node in the union-find structure; there is one for each variable.
+   *
+   * <p>The fields other than {@link #parent} and {@link #rank} are valid only
+   * if this node is the root of its class.
+   */
+  private static class Node {
+    Node parent = this;
+    int rank;
+
+    /** The variable that stands for the class while it is unbound. */
+    Variable repr;
+
+    /** The sequence to which the class is bound, or null. */
+    @Nullable Sequence term;
+
+    /** The variables in the class. */
+    @Nullable List<Variable> members;
+
+    /** Constraints that mention a variable in the class. */
+    @Nullable Set<MutableConstraint> watchers;
+
+    /** Pairs in the queue that have a variable of the class at the top. */
+    @Nullable List<Pending> pending;
+
+    Node(Variable variable) {
+      this.repr = variable;
+      this.members = new ArrayList<>();
+      this.members.add(variable);
+    }
+
+    @Override
+    public String toString() {
+      return parent == this ? repr + "=" + term : "->" + parent;
+    }
+  }
+
+  /** Pair of terms in the queue whose left is a variable. */
+  private static class Pending {
+    /** Orders pairs by their position in the queue. */
+    static final Comparator<Pending> ORDER =
+        Comparator.comparingInt(p -> p.slot);
+
+    TermTerm pair;
+
+    /**
+     * Position in {@link PendingQueue}, counting from the first pair ever
+     * added; or -1 if the pair is no longer in the queue.
+     */
+    int slot = -1;
+
+    Pending(TermTerm pair) {
+      this.pair = pair;
+    }
+
+    @Override
+    public String toString() {
+      return pair.toString();
+    }
+  }
+
+  /**
+   * Queue of {@link Pending} pairs that can remove a pair from the middle in
+   * constant time, moving the tail into its place, as does {@link
+   * ArrayQueue#remove(int)}.
+   */
+  private static class PendingQueue {
+    final List<@Nullable Pending> elements = new ArrayList<>();
+    int head;
+
+    void add(Pending pending) {
+      pending.slot = elements.size();
+      elements.add(pending);
+    }
+
+    @Nullable
+    Pending poll() {
+      if (head == elements.size()) {
+        return null;
+      }
+      final Pending pending = requireNonNull(elements.get(head));
+      elements.set(head++, null);
+      pending.slot = -1;
+      return pending;
+    }
+
+    /**
+     * Removes a pair. Returns the pair that was moved into its place, or null
+     * if it was at the head or tail.
+     */
+    @Nullable
+    Pending remove(Pending pending) {
+      final int slot = pending.slot;
+      final int last = elements.size() - 1;
+      if (slot == head) {
+        elements.set(head++, null);
+        return null;
+      }
+      final Pending tail = requireNonNull(elements.remove(last));
+      if (slot == last) {
+        return null;
+      }
+      elements.set(slot, tail);
+      return tail;
+    }
+
+    @Override
+    public String toString() {
+      return elements.subList(head, elements.size()).toString();
+    }
+  }
+
+  /** As {@link Constraint}, but mutable. */
+  private static class MutableConstraint {
+    /** Orders constraints by the order in which they were given. */
+    static final Comparator<MutableConstraint> ORDER =
+        Comparator.comparingInt(c -> c.ordinal);
+
+    final Constraint constraint;
+    final int ordinal;
+    Term arg;
+    final PairList<Term, Constraint.Action> termActions;
+
+    MutableConstraint(Constraint constraint, int ordinal) {
+      this.constraint = requireNonNull(constraint);
+      this.ordinal = ordinal;
+      this.arg = constraint.arg;
+      this.termActions = PairList.copyOf(constraint.termActions);
+      checkArgument(!termActions.isEmpty());
+    }
+
+    @Override
+    public String toString() {
+      return format(
+          "{constraint %s = %s %s}", constraint.arg, arg, termActions);
+    }
+  }
+}
+
+// End UnionFindUnifier.java
@@ -424,6 +424,47 @@ public class AlgebraTest {
         .assertEvalIter(equalsOrdered(15, 25, 35, 45));
   }
 
+  /**
+   * Tests a hybrid query that calls Morel values and functions for each of many
+   * rows. The values of {@code morelScalar} and the converters of {@code
+   * morelApply} are computed once per execution, keyed by code and type; the
+   * results must be the same as if they were computed for every row.
+   */
+  @Test
+  void testCalciteWithFunctionManyRows() {
+    final String ml =
+        "let\n"
+            + "  fun plus (x, y) = x + y\n"
+            + "  fun twice x = x + x\n"
+            + "  val five = 5\n"
+            + "in\n"
+            + "  from e in scott.emps\n"
+            + "  yield {a = plus (e.empno, five), b = twice e.deptno,\n"
+            + "    c = e.sal + real five}\n"
+            + "end";
+    ml(ml)
+        .withBinding("scott", BuiltInDataSet.SCOTT)
+        .with(Prop.HYBRID, true)
+        .with(Prop.INLINE_PASS_COUNT, 0)
+        .assertType("{a:int, b:int, c:real} bag")
+        .assertEvalIter(
+            equalsOrdered(
+                list(7374, 40, 805f),
+                list(7504, 60, 1605f),
+                list(7526, 60, 1255f),
+                list(7571, 40, 2980f),
+                list(7659, 60, 1255f),
+                list(7703, 60, 2855f),
+                list(7787, 20, 2455f),
+                list(7793, 40, 3005f),
+                list(7844, 20, 5005f),
+                list(7849, 60, 1505f),
+                list(7881, 40, 1105f),
+                list(7905, 60, 955f),
+                list(7907, 40, 3005f),
+                list(7939, 20, 1305f)));
+  }
+
   /** Tests that we can send {@code union} to Calcite. */
   @Test
   void testUnion() {
@@ -19,23 +19,55 @@
 package net.hydromatic.morel;
 
 import static org.apache.calcite.util.Util.toLinux;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.hasToString;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.core.Is.is;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import net.hydromatic.morel.eval.Prop;
 import net.hydromatic.morel.foreign.Calcite;
 import net.hydromatic.morel.foreign.CalciteForeignValue;
+import net.hydromatic.morel.foreign.Converter;
+import net.hydromatic.morel.foreign.Converters;
 import net.hydromatic.morel.foreign.DataSet;
 import net.hydromatic.morel.foreign.ForeignValue;
+import net.hydromatic.morel.foreign.RelList;
+import org.apache.calcite.DataContext;
 import org.apache.calcite.adapter.java.ReflectiveSchema;
+import org.apache.calcite.jdbc.JavaTypeFactoryImpl;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.runtime.Hook;
+import org.apache.calcite.schema.ScannableTable;
 import org.apache.calcite.schema.Schema;
 import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.schema.impl.AbstractSchema;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.tools.RelBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -108,6 +140,299 @@ class CalciteTest {
     assertThat(toLinux(out.toString()), is(expected));
   }
 
+  /**
+   * Tests {@link Calcite#enumerable(RelNode)}, which generates Java code for a
+   * plan the first time it is evaluated, and re-uses it thereafter; and tests
+   * that the plan is found in the cache the second time, and was compiled
+   * rather than interpreted.
+   */
+  @Test
+  void testEnumerable() {
+    final Calcite calcite = Calcite.withDataSets(ImmutableMap.of());
+    calcite.rootSchema.add("users", new ReflectiveSchema(new UserSchema()));
+    final RelBuilder b = calcite.relBuilder();
+    final RelNode rel =
+        b.scan("users", "users")
+            .filter(b.greaterThan(b.field("age"), b.literal(20)))
+            .project(b.field("name"))
+            .build();
+    for (int i = 0; i < 2; i++) {
+      final List<Object> names = new ArrayList<>();
+      calcite.enumerable(rel).forEach(row -> names.add(row[0]));
+      assertThat(names, is(ImmutableList.of("Jane", "Jack")));
+    }
+    assertThat(calcite.planCache().missCount(), is(1));
+    assertThat(calcite.planCache().hitCount(), is(1));
+    assertThat(calcite.planCache().size(), is(1));
+    assertThat(calcite.isCompiled(rel), is(true));
+  }
+
+  /**
+   * Tests that a hybrid query is interpreted until it has been executed {@link
+   * Prop#CODE_GENERATION_THRESHOLD} times, and then runs as generated code. The
+   * interpreter reads every row of the table; generated code stops after the
+   * rows that {@code take} needs.
+   */
+  @Test
+  void testCodeGenerationThreshold() {
+    final CountingTable table = new CountingTable(1_000);
+    final DataSet dataSet =
+        (Calcite calcite) -> {
+          final SchemaPlus schema =
+              calcite.rootSchema.add("c", new AbstractSchema());
+          schema.add("nums", table);
+          return new CalciteForeignValue(
+              calcite, schema, CalciteForeignValue.NameConverter.IDENTITY);
+        };
+    final Map<String, ForeignValue> foreignValueMap =
+        Calcite.withDataSets(ImmutableMap.of("c", dataSet)).foreignValues();
+
+    // The same query three times; all share a plan.
+    final String ml =
+        "from r in c.nums take 2;\n" //
+            + "from r in c.nums take 2;\n" //
+            + "from r in c.nums take 2;\n";
+    final InputStream in = new ByteArrayInputStream(ml.getBytes());
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Main main =
+        new Main(
+            ImmutableList.of(),
+            in,
+            new PrintStream(out),
+            foreignValueMap,
+            ImmutableMap.of(
+                Prop.HYBRID, true, Prop.CODE_GENERATION_THRESHOLD, 2),
+            false);
+    main.run();
+    final String line = "val it = [{n=0},{n=1}] : {n:int} bag\n";
+    assertThat(toLinux(out.toString()), is(line + line + line));
+    // The first two executions read all 1,000 rows; the third reads at most 3.
+    assertThat(table.pulled.get(), greaterThanOrEqualTo(2_000));
+    assertThat(table.pulled.get(), lessThanOrEqualTo(2_003));
+  }
+
+  /**
+   * Tests that a filter and projection on a JDBC table are executed by the
+   * database, so that only the matching rows and columns are fetched.
+   */
+  @Test
+  void testJdbcPushDown() {
+    final Calcite calcite =
+        Calcite.withDataSets(ImmutableMap.of("scott", BuiltInDataSet.SCOTT));
+    final RelBuilder b = calcite.relBuilder();
+    final RelNode rel =
+        b.scan("scott", "EMP")
+            .filter(b.equals(b.field("DEPTNO"), b.literal(10)))
+            .project(b.field("ENAME"))
+            .build();
+    final List<String> sqlList = new ArrayList<>();
+    final List<Object> names = new ArrayList<>();
+    try (Hook.Closeable ignore =
+        Hook.QUERY_PLAN.<String>addThread(sqlList::add)) {
+      calcite.enumerable(rel).forEach(row -> names.add(row[0]));
+    }
+    assertThat(names, hasSize(3));
+    assertThat(sqlList, hasSize(1));
+    assertThat(sqlList.get(0), containsString("WHERE"));
+    assertThat(sqlList.get(0), not(containsString("\"JOB\"")));
+  }
+
+  /**
+   * Tests that a query that reads only some fields of a foreign table fetches
+   * only those columns.
+   */
+  @Test
+  void testPruneColumns() {
+    final Map<String, ForeignValue> foreignValueMap =
+        Calcite.withDataSets(ImmutableMap.of("scott", BuiltInDataSet.SCOTT))
+            .foreignValues();
+    final String ml =
+        "from e in scott.emps where e.deptno = 10 yield e.ename;\n";
+    final InputStream in = new ByteArrayInputStream(ml.getBytes());
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Main main =
+        new Main(
+            ImmutableList.of(),
+            in,
+            new PrintStream(out),
+            foreignValueMap,
+            ImmutableMap.of(),
+            false);
+    final List<String> sqlList = new ArrayList<>();
+    try (Hook.Closeable ignore =
+        Hook.QUERY_PLAN.<String>addThread(sqlList::add)) {
+      main.run();
+    }
+    assertThat(
+        toLinux(out.toString()),
+        is("val it = [\"CLARK\",\"KING\",\"MILLER\"] : string bag\n"));
+    assertThat(sqlList, hasSize(1));
+    assertThat(sqlList.get(0), containsString("\"ENAME\""));
+    assertThat(sqlList.get(0), not(containsString("\"JOB\"")));
+  }
+
+  /**
+   * Tests that in hybrid mode, with {@code hybridThreads} greater than 1, a
+   * tuple whose elements are independent Calcite queries evaluates them
+   * concurrently, and gives the same result.
+   */
+  @Test
+  void testParallelTuple() {
+    final Map<String, ForeignValue> foreignValueMap =
+        Calcite.withDataSets(ImmutableMap.of("scott", BuiltInDataSet.SCOTT))
+            .foreignValues();
+    final String ml =
+        "Sys.set (\"hybrid\", true);\n"
+            + "Sys.set (\"hybridThreads\", 2);\n"
+            + "Sys.set (\"stringDepth\", ~1);\n"
+            + "(from e in scott.emps where e.deptno = 10 yield e.ename,\n"
+            + "  from d in scott.depts yield d.dname);\n"
+            + "Sys.plan ();\n";
+    final InputStream in = new ByteArrayInputStream(ml.getBytes());
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Main main =
+        new Main(
+            ImmutableList.of(),
+            in,
+            new PrintStream(out),
+            foreignValueMap,
+            new HashMap<>(),
+            false);
+    main.run();
+    final String s = toLinux(out.toString());
+    assertThat(s, containsString("[\"CLARK\",\"KING\",\"MILLER\"]"));
+    assertThat(s, containsString("\"ACCOUNTING\""));
+    assertThat(s, containsString("parallelTuple"));
+  }
+
+  /**
+   * Tests that {@link Converters#ofRow} converts Calcite rows to Morel records,
+   * whether or not the record is a view onto the row.
+   */
+  @Test
+  void testRowConverter() {
+    final RelDataTypeFactory typeFactory = new JavaTypeFactoryImpl();
+    final RelDataType rowType =
+        typeFactory
+            .builder()
+            .add("a", SqlTypeName.INTEGER)
+            .add("b", SqlTypeName.VARCHAR)
+            .add("c", SqlTypeName.BOOLEAN)
+            .build();
+    final Converter<Object[]> converter = Converters.ofRow(rowType);
+    final Object[] row = {7, "x", true};
+    assertThat(converter.apply(row), is((Object) Arrays.asList(7, "x", true)));
+    assertThat(
+        converter.apply(new Object[] {null, null, false}),
+        is((Object) Arrays.asList(0, "", false)));
+
+    // A pruned row holds only columns "a" and "c"; field "b" is null.
+    final Converter<Object[]> prunedConverter =
+        Converters.ofPrunedRow(rowType, ImmutableSortedSet.of(0, 2));
+    assertThat(
+        prunedConverter.apply(new Object[] {8, false}),
+        is((Object) Arrays.asList(8, null, false)));
+
+    // A SMALLINT column must be converted to int.
+    final RelDataType rowType2 =
+        typeFactory
+            .builder()
+            .add("a", SqlTypeName.SMALLINT)
+            .add("b", SqlTypeName.VARCHAR)
+            .build();
+    assertThat(
+        Converters.ofRow(rowType2).apply(new Object[] {(short) 3, "y"}),
+        is((Object) Arrays.asList(3, "y")));
+  }
+
+  /**
+   * Tests that a {@link RelList} can be iterated part-way, without reading the
+   * whole relation, and can also be materialized.
+   */
+  @Test
+  void testRelList() throws Exception {
+    final Calcite calcite = Calcite.withDataSets(ImmutableMap.of());
+    final SchemaPlus schema =
+        calcite.rootSchema.add("users", new ReflectiveSchema(new UserSchema()));
+    final ForeignValue value =
+        new CalciteForeignValue(
+            calcite, schema, CalciteForeignValue.NameConverter.IDENTITY);
+    final RelList users = (RelList) ((List<?>) value.value()).get(0);
+    final Iterator<Object> iterator = users.iterator();
+    assertThat(iterator.next(), hasToString("[20, John]"));
+    ((AutoCloseable) iterator).close();
+    assertThat(iterator.hasNext(), is(false));
+
+    assertThat(users.size(), is(3));
+    assertThat(users.asString(), is("[[20, John], [21, Jane], [22, Jack]]"));
+  }
+
+  /**
+   * Tests that {@code from ... take 2} over a foreign table reads only the
+   * first rows of the table, not all of them.
+   */
+  @Test
+  void testRelListTake() {
+    final CountingTable table = new CountingTable(1_000);
+    final DataSet dataSet =
+        (Calcite calcite) -> {
+          final SchemaPlus schema =
+              calcite.rootSchema.add("c", new AbstractSchema());
+          schema.add("nums", table);
+          return new CalciteForeignValue(
+              calcite, schema, CalciteForeignValue.NameConverter.IDENTITY);
+        };
+    final Map<String, ForeignValue> foreignValueMap =
+        Calcite.withDataSets(ImmutableMap.of("c", dataSet)).foreignValues();
+
+    final String ml = "from r in c.nums take 2;\n";
+    final InputStream in = new ByteArrayInputStream(ml.getBytes());
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Main main =
+        new Main(
+            ImmutableList.of(),
+            in,
+            new PrintStream(out),
+            foreignValueMap,
+            ImmutableMap.of(),
+            false);
+    main.run();
+    assertThat(
+        toLinux(out.toString()), is("val it = [{n=0},{n=1}] : {n:int} bag\n"));
+    assertThat(table.pulled.get(), lessThanOrEqualTo(3));
+  }
+
+  /**
+   * Tests that a {@link RelList} that has been read to the end retains its rows
+   * only if there are not too many of them.
+   */
+  @Test
+  void testRelListRetainedRows() {
+    checkRelListRetainedRows(1_000, 1_000);
+    checkRelListRetainedRows(20_000, 40_000);
+  }
+
+  private void checkRelListRetainedRows(int rowCount, int expectedPulled) {
+    final Calcite calcite = Calcite.withDataSets(ImmutableMap.of());
+    final CountingTable table = new CountingTable(rowCount);
+    final SchemaPlus schema = calcite.rootSchema.add("c", new AbstractSchema());
+    schema.add("nums", table);
+    final ForeignValue value =
+        new CalciteForeignValue(
+            calcite, schema, CalciteForeignValue.NameConverter.IDENTITY);
+    final RelList nums = (RelList) ((List<?>) value.value()).get(0);
+
+    // Read to the end, then get a row. If the list retained the rows it
+    // read, the table is scanned once; otherwise it is scanned again.
+    int n = 0;
+    for (Object ignore : nums) {
+      ++n;
+    }
+    assertThat(n, is(rowCount));
+    assertThat(nums.get(rowCount - 1), hasToString("[" + (rowCount - 1) + "]"));
+    assertThat(table.pulled.get(), is(expectedPulled));
+  }
+
   /** Java object that will, via reflection, become create the "user" schema. */
   public static class UserSchema {
     @Override
@@ -155,6 +480,32 @@ class CalciteTest {
     };
   }
 
+  /** Table of integers that counts how many rows have been read from it. */
+  private static class CountingTable extends AbstractTable
+      implements ScannableTable {
+    final int rowCount;
+    final AtomicInteger pulled = new AtomicInteger();
+
+    CountingTable(int rowCount) {
+      this.rowCount = rowCount;
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+      return typeFactory.builder().add("n", SqlTypeName.INTEGER).build();
+    }
+
+    @Override
+    public Enumerable<@Nullable Object[]> scan(DataContext root) {
+      return Linq4j.asEnumerable(
+          () ->
+              IntStream.range(0, rowCount)
+                  .peek(i -> pulled.incrementAndGet())
+                  .mapToObj(i -> new Object[] {i})
+                  .iterator());
+    }
+  }
+
   /** Row in the "tasks" table. */
   public static class Task {
     public final String name;
@@ -30,6 +30,7 @@ import java.io.File;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.function.Supplier;
@@ -94,6 +95,74 @@ public class DarnTest {
     assertThat(secondRun.mismatchCount, is(0));
   }
 
+  /**
+   * Tests that a document woven again with the same {@link Darn.KernelPool},
+   * after a cell is edited, gives the same result as with new kernels; cells
+   * that depend on the edited cell must be executed again.
+   */
+  @Test
+  void testKernelPoolReweave() {
+    final List<String> input =
+        Arrays.asList(
+            "<!-- morel",
+            "val x = 1;",
+            "-->",
+            "<!-- morel",
+            "val y = x + 1;",
+            "-->",
+            "<!-- morel",
+            "val z = 10;",
+            "-->",
+            "<!-- morel env=other",
+            "val y = 100;",
+            "-->",
+            "<!-- morel",
+            "z + y;",
+            "-->");
+    final List<String> input2 = new ArrayList<>(input);
+    input2.set(1, "val x = 5;");
+    try (Darn.KernelPool kernelPool = new Darn.KernelPool(KERNEL, true)) {
+      final List<String> lines =
+          Darn.processLines(input, kernelPool, MorelHighlighter.DEFAULT).lines;
+      assertThat(lines.contains("> val it = 12 : int"), is(true));
+
+      // Weave the same document again; the result is unchanged.
+      assertThat(
+          Darn.processLines(input, kernelPool, MorelHighlighter.DEFAULT).lines,
+          is(lines));
+
+      // Edit the first cell, and weave again.
+      final List<String> lines2 =
+          Darn.processLines(input2, kernelPool, MorelHighlighter.DEFAULT).lines;
+      assertThat(lines2.contains("> val it = 16 : int"), is(true));
+      assertThat(lines2, is(Darn.processLines(input2, KERNEL).lines));
+    }
+  }
+
+  /**
+   * As {@link #testKernelPoolReweave()}, but a cell uses {@code it}, which the
+   * edited cell defines.
+   */
+  @Test
+  void testKernelPoolReweaveIt() {
+    final List<String> input =
+        Arrays.asList(
+            "<!-- morel", "1 + 2;", "-->", "<!-- morel", "it * 2;", "-->");
+    final List<String> input2 = new ArrayList<>(input);
+    input2.set(1, "1 + 3;");
+    try (Darn.KernelPool kernelPool = new Darn.KernelPool(KERNEL, true)) {
+      final List<String> lines =
+          Darn.processLines(input, kernelPool, MorelHighlighter.DEFAULT).lines;
+      assertThat(lines.contains("> val it = 6 : int"), is(true));
+
+      final List<String> lines2 =
+          Darn.processLines(input2, kernelPool, MorelHighlighter.DEFAULT).lines;
+      assertThat(lines2.contains("> val it = 8 : int"), is(true));
+      assertThat(lines2.contains("> val it = 6 : int"), is(false));
+      assertThat(lines2, is(Darn.processLines(input2, KERNEL).lines));
+    }
+  }
+
   // -----------------------------------------------------------------------
   // parseAttrs
 
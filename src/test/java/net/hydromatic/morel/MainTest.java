@@ -18,6 +18,7 @@
  */
 package net.hydromatic.morel;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static net.hydromatic.morel.Matchers.equalsOrdered;
 import static net.hydromatic.morel.Matchers.equalsUnordered;
 import static net.hydromatic.morel.Matchers.hasMoniker;
@@ -41,26 +42,37 @@ import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.hasToString;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.compile.CompileException;
 import net.hydromatic.morel.eval.Applicable1;
 import net.hydromatic.morel.eval.Codes;
 import net.hydromatic.morel.eval.Prop;
+import net.hydromatic.morel.foreign.Calcite;
 import net.hydromatic.morel.foreign.ForeignValue;
 import net.hydromatic.morel.parse.MorelParseException;
 import net.hydromatic.morel.type.DataType;
@@ -172,12 +184,20 @@ public class MainTest {
    * without strict output matching, and returns the regenerated output.
    */
   private static String runIdempotent(String input, boolean strict) {
-    final List<String> argList = ImmutableList.of("--echo");
-    final Map<String, ForeignValue> valueMap = ImmutableMap.of();
     final Map<Prop, Object> propMap = new LinkedHashMap<>();
     if (strict) {
       propMap.put(Prop.MATCH_STRICT, true);
     }
+    return runIdempotent(input, propMap);
+  }
+
+  /**
+   * Runs {@code input} through the idempotent (script-test) harness with the
+   * given properties, and returns the regenerated output.
+   */
+  private static String runIdempotent(String input, Map<Prop, Object> propMap) {
+    final List<String> argList = ImmutableList.of("--echo");
+    final Map<String, ForeignValue> valueMap = ImmutableMap.of();
     final ByteArrayOutputStream out = new ByteArrayOutputStream();
     try (PrintStream ps = new PrintStream(out)) {
       final InputStream in = new ByteArrayInputStream(input.getBytes());
@@ -186,6 +206,403 @@ public class MainTest {
     return out.toString();
   }
 
+  /**
+   * Tests that a script produces the same output whether its statements are
+   * compiled one at a time or, with {@link Prop#COMPILE_THREADS}, concurrently.
+   */
+  @Test
+  void testCompileThreads() {
+    final String input =
+        "fun f x = x + 1;\n" //
+            + "fun g x = x * 2;\n"
+            + "val a = f 1;\n"
+            + "val b = g a;\n"
+            + "datatype t = T of int;\n"
+            + "val c = T (f b);\n"
+            + "fun h (T i) = i;\n"
+            + "h c + f 10;\n"
+            + "it + 1;\n"
+            + "val d = f \"x\";\n"
+            + "1 div 0;\n"
+            + "b;\n";
+    final Map<Prop, Object> propMap = new LinkedHashMap<>();
+    final String expected = runIdempotent(input, propMap);
+    assertThat(expected, containsString("> val it = 16 : int"));
+    assertThat(expected, containsString("> val it = 17 : int"));
+
+    propMap.put(Prop.COMPILE_THREADS, 4);
+    assertThat(runIdempotent(input, propMap), is(expected));
+  }
+
+  /**
+   * Tests that a file that is used again is not converted to Core again; its
+   * statements are read from {@link net.hydromatic.morel.compile.UseCache}, and
+   * evaluated in the current environment.
+   */
+  @Test
+  void testUseCache() throws IOException {
+    final File directory = Files.createTempDirectory("morel-use-").toFile();
+    final File file = new File(directory, "scale.sml");
+    Files.write(
+        file.toPath(),
+        ImmutableList.of("fun scale n = n * base;", "val y = scale 2;"));
+    final String input =
+        "val base = 10;\n"
+            + "use \"scale.sml\";\n"
+            + "use \"scale.sml\";\n"
+            + "y + 1;\n"
+            + "val base = 100;\n"
+            + "use \"scale.sml\";\n"
+            + "y + 1;\n";
+    final Map<Prop, Object> propMap = new LinkedHashMap<>();
+    Prop.SCRIPT_DIRECTORY.set(propMap, directory);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Main main;
+    try (PrintStream ps = new PrintStream(out)) {
+      final InputStream in = new ByteArrayInputStream(input.getBytes(UTF_8));
+      main =
+          new Main(
+              ImmutableList.of(), in, ps, ImmutableMap.of(), propMap, false);
+      main.run();
+    }
+
+    // The second and third "use" read both statements from the cache. The
+    // third evaluates them with the new binding of "base".
+    assertThat(main.session.useCache.hitCount(), is(4));
+    final String s = out.toString();
+    assertThat(s.split("val y = 20 : int", -1).length, is(3));
+    assertThat(s, containsString("val it = 21 : int"));
+    assertThat(s, containsString("val y = 200 : int"));
+    assertThat(s, containsString("val it = 201 : int"));
+  }
+
+  /**
+   * Tests that the Core of a used file is saved in {@link
+   * Prop#USE_CACHE_DIRECTORY}, and read by another session; and that a
+   * statement is converted to Core again if a value that it uses has a
+   * different type.
+   */
+  @Test
+  void testUseCoreCache() throws IOException {
+    final File directory = Files.createTempDirectory("morel-use-").toFile();
+    final File cacheDirectory = new File(directory, "cache");
+    final File file = new File(directory, "scale.sml");
+    Files.write(
+        file.toPath(),
+        ImmutableList.of(
+            "fun scale n = n * base;",
+            "val y = scale base;",
+            "val r = from e in [{a = 1, b = 2}, {a = 1, b = 3}]",
+            "  group e.a compute {s = sum over e.b};",
+            "fun f NONE = base | f (SOME x) = x;",
+            "val z = f (SOME base);"));
+    final Map<Prop, Object> propMap = new LinkedHashMap<>();
+    Prop.SCRIPT_DIRECTORY.set(propMap, directory);
+    Prop.USE_CACHE_DIRECTORY.set(propMap, cacheDirectory);
+
+    // The first session converts the statements to Core and saves them.
+    final String input = "val base = 10;\nuse \"scale.sml\";\n";
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Main main = runMain(input, propMap, out);
+    assertThat(main.session.useCache.diskHitCount(), is(0));
+    final String s = out.toString();
+    assertThat(s, containsString("val y = 100 : int"));
+    assertThat(s, containsString("val r = [{a=1,s=5}] : {a:int, s:int} list"));
+    assertThat(s, containsString("val z = 10 : int"));
+    final File[] files = cacheDirectory.listFiles();
+    assertThat(files, notNullValue());
+    assertThat(files.length, is(1));
+
+    // A new session reads all five statements, with the same effect.
+    final ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+    final Main main2 = runMain(input, propMap, out2);
+    assertThat(main2.session.useCache.diskHitCount(), is(5));
+    assertThat(out2, hasToString(s));
+
+    // In a session where "base" is a real, only the query, which does not use
+    // "base", is read from the cache.
+    final String input3 = "val base = 2.5;\nuse \"scale.sml\";\n";
+    final ByteArrayOutputStream out3 = new ByteArrayOutputStream();
+    final Main main3 = runMain(input3, propMap, out3);
+    assertThat(main3.session.useCache.diskHitCount(), is(1));
+    final String s3 = out3.toString();
+    assertThat(s3, containsString("val y = 6.25 : real"));
+    assertThat(s3, containsString("val z = 2.5 : real"));
+  }
+
+  /** Runs a Morel program in a new session, writing to a stream. */
+  private static Main runMain(
+      String input, Map<Prop, Object> propMap, ByteArrayOutputStream out) {
+    return runMain(input, ImmutableMap.of(), propMap, out);
+  }
+
+  /**
+   * Runs a Morel program in a new session that can see the given foreign
+   * values, writing to a stream.
+   */
+  private static Main runMain(
+      String input,
+      Map<String, ForeignValue> valueMap,
+      Map<Prop, Object> propMap,
+      ByteArrayOutputStream out) {
+    final Main main;
+    try (PrintStream ps = new PrintStream(out)) {
+      final InputStream in = new ByteArrayInputStream(input.getBytes(UTF_8));
+      main =
+          new Main(
+              ImmutableList.of(),
+              in,
+              ps,
+              valueMap,
+              new LinkedHashMap<>(propMap),
+              false);
+      main.run();
+    }
+    return main;
+  }
+
+  /**
+   * Tests that a file that uses {@code it} sees the new value of {@code it},
+   * even though the file defines {@code it}.
+   */
+  @Test
+  void testUseCacheIt() throws IOException {
+    final File directory = Files.createTempDirectory("morel-use-").toFile();
+    final File file = new File(directory, "next.sml");
+    Files.write(file.toPath(), ImmutableList.of("it + 1;"));
+    final String input =
+        "1;\n" //
+            + "use \"next.sml\";\n"
+            + "10;\n"
+            + "use \"next.sml\";\n";
+    final Map<Prop, Object> propMap = new LinkedHashMap<>();
+    Prop.SCRIPT_DIRECTORY.set(propMap, directory);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Main main;
+    try (PrintStream ps = new PrintStream(out)) {
+      final InputStream in = new ByteArrayInputStream(input.getBytes(UTF_8));
+      main =
+          new Main(
+              ImmutableList.of(), in, ps, ImmutableMap.of(), propMap, false);
+      main.run();
+    }
+
+    assertThat(main.session.useCache.hitCount(), is(1));
+    final String s = out.toString();
+    assertThat(s, containsString("val it = 2 : int"));
+    assertThat(s, containsString("val it = 11 : int"));
+  }
+
+  /**
+   * Tests that code that a kernel executes again, directly or via {@code use},
+   * is evaluated again, unless the kernel has been asked to replay.
+   */
+  @Test
+  void testKernelExecuteAgain() throws Exception {
+    final File directory = Files.createTempDirectory("morel-use-").toFile();
+    final File file = new File(directory, "now.sml");
+    Files.write(file.toPath(), ImmutableList.of("val t = Time.now ();"));
+    final String use = "use \"" + file.getAbsolutePath() + "\";";
+    try (Kernel kernel = Main.kernel(ImmutableMap.of())) {
+      for (String code : ImmutableList.of("val t = Time.now ();", use)) {
+        final List<String> lines = kernel.execute(code);
+        Thread.sleep(2);
+        assertThat(kernel.execute(code), not(is(lines)));
+      }
+
+      kernel.setReplay(true);
+      final List<String> lines = kernel.execute("val t = Time.now ();");
+      Thread.sleep(2);
+      assertThat(kernel.execute("val t = Time.now ();"), is(lines));
+    }
+  }
+
+  /**
+   * Tests that {@link KernelServer} sessions can run hybrid queries
+   * concurrently against a foreign value that they share, and whose Calcite
+   * planner they therefore share.
+   */
+  @Test
+  void testKernelServerSharedCalcite() throws Exception {
+    final Map<String, ForeignValue> valueMap =
+        Calcite.withDataSets(ImmutableMap.of("scott", BuiltInDataSet.SCOTT))
+            .foreignValues();
+    try (KernelServer server = new KernelServer(valueMap)) {
+      final List<String> ids = new ArrayList<>();
+      final List<CompletableFuture<List<String>>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        final String id = server.open();
+        ids.add(id);
+        server.execute(id, "Sys.set (\"hybrid\", true);");
+        futures.add(
+            server.execute(
+                id,
+                "from e in scott.emps\n"
+                    + "  where e.deptno = "
+                    + (i % 3 + 1) * 10
+                    + "\n"
+                    + "  compute count over ();\n"));
+      }
+      // Departments 10, 20 and 30 have 3, 5 and 6 employees.
+      final int[] counts = {3, 5, 6};
+      for (int i = 0; i < ids.size(); i++) {
+        assertThat(
+            futures.get(i).get(),
+            is(ImmutableList.of("val it = " + counts[i % 3] + " : int")));
+      }
+    }
+  }
+
+  /**
+   * Tests that a hybrid query that calls Morel functions, submitted twice,
+   * compiles each function once; the compiled state is cached in the session.
+   */
+  @Test
+  void testHybridCompiledFunctionCache() {
+    final Map<String, ForeignValue> valueMap =
+        Calcite.withDataSets(ImmutableMap.of("scott", BuiltInDataSet.SCOTT))
+            .foreignValues();
+    final String setUp =
+        "Sys.set (\"hybrid\", true);\n" //
+            + "Sys.set (\"inlinePassCount\", 0);\n";
+    final String query =
+        "let\n"
+            + "  fun twice x = x + x\n"
+            + "in\n"
+            + "  from e in scott.emps\n"
+            + "    where e.deptno = 10\n"
+            + "    yield twice e.empno\n"
+            + "end;\n";
+
+    // In a session that runs the query once, the scalar function "twice" and
+    // the converter of its argument are compiled.
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Main main = runMain(setUp + query, valueMap, ImmutableMap.of(), out);
+    assertThat(out.toString(), containsString("[15564,15678,15868]"));
+    assertThat(main.session.compiledFunctions().size(), is(2L));
+    final long loadCount =
+        main.session.compiledFunctions().stats().loadSuccessCount();
+    assertThat(loadCount, is(2L));
+
+    // In a session that runs the query twice, they are compiled only once.
+    final ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+    final Main main2 =
+        runMain(setUp + query + query, valueMap, ImmutableMap.of(), out2);
+    assertThat(
+        out2.toString().split("\\[15564,15678,15868]", -1).length, is(3));
+    assertThat(
+        main2.session.compiledFunctions().stats().loadSuccessCount(),
+        is(loadCount));
+  }
+
+  /**
+   * Tests {@link KernelServer}; sessions run concurrently, but each sees only
+   * its own bindings.
+   */
+  @Test
+  void testKernelServer() throws Exception {
+    try (KernelServer server = new KernelServer(ImmutableMap.of())) {
+      final List<String> ids = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        ids.add(server.open());
+      }
+      final List<CompletableFuture<List<String>>> futures = new ArrayList<>();
+      for (int i = 0; i < ids.size(); i++) {
+        server.execute(ids.get(i), "val x = " + i + ";");
+      }
+      for (int i = 0; i < ids.size(); i++) {
+        futures.add(server.execute(ids.get(i), "x * 10;"));
+      }
+      for (int i = 0; i < ids.size(); i++) {
+        assertThat(
+            futures.get(i).get(),
+            is(ImmutableList.of("val it = " + i * 10 + " : int")));
+        final KernelServer.Stats stats = server.stats(ids.get(i));
+        assertThat(stats.executeCount, is(2));
+        // Requests run on platform threads, whose CPU time can be measured.
+        assertThat(stats.cpuNanos, greaterThanOrEqualTo(0L));
+      }
+
+      server.close(ids.get(0));
+      assertThat(server.sessionIds(), hasSize(7));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> server.execute(ids.get(0), "x;"));
+
+      // A session that is closed while another thread is submitting requests
+      // rejects requests that arrive after it starts closing; close waits for
+      // the requests that it accepted.
+      final String id = server.open();
+      final List<CompletableFuture<List<String>>> accepted =
+          new CopyOnWriteArrayList<>();
+      final CompletableFuture<Void> submitter =
+          CompletableFuture.runAsync(
+              () -> {
+                try {
+                  for (; ; ) {
+                    final CompletableFuture<List<String>> future =
+                        server.execute(id, "1;");
+                    accepted.add(future);
+                    future.join();
+                  }
+                } catch (IllegalArgumentException e) {
+                  // The session has closed
+                }
+              });
+      while (accepted.size() < 10) {
+        Thread.sleep(1);
+      }
+      server.close(id);
+      submitter.get();
+      for (CompletableFuture<List<String>> future : accepted) {
+        assertThat(future.getNow(null), hasToString("[val it = 1 : int]"));
+      }
+    }
+  }
+
+  /**
+   * Tests {@link Kernel#prepare}; an expression with parameters is compiled
+   * once and executed several times with different values.
+   */
+  @Test
+  void testKernelPrepare() throws Exception {
+    try (Kernel kernel = Main.kernel(ImmutableMap.of())) {
+      kernel.execute("val xs = [1, 2, 3, 4, 5];");
+      final Kernel.Prepared prepared =
+          kernel.prepare(
+              "from x in xs where x > lo andalso x < hi yield x * 10;",
+              ImmutableList.of("lo", "hi"));
+      assertThat(prepared.parameterTypes(), hasToString("{lo=int, hi=int}"));
+      assertThat(prepared.type(), hasToString("int list"));
+      assertThat(
+          kernel.execute(prepared, ImmutableMap.of("lo", 1, "hi", 4)),
+          hasToString("[val it = [20,30] : int list]"));
+      assertThat(
+          kernel.execute(prepared, ImmutableMap.of("lo", 0, "hi", 9)),
+          hasToString("[val it = [10,20,30,40,50] : int list]"));
+
+      // Executing does not create bindings.
+      assertThat(
+          kernel.execute("lo;"),
+          hasToString(
+              "[stdIn:1.1-1.3 Error: unbound variable or constructor: lo\n"
+                  + "  raised at: stdIn:1.1-1.3]"));
+
+      // A parameter whose type cannot be deduced needs a type annotation.
+      assertThrows(
+          CompileException.class,
+          () -> kernel.prepare("[y]", ImmutableList.of("y")));
+      final Kernel.Prepared prepared2 =
+          kernel.prepare("[y : string]", ImmutableList.of("y"));
+      assertThat(
+          kernel.execute(prepared2, ImmutableMap.of("y", "a")),
+          hasToString("[val it = [\"a\"] : string list]"));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> kernel.execute(prepared2, ImmutableMap.of()));
+    }
+  }
+
   @Test
   void testParse() {
     ml("1").assertParseLiteral(isLiteral(BigDecimal.ONE, "1"));
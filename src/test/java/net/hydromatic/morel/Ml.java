@@ -54,6 +54,7 @@ import net.hydromatic.morel.compile.CompiledStatement;
 import net.hydromatic.morel.compile.Compiles;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.compile.Environments;
+import net.hydromatic.morel.compile.Inliner;
 import net.hydromatic.morel.compile.Resolver;
 import net.hydromatic.morel.compile.Tracer;
 import net.hydromatic.morel.compile.Tracers;
@@ -422,9 +423,18 @@ class Ml {
     final Ast.ValDecl valDecl2 = (Ast.ValDecl) resolved.node;
     final Resolver resolver = Resolver.of(resolved.typeMap, env, null);
     final Core.ValDecl valDecl3 = resolver.toCore(valDecl2);
+    final Analyzer.Memo memo = new Analyzer.Memo();
     final Analyzer.Analysis analysis =
-        Analyzer.analyze(typeSystem, env, valDecl3);
+        Analyzer.analyze(typeSystem, env, valDecl3, memo);
     assertThat(ImmutableSortedMap.copyOf(analysis.map), matcher);
+
+    // After an inlining pass, an analysis that re-uses the memo for unchanged
+    // subtrees must give the same result as one that starts from scratch.
+    final Core.Decl valDecl4 =
+        valDecl3.accept(Inliner.of(typeSystem, env, analysis));
+    assertThat(
+        Analyzer.analyze(typeSystem, env, valDecl4, memo).map,
+        is(Analyzer.analyze(typeSystem, env, valDecl4).map));
     return this;
   }
 
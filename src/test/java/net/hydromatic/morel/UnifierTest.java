@@ -38,6 +38,7 @@ import net.hydromatic.morel.util.RobinsonUnifier;
 import net.hydromatic.morel.util.Tracers;
 import net.hydromatic.morel.util.Unifier;
 import net.hydromatic.morel.util.Unifiers;
+import net.hydromatic.morel.util.UnionFindUnifier;
 import org.hamcrest.Matcher;
 import org.junit.jupiter.api.Test;
 
@@ -505,6 +506,18 @@ public abstract class UnifierTest {
       assertThatUnify(pairs, is(expected));
     }
   }
+
+  /**
+   * Variant of test that uses {@link
+   * net.hydromatic.morel.util.UnionFindUnifier}. It should give the same
+   * results as {@link MartelliUnifier}, so inherits that test's cases.
+   */
+  public static class UnionFindUnifierTest extends MartelliUnifierTest {
+    @Override
+    protected Unifier createUnifier() {
+      return new UnionFindUnifier();
+    }
+  }
 }
 
 // End UnifierTest.java
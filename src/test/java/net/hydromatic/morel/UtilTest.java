@@ -68,6 +68,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -88,9 +89,12 @@ import net.hydromatic.morel.eval.Prop;
 import net.hydromatic.morel.type.PrimitiveType;
 import net.hydromatic.morel.type.RangeExtent;
 import net.hydromatic.morel.type.TypeSystem;
+import net.hydromatic.morel.util.AppendOnlySet;
 import net.hydromatic.morel.util.ArrayQueue;
 import net.hydromatic.morel.util.ColorScheme;
+import net.hydromatic.morel.util.ConcatList;
 import net.hydromatic.morel.util.Folder;
+import net.hydromatic.morel.util.HashTrie;
 import net.hydromatic.morel.util.MapList;
 import net.hydromatic.morel.util.Ord;
 import net.hydromatic.morel.util.Pair;
@@ -145,6 +149,130 @@ public class UtilTest {
     assertThat(list.isEmpty(), is(false));
   }
 
+  /** Tests {@link ConcatList}. */
+  @Test
+  void testConcatList() {
+    final List<Integer> empty = ImmutableList.of();
+    assertThat(ConcatList.of(empty, empty), empty());
+    assertThat(
+        ConcatList.of(Arrays.asList(1, 2), empty), is(Arrays.asList(1, 2)));
+    assertThat(ConcatList.of(empty, Arrays.asList(3)), hasToString("[3]"));
+
+    // Build a list by repeated appends, as "acc @ [x]" would, and check
+    // that it agrees with an ArrayList built the same way.
+    final List<Integer> expected = new ArrayList<>();
+    List<Integer> list = empty;
+    for (int i = 0; i < 1000; i++) {
+      list = ConcatList.of(list, ImmutableList.of(i));
+      expected.add(i);
+      if (i % 97 == 0) {
+        // Prepend too, so that the tree is not only left-deep.
+        list = ConcatList.of(ImmutableList.of(-i, -i), list);
+        expected.add(0, -i);
+        expected.add(0, -i);
+      }
+    }
+    assertThat(list.size(), is(expected.size()));
+    final List<Integer> iterated = new ArrayList<>();
+    list.forEach(iterated::add);
+    assertThat(iterated, is(expected));
+    assertThat(list.hashCode(), is(expected.hashCode()));
+    assertThat(list.equals(expected), is(true));
+    assertThat(expected.equals(list), is(true));
+    assertThat(list.contains(999), is(true));
+    assertThat(list.contains(1000), is(false));
+    assertThat(Arrays.asList(list.toArray()), is(expected));
+    assertThat(list.get(5), is(expected.get(5)));
+    assertThat(list.subList(10, 20), is(expected.subList(10, 20)));
+    assertThat(list.indexOf(500), is(expected.indexOf(500)));
+
+    // Concatenating two large lists shares structure.
+    final List<Integer> list2 = ConcatList.of(list, list);
+    assertThat(list2.size(), is(2 * expected.size()));
+    assertThat(list2.get(expected.size()), is(expected.get(0)));
+    assertThat(ConcatList.of(ConcatList.of(list, empty), list), is(list2));
+  }
+
+  /** Tests {@link AppendOnlySet}. */
+  @Test
+  void testAppendOnlySet() {
+    // Initial elements are kept even if they are duplicates.
+    final AppendOnlySet<String> set =
+        new AppendOnlySet<>(Arrays.asList("a", "b", "a"));
+    assertThat(set.size(), is(3));
+    final List<String> view0 = set.view();
+    assertThat(view0, hasToString("[a, b, a]"));
+
+    assertThat(set.add("b"), is(false));
+    assertThat(set.add("c"), is(true));
+    assertThat(set.add("d"), is(true));
+    assertThat(set.add("c"), is(false));
+    assertThat(set.size(), is(5));
+
+    // Earlier views are not affected by later additions.
+    assertThat(view0, hasToString("[a, b, a]"));
+    assertThat(set.view(), hasToString("[a, b, a, c, d]"));
+    final List<String> delta = set.view(3, 5);
+    assertThat(delta, hasToString("[c, d]"));
+    assertThat(delta.get(1), is("d"));
+    assertThrows(IndexOutOfBoundsException.class, () -> delta.get(2));
+    assertThrows(IndexOutOfBoundsException.class, () -> set.view(4, 6));
+    assertThrows(UnsupportedOperationException.class, () -> delta.add("e"));
+  }
+
+  /** Tests {@link HashTrie}. */
+  @Test
+  void testHashTrie() {
+    final HashTrie<String, Integer> empty = HashTrie.empty();
+    assertThat(empty.size(), is(0));
+    assertThat(empty.get("a"), nullValue());
+
+    // Each version is unaffected by later additions.
+    final HashTrie<String, Integer> trie1 = empty.plus("a", 1);
+    final HashTrie<String, Integer> trie2 = trie1.plus("b", 2);
+    final HashTrie<String, Integer> trie3 = trie2.plus("a", 3);
+    assertThat(trie1.size(), is(1));
+    assertThat(trie1.get("a"), is(1));
+    assertThat(trie1.get("b"), nullValue());
+    assertThat(trie2.size(), is(2));
+    assertThat(trie2.get("a"), is(1));
+    assertThat(trie3.size(), is(2));
+    assertThat(trie3.get("a"), is(3));
+    assertThat(trie3.get("b"), is(2));
+    assertThat(trie3.plus("b", 2), sameInstance(trie3));
+
+    // Keys whose hash codes are equal ("Aa" and "BB"), or differ only in high
+    // bits, go into deeper nodes.
+    final HashTrie<Object, String> trie4 =
+        HashTrie.<Object, String>empty()
+            .plus("Aa", "x")
+            .plus("BB", "y")
+            .plus(1 << 20, "z")
+            .plus(1 << 25, "w")
+            .plus("BB", "v");
+    assertThat(trie4.size(), is(4));
+    assertThat(trie4.get("Aa"), is("x"));
+    assertThat(trie4.get("BB"), is("v"));
+    assertThat(trie4.get(1 << 20), is("z"));
+    assertThat(trie4.get(1 << 25), is("w"));
+    assertThat(trie4.get(1 << 30), nullValue());
+
+    // Compare with a HashMap on many keys, some of which are replaced.
+    final Random random = new Random(0);
+    final Map<Integer, Integer> map = new HashMap<>();
+    HashTrie<Integer, Integer> trie = HashTrie.empty();
+    for (int i = 0; i < 5_000; i++) {
+      final int key = random.nextInt(2_000) * 1_000_003;
+      map.put(key, i);
+      trie = trie.plus(key, i);
+    }
+    assertThat(trie.size(), is(map.size()));
+    for (int i = 0; i < 2_000; i++) {
+      final int key = i * 1_000_003;
+      assertThat(trie.get(key), is(map.get(key)));
+    }
+  }
+
   @Test
   void testOrd() {
     final List<String> abc = Arrays.asList("a", "b", "c");
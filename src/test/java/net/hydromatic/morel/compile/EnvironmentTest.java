@@ -18,15 +18,30 @@
  */
 package net.hydromatic.morel.compile;
 
+import static java.util.Objects.requireNonNull;
 import static net.hydromatic.morel.ast.CoreBuilder.core;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.hasToString;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.hamcrest.core.IsSame.sameInstance;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import net.hydromatic.morel.Kernel;
+import net.hydromatic.morel.Main;
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.type.Binding;
 import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.util.Pair;
 import org.hamcrest.CustomTypeSafeMatcher;
 import org.hamcrest.Matcher;
 import org.junit.jupiter.api.Test;
@@ -87,6 +102,90 @@ public class EnvironmentTest {
     assertThat(e4, hasEnvLength(8));
   }
 
+  /**
+   * Tests that lookups in a long chain of environments, which is periodically
+   * indexed, see the same bindings, shadowing and overloads as a short chain.
+   */
+  @Test
+  void testLongChain() {
+    Environment env = Environments.empty();
+    final List<Environment> envs = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      env = env.bind(core.idPat(PrimitiveType.INT, "v" + (i % 50), i), i);
+      envs.add(env);
+    }
+    assertThat(env, instanceOf(Environments.SubEnvironment.class));
+    assertThat(env.getValueMap(false).keySet(), hasSize(52));
+
+    // The most recent binding of "v7" was the 158th.
+    final Binding top = requireNonNull(env.getTop("v7"));
+    assertThat(top.value, is(157));
+    assertThat(env.getOpt("v7"), sameInstance(top));
+    final Pair<Binding, Environment> pair = env.getOpt2(top.id);
+    assertThat(requireNonNull(pair).left, sameInstance(top));
+    assertThat(pair.right.isAncestorOf(envs.get(157)), is(true));
+    assertThat(pair.right.isAncestorOf(envs.get(156)), is(false));
+
+    // An obscured binding can still be found by its id.
+    final Core.IdPat id7 = core.idPat(PrimitiveType.INT, "v7", 7);
+    assertThat(requireNonNull(env.getOpt(id7)).value, is(7));
+    final Environment env7 = requireNonNull(env.getOpt2(id7)).right;
+    assertThat(env7.isAncestorOf(envs.get(7)), is(true));
+    assertThat(env7.isAncestorOf(envs.get(6)), is(false));
+    assertThat(envs.get(6).getOpt(id7), nullValue());
+
+    // Overloads: an "over" declaration and three instances, then a long chain
+    // of other bindings, then a fourth instance.
+    final Core.IdPat overId = core.idPat(PrimitiveType.INT, "f", 0);
+    Environment env2 = env.bind(Binding.over(overId));
+    for (int i = 0; i < 3; i++) {
+      env2 =
+          env2.bind(
+              Binding.inst(
+                  core.idPat(PrimitiveType.INT, "f", i + 1), overId, i));
+    }
+    for (int i = 0; i < 100; i++) {
+      env2 = env2.bind(core.idPat(PrimitiveType.INT, "w", i), i);
+    }
+    assertThat(env2.hasOverloaded("f"), is(true));
+    assertThat(env2.hasOverloaded("w"), is(false));
+    assertThat(env2.getOverloads(overId), hasToString("[f_3, f_2, f_1]"));
+    env2 =
+        env2.bind(
+            Binding.inst(core.idPat(PrimitiveType.INT, "f", 4), overId, 3));
+    final List<Object> values = new ArrayList<>();
+    env2.collect(overId, b -> values.add(b.value));
+    assertThat(values, hasToString("[3, 2, 1, 0]"));
+    assertThat(requireNonNull(env2.getTop("f")).value, is(3));
+
+    // A new "over" declaration hides the earlier instances.
+    final Environment env3 = env2.bind(Binding.over(overId));
+    values.clear();
+    env3.collect(overId, b -> values.add(b.value));
+    assertThat(values, empty());
+  }
+
+  /**
+   * Tests that kernels, whose built-ins come from a shared snapshot, do not see
+   * each other's types and values.
+   */
+  @Test
+  void testBuiltInSnapshot() throws IOException {
+    try (Kernel kernel1 = Main.kernel(ImmutableMap.of());
+        Kernel kernel2 = Main.kernel(ImmutableMap.of())) {
+      assertThat(
+          kernel1.execute("datatype t = T of int; val x = T 1;"),
+          hasToString("[datatype t = T of int, val x = T 1 : t]"));
+      assertThat(
+          kernel2.execute("datatype t = T of string; val x = T \"a\";"),
+          hasToString("[datatype t = T of string, val x = T \"a\" : t]"));
+      assertThat(kernel1.execute("x;"), hasToString("[val it = T 1 : t]"));
+      assertThat(
+          kernel2.execute("x; [1, 2] @ [3];"),
+          hasToString("[val it = T \"a\" : t, val it = [1,2,3] : int list]"));
+    }
+  }
+
   private Matcher<Environment> hasEnvLength(int i) {
     return new CustomTypeSafeMatcher<Environment>("environment depth " + i) {
       @Override
@@ -0,0 +1,145 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import static java.util.Objects.requireNonNull;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasToString;
+import static org.hamcrest.core.Is.is;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import net.hydromatic.morel.ast.AstNode;
+import net.hydromatic.morel.eval.Prop;
+import net.hydromatic.morel.eval.Session;
+import net.hydromatic.morel.parse.MorelParserImpl;
+import net.hydromatic.morel.parse.ParseException;
+import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.TypeSystem;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link StatementCache}. */
+public class StatementCacheTest {
+  /**
+   * Tests that a statement submitted again in the same environment is not
+   * compiled again, but is compiled if a name it uses has been rebound.
+   */
+  @Test
+  void testStatementCache() throws ParseException {
+    final TypeSystem typeSystem = new TypeSystem();
+    final Session session = new Session(new LinkedHashMap<>(), typeSystem);
+    final Environment env0 =
+        Environments.env(typeSystem, session, ImmutableMap.of());
+    final StatementCache cache = session.statementCache;
+    final List<String> lines = new ArrayList<>();
+
+    final Environment env1 = run(session, env0, "val x = 1", lines);
+    run(session, env1, "x + 1", lines);
+    assertThat(cache.hitCount(), is(0));
+    assertThat(cache.missCount(), is(2));
+
+    // Same statement, same environment; compiled statement is reused.
+    run(session, env1, "x + 1", lines);
+    assertThat(cache.hitCount(), is(1));
+    assertThat(cache.missCount(), is(2));
+
+    // "x" has a new binding, so "x + 1" must be compiled again.
+    final Environment env2 = run(session, env1, "val x = 10", lines);
+    run(session, env2, "x + 1", lines);
+    assertThat(cache.hitCount(), is(1));
+    assertThat(cache.missCount(), is(4));
+    assertThat(cache.size(), is(4));
+    assertThat(
+        lines,
+        hasToString(
+            "[val x = 1 : int, val it = 2 : int, val it = 2 : int, "
+                + "val x = 10 : int, val it = 11 : int]"));
+
+    // If the cache size is zero, the cache is not used.
+    Prop.STATEMENT_CACHE_SIZE.set(session.map, 0);
+    run(session, env2, "x + 1", lines);
+    assertThat(cache.hitCount(), is(1));
+    assertThat(cache.missCount(), is(4));
+  }
+
+  /**
+   * Tests that a statement typed again on a later line is found in the cache,
+   * because its lines are numbered from the start of the statement; but not if
+   * it starts in a different column.
+   */
+  @Test
+  void testStatementCachePosition() throws ParseException {
+    final TypeSystem typeSystem = new TypeSystem();
+    final Session session = new Session(new LinkedHashMap<>(), typeSystem);
+    final Environment env0 =
+        Environments.env(typeSystem, session, ImmutableMap.of());
+    final StatementCache cache = session.statementCache;
+    final List<String> lines = new ArrayList<>();
+
+    final Environment env1 = run(session, env0, "val x = 1", lines);
+    run(session, env1, "x + 1", lines);
+    assertThat(cache.missCount(), is(2));
+
+    // The same statement, typed on line 3, has the same position.
+    final String code =
+        "\n" //
+            + "\n" //
+            + "x + 1";
+    run(session, env1, code, lines);
+    assertThat(cache.hitCount(), is(1));
+    assertThat(cache.missCount(), is(2));
+
+    // Starting in column 3, it has a different position, and is compiled
+    // again.
+    run(session, env1, "  x + 1", lines);
+    assertThat(cache.hitCount(), is(1));
+    assertThat(cache.missCount(), is(3));
+  }
+
+  /**
+   * Compiles and evaluates a statement, and returns the environment extended
+   * with its bindings.
+   */
+  private static Environment run(
+      Session session, Environment env, String code, List<String> lines)
+      throws ParseException {
+    // As the shell does, number lines from the start of the statement.
+    final MorelParserImpl parser = new MorelParserImpl(new StringReader(code));
+    parser.nextTokenPos();
+    parser.zero("stdIn");
+    final AstNode statement = parser.statementEof();
+    final CompiledStatement compiled =
+        Compiles.prepareStatement(
+            requireNonNull(session.typeSystem),
+            session,
+            env,
+            statement,
+            null,
+            e -> {},
+            Tracers.empty());
+    final List<Binding> bindings = new ArrayList<>();
+    compiled.eval(session, env, lines::add, bindings::add);
+    return env.bindAll(bindings);
+  }
+}
+
+// End StatementCacheTest.java
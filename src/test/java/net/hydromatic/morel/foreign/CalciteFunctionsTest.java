@@ -0,0 +1,116 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.foreign;
+
+import static net.hydromatic.morel.ast.CoreBuilder.core;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import net.hydromatic.morel.compile.Environment;
+import net.hydromatic.morel.compile.Environments;
+import net.hydromatic.morel.eval.Session;
+import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.type.TypeSystem;
+import org.apache.calcite.jdbc.JavaTypeFactoryImpl;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link CalciteFunctions}. */
+public class CalciteFunctionsTest {
+  /**
+   * Tests that the compiled state of a function is cached in the session, and
+   * is re-used only if the code and type are the same, and the names that the
+   * code uses have the same bindings.
+   */
+  @Test
+  void testCompiledCache() {
+    final TypeSystem typeSystem = new TypeSystem();
+    final Session session = new Session(new LinkedHashMap<>(), typeSystem);
+    final Environment env =
+        Environments.env(typeSystem, session, ImmutableMap.of());
+    final Environment env2 = env.bind(core.idPat(PrimitiveType.INT, "y", 0), 0);
+    final Environment envX = env.bind(core.idPat(PrimitiveType.INT, "x", 0), 5);
+    final Environment envX2 =
+        env.bind(core.idPat(PrimitiveType.INT, "x", 0), 5);
+    final RelDataTypeFactory typeFactory = new JavaTypeFactoryImpl();
+    final CalciteFunctions.Context cx =
+        new CalciteFunctions.Context(session, env, typeSystem, typeFactory);
+    final AtomicInteger compileCount = new AtomicInteger();
+    final Supplier<Integer> supplier = compileCount::incrementAndGet;
+    final String ml = "1 + 2";
+    final String typeJson = "\"INTEGER\"";
+
+    // The first call compiles; the second, with the same code, type and
+    // environment, re-uses the compiled state.
+    assertThat(
+        CalciteFunctions.compiled(
+            Integer.class, cx, env, ml, typeJson, supplier),
+        is(1));
+    assertThat(
+        CalciteFunctions.compiled(
+            Integer.class, cx, env, ml, typeJson, supplier),
+        is(1));
+    assertThat(session.compiledFunctions().size(), is(1L));
+
+    // A different environment, in which "+" has the same binding, re-uses the
+    // compiled state.
+    assertThat(
+        CalciteFunctions.compiled(
+            Integer.class, cx, env2, ml, typeJson, supplier),
+        is(1));
+
+    // A different type or code compiles again.
+    assertThat(
+        CalciteFunctions.compiled(
+            Integer.class, cx, env, ml, "\"BIGINT\"", supplier),
+        is(2));
+    assertThat(
+        CalciteFunctions.compiled(
+            Integer.class, cx, env, "3 + 4", typeJson, supplier),
+        is(3));
+
+    // Code that uses "x" compiles again if "x" has a new binding, even if its
+    // value is the same.
+    assertThat(
+        CalciteFunctions.compiled(
+            Integer.class, cx, envX, "x + 1", typeJson, supplier),
+        is(4));
+    assertThat(
+        CalciteFunctions.compiled(
+            Integer.class, cx, envX2, "x + 1", typeJson, supplier),
+        is(5));
+
+    // Another session has its own cache.
+    final Session session2 = new Session(new LinkedHashMap<>(), typeSystem);
+    final CalciteFunctions.Context cx2 =
+        new CalciteFunctions.Context(session2, env, typeSystem, typeFactory);
+    assertThat(
+        CalciteFunctions.compiled(
+            Integer.class, cx2, env, ml, typeJson, supplier),
+        is(6));
+    assertThat(session.compiledFunctions().size(), is(5L));
+    assertThat(session2.compiledFunctions().size(), is(1L));
+  }
+}
+
+// End CalciteFunctionsTest.java